@@ -0,0 +1,165 @@
+package benchmark;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.*;
+import protocol.P2PMessageProtocol;
+
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Đo P2PMessageProtocol.build* (Message → JSON)
+ * Mỗi build* có 1 benchmark; chat và file chunk có thêm bản gsonXxx:
+ * encode bằng Gson reflection như trước khi có HotMessageWriter (baseline để so sánh).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class P2PBuildBenchmark {
+
+    private static final Gson GSON = new Gson();
+
+    /**
+     * Nội dung chat tách riêng để chỉ benchmark chat chạy theo 2 kích thước
+     */
+    @State(Scope.Benchmark)
+    public static class Chat {
+        @Param({"short", "4kb"})
+        public String chatSize;
+
+        public String content;
+
+        @Setup
+        public void setup() {
+            content = Payloads.chat(chatSize);
+        }
+    }
+
+    private String clientMessageId;
+    private String fileId;
+    private String callId;
+    private byte[] chunk;
+
+    @Setup
+    public void setup() {
+        clientMessageId = Payloads.id();
+        fileId = Payloads.id();
+        callId = Payloads.id();
+        chunk = Payloads.fileChunk();
+    }
+
+    // ===== CHAT =====
+
+    @Benchmark
+    public String buildChatMessage(Chat chat) {
+        return P2PMessageProtocol.buildChatMessage(Payloads.FROM, Payloads.CONVERSATION_ID, chat.content, clientMessageId);
+    }
+
+    @Benchmark
+    public String buildChatMessageNoId(Chat chat) {
+        return P2PMessageProtocol.buildChatMessage(Payloads.FROM, Payloads.CONVERSATION_ID, chat.content);
+    }
+
+    @Benchmark
+    public String gsonChatMessage(Chat chat) {
+        return GSON.toJson(P2PMessageProtocol.createChatMessage(Payloads.FROM, Payloads.CONVERSATION_ID, chat.content, clientMessageId));
+    }
+
+    @Benchmark
+    public String buildMessageAck() {
+        return P2PMessageProtocol.buildMessageAck(Payloads.FROM, Payloads.TO, clientMessageId);
+    }
+
+    @Benchmark
+    public String buildMessageSeen() {
+        return P2PMessageProtocol.buildMessageSeen(Payloads.FROM, Payloads.CONVERSATION_ID, 123456);
+    }
+
+    @Benchmark
+    public String buildTypingStart() {
+        return P2PMessageProtocol.buildTypingStart(Payloads.FROM, Payloads.CONVERSATION_ID);
+    }
+
+    @Benchmark
+    public String buildTypingStop() {
+        return P2PMessageProtocol.buildTypingStop(Payloads.FROM, Payloads.CONVERSATION_ID);
+    }
+
+    // ===== FILE TRANSFER =====
+
+    @Benchmark
+    public String buildFileChunk() {
+        return P2PMessageProtocol.buildFileChunk(Payloads.FROM, Payloads.TO, fileId, 0, chunk, Payloads.TOTAL_CHUNKS,
+                Payloads.FILE_NAME, Payloads.FILE_SIZE, Payloads.CONVERSATION_ID, clientMessageId, Payloads.CHECKSUM);
+    }
+
+    @Benchmark
+    public String gsonFileChunk() {
+        P2PMessageProtocol.Message msg = P2PMessageProtocol.createFileChunk(Payloads.FROM, Payloads.TO, fileId, 0, null,
+                Payloads.TOTAL_CHUNKS, Payloads.FILE_NAME, Payloads.FILE_SIZE, Payloads.CONVERSATION_ID,
+                clientMessageId, Payloads.CHECKSUM);
+        msg.data.put("crc", P2PMessageProtocol.chunkCrc(chunk));
+        msg.data.put("chunkData", Base64.getEncoder().encodeToString(chunk));
+        return GSON.toJson(msg);
+    }
+
+    @Benchmark
+    public String buildFileComplete() {
+        return P2PMessageProtocol.buildFileComplete(Payloads.FROM, Payloads.TO, fileId);
+    }
+
+    @Benchmark
+    public String buildFileCancel() {
+        return P2PMessageProtocol.buildFileCancel(Payloads.FROM, Payloads.TO, fileId);
+    }
+
+    @Benchmark
+    public String buildFileAck() {
+        return P2PMessageProtocol.buildFileAck(Payloads.FROM, Payloads.TO, fileId);
+    }
+
+    @Benchmark
+    public String buildFileNack() {
+        return P2PMessageProtocol.buildFileNack(Payloads.FROM, Payloads.TO, fileId, "Checksum mismatch");
+    }
+
+    // ===== AUDIO / CALL =====
+
+    @Benchmark
+    public String buildAudioRequest() {
+        return P2PMessageProtocol.buildAudioRequest(Payloads.FROM, Payloads.TO, callId);
+    }
+
+    @Benchmark
+    public String buildAudioAccept() {
+        return P2PMessageProtocol.buildAudioAccept(Payloads.FROM, Payloads.TO, callId, 50001);
+    }
+
+    @Benchmark
+    public String buildAudioReject() {
+        return P2PMessageProtocol.buildAudioReject(Payloads.FROM, Payloads.TO, callId, "Busy");
+    }
+
+    @Benchmark
+    public String buildAudioEnd() {
+        return P2PMessageProtocol.buildAudioEnd(Payloads.FROM, Payloads.TO, callId);
+    }
+
+    @Benchmark
+    public String buildCallOffer() {
+        return P2PMessageProtocol.buildCallOffer(Payloads.FROM, Payloads.TO, Payloads.SDP);
+    }
+
+    @Benchmark
+    public String buildCallAnswer() {
+        return P2PMessageProtocol.buildCallAnswer(Payloads.FROM, Payloads.TO, Payloads.SDP);
+    }
+
+    @Benchmark
+    public String buildCallHangup() {
+        return P2PMessageProtocol.buildCallHangup(Payloads.FROM, Payloads.TO);
+    }
+}
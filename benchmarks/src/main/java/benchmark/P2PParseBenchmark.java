@@ -0,0 +1,82 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import protocol.BinaryFrameCodec;
+import protocol.P2PMessageProtocol;
+import protocol.P2PPayloads;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Đo decode (và encode binary) cho 3 loại payload thực tế: chat ngắn, chat 4 KB, file chunk 32 KB
+ * - parse:         JsonReader, decode thẳng vào payload có kiểu (đường nhận JSON hiện tại)
+ * - parseGson:     Gson reflection vào Map (baseline trước khi có typed decode)
+ * - binaryEncode / binaryRead: BinaryFrameCodec (không nén) cho cùng message
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class P2PParseBenchmark {
+
+    @Param({"chat_short", "chat_4kb", "file_chunk_32kb"})
+    public String payload;
+
+    private P2PMessageProtocol.Message message;
+    private String json;
+    private byte[] frame;
+
+    @Setup
+    public void setup() throws IOException {
+        message = switch (payload) {
+            case "chat_short" -> P2PMessageProtocol.createChatMessage(
+                    Payloads.FROM, Payloads.CONVERSATION_ID, Payloads.shortChat(), Payloads.id());
+            case "chat_4kb" -> P2PMessageProtocol.createChatMessage(
+                    Payloads.FROM, Payloads.CONVERSATION_ID, Payloads.longChat(), Payloads.id());
+            case "file_chunk_32kb" -> P2PMessageProtocol.createFileChunk(
+                    Payloads.FROM, Payloads.TO, Payloads.id(), 0, Payloads.fileChunk(), Payloads.TOTAL_CHUNKS,
+                    Payloads.FILE_NAME, Payloads.FILE_SIZE, Payloads.CONVERSATION_ID, Payloads.id(), Payloads.CHECKSUM);
+            default -> throw new IllegalArgumentException("Unknown payload: " + payload);
+        };
+        json = P2PMessageProtocol.toJson(message);
+        frame = BinaryFrameCodec.encode(message);
+    }
+
+    // ===== JSON =====
+
+    @Benchmark
+    public Object parse() {
+        P2PMessageProtocol.Message msg = P2PMessageProtocol.parse(json);
+        return P2PPayloads.bodyOf(msg);
+    }
+
+    @Benchmark
+    public Object parseGson() {
+        P2PMessageProtocol.Message msg = P2PMessageProtocol.parseGeneric(json);
+        return msg.data;
+    }
+
+    @Benchmark
+    public String toJson() {
+        return P2PMessageProtocol.toJson(message);
+    }
+
+    // ===== BINARY FRAME =====
+
+    @Benchmark
+    public byte[] binaryEncode() throws IOException {
+        return BinaryFrameCodec.encode(message);
+    }
+
+    @Benchmark
+    public Object binaryRead() throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        P2PMessageProtocol.Message msg = BinaryFrameCodec.read(in);
+        return P2PPayloads.bodyOf(msg);
+    }
+}
@@ -0,0 +1,63 @@
+package benchmark;
+
+import util.MessageId;
+
+import java.util.Random;
+
+/**
+ * Dữ liệu mẫu dùng chung cho các benchmark (cố định seed để các lần chạy so sánh được)
+ */
+final class Payloads {
+
+    static final Integer FROM = 1001;
+    static final Integer TO = 1002;
+    static final Integer CONVERSATION_ID = 42;
+    static final String FILE_NAME = "report-2024.pdf";
+    static final long FILE_SIZE = 5L * 1024 * 1024;
+    static final int TOTAL_CHUNKS = 160;
+    static final String CHECKSUM = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+    static final String SDP = "v=0\r\no=- 4611731400430051336 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n"
+            + "m=audio 9 UDP/TLS/RTP/SAVPF 111\r\nc=IN IP4 0.0.0.0\r\na=rtpmap:111 opus/48000/2\r\n";
+
+    private Payloads() {}
+
+    /**
+     * Chat ngắn kiểu tin nhắn thường ngày (có dấu tiếng Việt)
+     */
+    static String shortChat() {
+        return "Chào bạn, tối nay 8h họp nhóm nhé!";
+    }
+
+    /**
+     * Chat khoảng 4 KB (đoạn văn dài / code dán vào)
+     */
+    static String longChat() {
+        StringBuilder sb = new StringBuilder(4096);
+        String line = "Lorem ipsum dolor sit amet, \"quoted\" <tag> & tiếng Việt có dấu.\n";
+        while (sb.length() + line.length() <= 4096) {
+            sb.append(line);
+        }
+        return sb.toString();
+    }
+
+    static String chat(String size) {
+        return switch (size) {
+            case "short" -> shortChat();
+            case "4kb" -> longChat();
+            default -> throw new IllegalArgumentException("Unknown chat size: " + size);
+        };
+    }
+
+    /**
+     * Chunk file 32 KB, nội dung random (không nén được, giống file thật đã nén)
+     */
+    static byte[] fileChunk() {
+        byte[] data = new byte[32 * 1024];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    static String id() {
+        return MessageId.nextString();
+    }
+}
@@ -40,6 +40,7 @@ public class ChatClientMain {
         
         // 1. Khởi động P2P Server (lắng nghe incoming connections)
         p2pServer = new P2PServer(p2pPort);
+        p2pServer.setLocalUserId(userId);
         p2pServer.start();
 
         // 2. Khởi tạo P2P Manager
@@ -50,6 +51,9 @@ public class ChatClientMain {
             // Forward incoming messages tới P2PManager
             p2pManager.onMessageReceived(message);
         });
+        p2pServer.setAcceptedTypes(p2pManager.getHandledTypes());
+        // Peer dial tới mình → dùng luôn kết nối đó để gửi (không mở thêm kết nối ngược lại)
+        p2pServer.setConnectionListener(p2pManager::adoptConnection);
         
         // 4. Set event listener cho P2PManager
         p2pManager.setEventListener(new P2PManager.P2PEventListener() {
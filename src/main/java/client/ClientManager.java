@@ -88,6 +88,7 @@ public class ClientManager {
 	private boolean startP2PServer() {
 		 try {
 		        p2pServer = new P2PServer(p2pPort);
+		        p2pServer.setLocalUserId(userId);
 		        p2pServer.start();
 		        
 		      
@@ -108,6 +109,9 @@ public class ClientManager {
         p2pServer.setMessageHandler((fromUserId, message) -> {
             p2pManager.onMessageReceived(message);
         });
+        p2pServer.setAcceptedTypes(p2pManager.getHandledTypes());
+        // Peer dial tới mình → dùng luôn kết nối đó để gửi (không mở thêm kết nối ngược lại)
+        p2pServer.setConnectionListener(p2pManager::adoptConnection);
         
         System.out.println("✅ P2P Manager initialized");
 	}
@@ -195,21 +199,14 @@ public class ClientManager {
     * Kết nối P2P tới peer (async để không block)
     */
    private void connectToPeerAsync(Integer peerId) {
-       new Thread(() -> {
-           try {
-               // Chờ một chút để peer khởi động P2P server của họ
-               Thread.sleep(1000);
-               
-               boolean connected = p2pManager.connectToPeer(peerId);
-               if (connected) {
-                   System.out.println("✅ P2P connected to " + getUserName(peerId));
-               } else {
-                   System.out.println("⚠️ Failed to connect P2P to " + getUserName(peerId));
-               }
-           } catch (InterruptedException e) {
-               Thread.currentThread().interrupt();
+       // P2PManager dial trên thread riêng, dùng chung lần dial đang chạy; không tới được → backoff, lần gửi sau thử lại
+       p2pManager.connectToPeerAsync(peerId).whenComplete((conn, error) -> {
+           if (error == null) {
+               System.out.println("✅ P2P connected to " + getUserName(peerId));
+           } else {
+               System.out.println("⚠️ Failed to connect P2P to " + getUserName(peerId));
            }
-       }, "p2p-connector-" + peerId).start();
+       });
    }
     
     
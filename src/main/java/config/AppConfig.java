@@ -23,6 +23,80 @@ public class AppConfig {
     public static final String P2P_HOST = "localhost";
     public static final int P2P_PORT = 6000;
 
+    // Binary frame cho P2P (bắt tay với peer khi mở kết nối, peer cũ vẫn dùng JSON)
+    // Tắt bằng -Dappchat.p2p.binary=false
+    public static final boolean P2P_BINARY_FRAMES =
+            Boolean.parseBoolean(System.getProperty("appchat.p2p.binary", "true"));
+
+    // Nén DEFLATE binary frame theo từng kết nối (chỉ bật khi cả 2 peer hỗ trợ)
+    // Tắt bằng -Dappchat.p2p.compress=false
+    public static final boolean P2P_COMPRESSION =
+            Boolean.parseBoolean(System.getProperty("appchat.p2p.compress", "true"));
+
+    // Số chunk file gửi đi chưa được ACK tối đa (quảng bá trong HELLO, chặn trên cửa sổ của bên gửi)
+    public static final int P2P_FILE_WINDOW_CHUNKS =
+            Integer.getInteger("appchat.p2p.fileWindow", 64);
+    // Cửa sổ lúc bắt đầu gửi (tăng dần theo ACK, xem FileSendWindow)
+    public static final int P2P_FILE_INITIAL_WINDOW_CHUNKS = 4;
+    // Không nhận được FILE_CHUNK_ACK nào quá lâu → báo lỗi gửi file
+    public static final long P2P_FILE_STALL_TIMEOUT_MS =
+            Long.getLong("appchat.p2p.fileStallMs", 30_000L);
+    // Chờ receiver trả lời FILE_RESUME tối đa N ms, quá hạn → gửi lại cả file
+    public static final long P2P_FILE_RESUME_TIMEOUT_MS =
+            Long.getLong("appchat.p2p.fileResumeMs", 5_000L);
+
+    // Gom message nhỏ thành BATCH: chờ tối đa N micro giây để gom các message gửi liền nhau
+    // 0 = tắt (-Dappchat.p2p.batchLingerMicros=0)
+    public static final long P2P_BATCH_LINGER_MICROS =
+            Long.getLong("appchat.p2p.batchLingerMicros", 200L);
+    public static final int P2P_BATCH_MAX_MESSAGES = 64;
+    // Số message chờ writer của 1 kết nối P2P tối đa; đầy → thread gửi chờ (tối đa 5s rồi báo lỗi)
+    public static final int P2P_WRITER_QUEUE_CAPACITY = 1024;
+    // Làn BULK (dữ liệu file): byte chờ tối đa / kết nối, và byte ghi tối đa mỗi lượt trước khi xét lại chat/ACK
+    public static final int P2P_BULK_QUEUE_BYTES = 1024 * 1024;
+    public static final int P2P_BULK_BYTES_PER_TURN = 64 * 1024;
+
+    // Xử lý message P2P nhận được: pool dùng chung cho mọi peer, mỗi peer giữ đúng thứ tự (PeerDispatcher)
+    public static final int P2P_DISPATCH_THREADS =
+            Integer.getInteger("appchat.p2p.dispatchThreads", Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    // Mở kết nối P2P (PeerConnector): timeout 1 lần dial; peer không tới được → thử lại sau backoff (x2 mỗi lần lỗi)
+    public static final long P2P_CONNECT_TIMEOUT_MS = 5000;
+    public static final long P2P_CONNECT_BACKOFF_MS = 1000;
+    public static final long P2P_CONNECT_BACKOFF_MAX_MS = 60_000;
+
+    // Số kết nối P2P giữ cùng lúc tối đa (P2PManager); vượt → đóng kết nối lâu không dùng nhất
+    public static final int P2P_MAX_CONNECTIONS =
+            Integer.getInteger("appchat.p2p.maxConnections", 64);
+
+    // Heartbeat (PeerHeartbeat): PING mỗi kết nối 1 lần / interval để đo RTT và phát hiện peer chết
+    // Không nhận được gì quá P2P_DEAD_TIMEOUT_MS → đóng, báo mất kết nối
+    // Không có message (ngoài PING/PONG) quá P2P_IDLE_TIMEOUT_MS → đóng lặng lẽ, lần gửi sau tự kết nối lại (0 = không đóng)
+    public static final long P2P_HEARTBEAT_INTERVAL_MS =
+            Long.getLong("appchat.p2p.heartbeatMs", 5000L);
+    public static final long P2P_DEAD_TIMEOUT_MS =
+            Long.getLong("appchat.p2p.deadTimeoutMs", 15_000L);
+    public static final long P2P_IDLE_TIMEOUT_MS =
+            Long.getLong("appchat.p2p.idleTimeoutMs", 10 * 60 * 1000L);
+
+    // P2PServer dạng NIO: vài selector thread cho mọi kết nối đến, xử lý message trên pool của PeerDispatcher
+    // Về lại 1 thread / kết nối bằng -Dappchat.p2p.nio=false
+    public static final boolean P2P_NIO_SERVER =
+            Boolean.parseBoolean(System.getProperty("appchat.p2p.nio", "true"));
+    public static final int P2P_NIO_SELECTORS =
+            Integer.getInteger("appchat.p2p.nioSelectors", 1);
+    // Message đã decode chờ xử lý tối đa / kết nối; vượt → ngừng đọc kết nối đó tới khi worker xử lý kịp
+    public static final int P2P_NIO_MAX_INBOX = 256;
+    // Byte chờ ghi tối đa / kết nối; vượt → thread gửi chờ (backpressure)
+    public static final int P2P_NIO_MAX_OUTBOUND_BYTES = 4 * 1024 * 1024;
+
+    // Thread cho các vòng lặp theo kết nối (reader/writer/handler, gửi file, audio, ...)
+    // platform (mặc định) hoặc virtual: -Dappchat.threads=virtual
+    public static final String THREAD_MODE = System.getProperty("appchat.threads", "platform");
+    // Chế độ virtual: log khi virtual thread bị ghim vào carrier lâu hơn ngưỡng này (0 = tắt)
+    public static final long VIRTUAL_PINNED_THRESHOLD_MS =
+            Long.getLong("appchat.threads.pinnedThresholdMs", 20L);
+
     // JWT / Token config
     public static final long JWT_EXPIRATION_MS = 24 * 60 * 60 * 1000; // 24h
     public static final String JWT_SECRET = "ChangeThisSecretKey";
@@ -5,14 +5,13 @@ import model.Message;
 import model.Users;
 import service.ChatService;
 import network.p2p.P2PManager;
-import network.p2p.PeerConnection;
 import network.p2p.PeerInfo;
 import network.p2p.PeerDiscoveryService;
+import util.MessageId;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.UUID;
 import java.util.function.Consumer;
 
 /**
@@ -207,7 +206,7 @@ public class ChatController {
      * Wrapper method cho backwards compatibility
      */
     public void sendMessage(Integer conversationId, String content, MessageCallback callback) {
-        String clientMessageId = UUID.randomUUID().toString();
+        String clientMessageId = MessageId.nextString();
         sendMessageWithClientId(conversationId, content, clientMessageId, callback);
     }
 
@@ -261,7 +260,7 @@ public class ChatController {
     public void saveFileMessage(Integer conversationId, Integer senderId, 
                                 String fileName, String fileUrl, 
                                 Consumer<Message> callback) {
-        String clientMessageId = UUID.randomUUID().toString();
+        String clientMessageId = MessageId.nextString();
         saveFileMessageWithClientId(conversationId, senderId, fileName, fileUrl, 
                                    clientMessageId, callback);
     }
@@ -283,15 +282,13 @@ public class ChatController {
 
             // ✅ Send MESSAGE_SEEN request to sender via P2P
             // Sender sẽ nhận và reply MESSAGE_SEEN_ACK
-            String seenJson = protocol.P2PMessageProtocol.buildMessageSeen(
+            protocol.P2PMessageProtocol.Message seen = protocol.P2PMessageProtocol.createMessageSeen(
                 currentUserId,
                 message.getConversation().getId(),
                 messageId
             );
             
-            PeerConnection conn = p2pManager.getConnection(message.getSender().getId());
-            if (conn != null && conn.isTcpConnected()) {
-                conn.sendTcp(seenJson);
+            if (p2pManager.send(message.getSender().getId(), seen)) {
                 System.out.println("✅ Sent MESSAGE_SEEN request for message: " + messageId);
             }
 
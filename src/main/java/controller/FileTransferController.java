@@ -8,16 +8,17 @@ import model.FileAttachment;
 import model.FileAttachment.FileStatus;
 import model.Message;
 import model.Users;
+import util.ChunkFileSink;
+import util.FileChecksumUtil;
+import util.MessageId;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
-import java.util.UUID;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -89,6 +90,10 @@ public class FileTransferController {
         boolean isUpload;
         Integer messageId;
         Integer fileAttachmentId;
+        ChunkFileSink sink; // receiver: file tạm đang ghi (mở từ chunk đầu tới khi xong / hủy)
+        int totalChunks;
+        MessageDigest digest; // receiver: SHA-256 của hashedChunks chunk đầu (null: chunk đến lệch thứ tự / nhận tiếp)
+        int hashedChunks;
         volatile boolean completed = false;
         
         FileTransferContext(String fileId, Integer conversationId, Integer senderId, 
@@ -113,6 +118,8 @@ public class FileTransferController {
         this.chatController = chatController;
         
         initializeStorageDirectories();
+        // Bitmap chunk đã nhận của file đang tải dở → gửi lại chỉ nhận phần thiếu
+        p2pManager.setPartialTransferDirectory(Paths.get(DOWNLOAD_DIR, ".partial"));
     }
 
     /**
@@ -141,16 +148,14 @@ public class FileTransferController {
 
         try {
             // 1. Generate unique IDs
-            String fileId = UUID.randomUUID().toString();
-            String clientMessageId = UUID.randomUUID().toString();
+            String fileId = MessageId.nextString();
+            String clientMessageId = MessageId.nextString();
             
             // 2. Copy file to upload directory
+            // 3. Calculate checksum BEFORE sending (cùng lần đọc với copy, FileTransferManager dùng lại)
             String storedFileName = fileId + "_" + file.getName();
             Path storagePath = Paths.get(UPLOAD_DIR, storedFileName);
-            Files.copy(file.toPath(), storagePath, StandardCopyOption.REPLACE_EXISTING);
-            
-            // 3. Calculate checksum BEFORE sending
-            String checksum = calculateChecksum(storagePath.toFile());
+            String checksum = FileChecksumUtil.copyAndSha256(file.toPath(), storagePath);
             System.out.println("✅ File checksum calculated: " + checksum);
             
             // 4. Create message in DB (PENDING)
@@ -205,7 +210,8 @@ public class FileTransferController {
                 toUserId, 
                 storagePath.toFile(), 
                 conversationId, 
-                clientMessageId
+                clientMessageId,
+                checksum
             );
             
             System.out.println("✅ File send initiated:");
@@ -285,49 +291,24 @@ public class FileTransferController {
      * Calculate SHA-256 checksum of file
      */
     private String calculateChecksum(File file) throws Exception {
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                digest.update(buffer, 0, bytesRead);
-            }
-        }
-        
-        byte[] hashBytes = digest.digest();
-        
-        // Convert to hex string
-        StringBuilder sb = new StringBuilder();
-        for (byte b : hashBytes) {
-            sb.append(String.format("%02x", b));
-        }
-        
-        return sb.toString();
+        return FileChecksumUtil.sha256(file);
     }
     
     /**
      * Verify file checksum
      */
-    private boolean verifyChecksum(File file, String expectedChecksum) {
-        try {
-            String actualChecksum = calculateChecksum(file);
-            boolean matches = actualChecksum.equals(expectedChecksum);
-            
-            if (matches) {
-                System.out.println("✅ Checksum verified: " + actualChecksum);
-            } else {
-                System.err.println("❌ Checksum mismatch!");
-                System.err.println("   Expected: " + expectedChecksum);
-                System.err.println("   Actual:   " + actualChecksum);
-            }
-            
-            return matches;
-        } catch (Exception e) {
-            System.err.println("❌ Checksum verification failed: " + e.getMessage());
-            return false;
+    private boolean verifyChecksum(String actualChecksum, String expectedChecksum) {
+        boolean matches = actualChecksum.equals(expectedChecksum);
+        
+        if (matches) {
+            System.out.println("✅ Checksum verified: " + actualChecksum);
+        } else {
+            System.err.println("❌ Checksum mismatch!");
+            System.err.println("   Expected: " + expectedChecksum);
+            System.err.println("   Actual:   " + actualChecksum);
         }
+        
+        return matches;
     }
 
     // ===== HELPER METHODS =====
@@ -377,11 +358,16 @@ public class FileTransferController {
             
             // First chunk - initialize context
             if (chunkIndex == 0) {
+                if (context != null) {
+                    closeSink(context);
+                }
                 context = new FileTransferContext(
                     fileId, conversationId, fromUserId, currentUserId,
                     fileName, fileSize, clientMessageId, false
                 );
                 context.checksum = expectedChecksum; // Store expected checksum
+                context.totalChunks = totalChunks;
+                context.digest = FileChecksumUtil.newSha256();
                 pendingTransfers.put(fileId, context);
                 
                 System.out.println("📥 Receiving file: " + fileName);
@@ -396,17 +382,22 @@ public class FileTransferController {
                 return;
             }
             
-            // Write chunk to temp file
-            String tempFileName = fileId + "_" + fileName;
-            Path tempPath = Paths.get(DOWNLOAD_DIR, tempFileName);
-            
-            if (chunkIndex == 0) {
-                // Create new file
-                Files.write(tempPath, chunkData);
-            } else {
-                // Append to existing file
-                Files.write(tempPath, chunkData, 
-                    java.nio.file.StandardOpenOption.APPEND);
+            // Write chunk to temp file (mở 1 lần, ghi đúng vị trí của chunk)
+            if (context.sink == null) {
+                String tempFileName = fileId + "_" + context.fileName;
+                Path tempPath = Paths.get(DOWNLOAD_DIR, tempFileName);
+                context.sink = ChunkFileSink.open(tempPath, context.fileSize, FileTransferManager.CHUNK_SIZE);
+            }
+            context.sink.write(chunkIndex, chunkData);
+
+            // Tính checksum dần theo thứ tự chunk → lúc nhận xong không phải đọc lại cả file
+            if (context.digest != null) {
+                if (chunkIndex == context.hashedChunks) {
+                    context.digest.update(chunkData);
+                    context.hashedChunks++;
+                } else if (chunkIndex > context.hashedChunks) {
+                    context.digest = null; // Lệch thứ tự → tính lại từ file lúc nhận xong
+                }
             }
             
             // Calculate progress
@@ -419,16 +410,67 @@ public class FileTransferController {
         }
     }
 
+    /**
+     * Sender gửi lại file đang tải dở (FILE_RESUME, fileId mới, cùng clientMessageId)
+     * → đổi file tạm cũ theo fileId mới, nhận tiếp các chunk còn thiếu (ghi theo vị trí, chunk đã có giữ nguyên)
+     * @return kích thước file tạm, -1 nếu không còn file tạm (nhận lại cả file)
+     */
+    public long handleFileResume(Integer fromUserId, String previousFileId, String fileId, String fileName,
+                                 Long fileSize, Integer conversationId, String clientMessageId,
+                                 String expectedChecksum) {
+        FileTransferContext previous = pendingTransfers.remove(previousFileId);
+        if (previous != null) {
+            closeSink(previous);
+        }
+        String previousName = previous != null ? previous.fileName : fileName;
+        Path previousPath = Paths.get(DOWNLOAD_DIR, previousFileId + "_" + previousName);
+        Path tempPath = Paths.get(DOWNLOAD_DIR, fileId + "_" + fileName);
+
+        try {
+            if (!Files.exists(previousPath)) {
+                return -1;
+            }
+            long kept = Files.size(previousPath);
+            if (!previousPath.equals(tempPath)) {
+                Files.move(previousPath, tempPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            FileTransferContext context = new FileTransferContext(
+                fileId, conversationId, fromUserId, currentUserId,
+                fileName, fileSize, clientMessageId, false
+            );
+            context.checksum = expectedChecksum;
+            context.totalChunks = (int) Math.ceil((double) fileSize / FileTransferManager.CHUNK_SIZE);
+            pendingTransfers.put(fileId, context);
+
+            System.out.println("📥 Resuming file: " + fileName + " (" + formatFileSize(kept) + " on disk)");
+            return kept;
+        } catch (IOException e) {
+            System.err.println("❌ Cannot resume file " + fileName + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
     /**
  * Called when file transfer completes
  */
 public void handleFileComplete(String fileId) {
+    handleFileComplete(fileId, null);
+}
+
+/**
+ * @param expectedChecksum checksum sender gửi kèm FILE_COMPLETE (null → dùng checksum ở chunk đầu)
+ */
+public void handleFileComplete(String fileId, String expectedChecksum) {
     FileTransferContext context = pendingTransfers.get(fileId);
     
     if (context == null) {
         System.err.println("⚠️ FILE_COMPLETE but context missing: " + fileId);
         return;
     }
+    if (expectedChecksum != null) {
+        context.checksum = expectedChecksum;
+    }
     
     // ✅ GUARD: chỉ cho chạy 1 lần
     synchronized (context) {
@@ -441,6 +483,7 @@ public void handleFileComplete(String fileId) {
     
     if (!context.isUpload) {
         // ===== RECEIVER: Verify, save, and CREATE MESSAGE =====
+        closeSink(context);
         try {
             String tempFileName = fileId + "_" + context.fileName;
             Path tempPath = Paths.get(DOWNLOAD_DIR, tempFileName);
@@ -449,13 +492,15 @@ public void handleFileComplete(String fileId) {
                 throw new IOException("File not found: " + tempPath);
             }
             
-            // Calculate checksum of received file
-            String receivedChecksum = calculateChecksum(tempPath.toFile());
+            // Calculate checksum of received file (đã tính dần lúc ghi; nhận lệch thứ tự / nhận tiếp → đọc file 1 lần)
+            String receivedChecksum = context.digest != null && context.hashedChunks == context.totalChunks
+                    ? FileChecksumUtil.toHex(context.digest.digest())
+                    : calculateChecksum(tempPath.toFile());
             
             // Verify checksum if provided
             boolean checksumValid = true;
             if (context.checksum != null && !context.checksum.isEmpty()) {
-                checksumValid = verifyChecksum(tempPath.toFile(), context.checksum);
+                checksumValid = verifyChecksum(receivedChecksum, context.checksum);
                 
                 if (!checksumValid) {
                     throw new IOException("Checksum verification failed! File may be corrupted.");
@@ -601,6 +646,7 @@ public void handleFileComplete(String fileId) {
             
             if (!isUpload) {
                 // Clean up incomplete download
+                closeSink(context);
                 try {
                     String tempFileName = fileId + "_" + context.fileName;
                     Path tempPath = Paths.get(DOWNLOAD_DIR, tempFileName);
@@ -622,6 +668,9 @@ public void handleFileComplete(String fileId) {
 
     public void handleFileError(String fileId, String error) {
         FileTransferContext context = pendingTransfers.remove(fileId);
+        if (context != null) {
+            closeSink(context);
+        }
         
         if (context != null && context.fileAttachmentId != null) {
             // Update status to FAILED
@@ -642,15 +691,13 @@ public void handleFileComplete(String fileId) {
      */
     private void sendFileAck(String fileId, Integer toUserId) {
         try {
-            String ackJson = protocol.P2PMessageProtocol.buildFileAck(
+            protocol.P2PMessageProtocol.Message ack = protocol.P2PMessageProtocol.createFileAck(
                 currentUserId,
                 toUserId,
                 fileId
             );
             
-            network.p2p.PeerConnection conn = p2pManager.getConnection(toUserId);
-            if (conn != null && conn.isTcpConnected()) {
-                conn.sendTcp(ackJson);
+            if (p2pManager.send(toUserId, ack)) {
                 System.out.println("✅ Sent FILE_ACK for: " + fileId);
             }
         } catch (Exception e) {
@@ -658,21 +705,30 @@ public void handleFileComplete(String fileId) {
         }
     }
     
+    private static void closeSink(FileTransferContext context) {
+        ChunkFileSink sink = context.sink;
+        if (sink == null) return;
+        context.sink = null;
+        try {
+            sink.close();
+        } catch (IOException e) {
+            System.err.println("⚠️ Error closing file " + sink.getPath() + ": " + e.getMessage());
+        }
+    }
+
     /**
      * ✅ Send FILE_NACK to sender
      */
     private void sendFileNack(String fileId, Integer toUserId, String reason) {
         try {
-            String nackJson = protocol.P2PMessageProtocol.buildFileNack(
+            protocol.P2PMessageProtocol.Message nack = protocol.P2PMessageProtocol.createFileNack(
                 currentUserId,
                 toUserId,
                 fileId,
                 reason
             );
             
-            network.p2p.PeerConnection conn = p2pManager.getConnection(toUserId);
-            if (conn != null && conn.isTcpConnected()) {
-                conn.sendTcp(nackJson);
+            if (p2pManager.send(toUserId, nack)) {
                 System.out.println("✅ Sent FILE_NACK for: " + fileId);
             }
         } catch (Exception e) {
@@ -714,6 +770,7 @@ public void handleFileComplete(String fileId) {
     // ===== CLEANUP =====
     
     public void shutdown() {
+        pendingTransfers.values().forEach(FileTransferController::closeSink);
         pendingTransfers.clear();
         System.out.println("✅ FileTransferController shutdown");
     }
@@ -1,12 +1,14 @@
 package network.p2p;
 
 import protocol.P2PMessageProtocol;
+import protocol.P2PPayloads;
+import util.AppThreads;
+import util.MessageId;
 
 import javax.sound.sampled.*;
 import java.io.ByteArrayOutputStream;
 import java.net.*;
 import java.util.Map;
-import java.util.UUID;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -57,24 +59,22 @@ public class AudioCallManager {
      * Bắt đầu voice call với peer
      */
     public String startCall(Integer toUserId) throws Exception {
-        String callId = UUID.randomUUID().toString();
+        String callId = MessageId.nextString();
         
         ActiveCall call = new ActiveCall(callId, toUserId, true);
         activeCalls.put(callId, call);
 
         // Gửi audio request
-        String json = P2PMessageProtocol.buildAudioRequest(
+        P2PMessageProtocol.Message outgoing = P2PMessageProtocol.createAudioRequest(
             p2pManager.getLocalUserId(),
             toUserId,
             callId
         );
         
-        PeerConnection conn = p2pManager.getConnection(toUserId);
-        if (conn == null || !conn.isTcpConnected()) {
-            throw new Exception("Not connected to peer: " + toUserId);
+        if (!p2pManager.send(toUserId, outgoing)) {
+            activeCalls.remove(callId);
+            throw new Exception("Cannot reach peer: " + toUserId);
         }
-        
-        conn.sendTcp(json);
         System.out.println("📞 Sent call request to user: " + toUserId);
         
         return callId;
@@ -83,9 +83,8 @@ public class AudioCallManager {
     /**
      * Xử lý call accept từ peer
      */
-    public void handleCallAccept(P2PMessageProtocol.Message msg) {
-        String callId = (String) msg.data.get("callId");
-        Number udpPort = (Number) msg.data.get("udpPort");
+    public void handleCallAccept(Integer fromUser, P2PPayloads.AudioAccept accept) {
+        String callId = accept.callId();
         
         ActiveCall call = activeCalls.get(callId);
         if (call == null) {
@@ -93,16 +92,16 @@ public class AudioCallManager {
             return;
         }
 
-        call.peerUdpPort = udpPort.intValue();
+        call.peerUdpPort = accept.udpPort();
         call.status = CallStatus.ACTIVE;
         
         if (listener != null) {
-            listener.onCallAccepted(msg.from, callId);
+            listener.onCallAccepted(fromUser, callId);
         }
 
         // Bắt đầu audio streaming
         try {
-            PeerInfo peer = network.p2p.PeerDiscoveryService.getInstance().getPeer(msg.from);
+            PeerInfo peer = network.p2p.PeerDiscoveryService.getInstance().getPeer(fromUser);
             if (peer != null) {
                 call.peerAddress = InetAddress.getByName(peer.getIp());
                 startAudioStreaming(call);
@@ -118,14 +117,12 @@ public class AudioCallManager {
     /**
      * Xử lý incoming call request
      */
-    public void handleCallRequest(P2PMessageProtocol.Message msg) {
-        String callId = (String) msg.data.get("callId");
-        
-        ActiveCall call = new ActiveCall(callId, msg.from, false);
+    public void handleCallRequest(Integer fromUser, String callId) {
+        ActiveCall call = new ActiveCall(callId, fromUser, false);
         activeCalls.put(callId, call);
 
         if (listener != null) {
-            listener.onCallRequested(msg.from, callId);
+            listener.onCallRequested(fromUser, callId);
         }
     }
 
@@ -147,17 +144,14 @@ public class AudioCallManager {
             call.status = CallStatus.ACTIVE;
 
             // Gửi accept với UDP port
-            String json = P2PMessageProtocol.buildAudioAccept(
+            P2PMessageProtocol.Message outgoing = P2PMessageProtocol.createAudioAccept(
                 p2pManager.getLocalUserId(),
                 call.peerId,
                 callId,
                 udpPort
             );
             
-            PeerConnection conn = p2pManager.getConnection(call.peerId);
-            if (conn != null) {
-                conn.sendTcp(json);
-            }
+            p2pManager.send(call.peerId, outgoing);
 
             // Lấy peer address
             PeerInfo peer = network.p2p.PeerDiscoveryService.getInstance().getPeer(call.peerId);
@@ -193,17 +187,14 @@ public class AudioCallManager {
 
         call.status = CallStatus.ENDED;
         
-        String json = P2PMessageProtocol.buildAudioReject(
+        P2PMessageProtocol.Message outgoing = P2PMessageProtocol.createAudioReject(
             p2pManager.getLocalUserId(),
             call.peerId,
             callId,
             reason
         );
         
-        PeerConnection conn = p2pManager.getConnection(call.peerId);
-        if (conn != null) {
-            conn.sendTcp(json);
-        }
+        p2pManager.send(call.peerId, outgoing);
         
         if (listener != null) {
             listener.onCallRejected(call.peerId, callId, reason);
@@ -257,12 +248,10 @@ public class AudioCallManager {
         call.running.set(true);
 
         // Thread gửi audio
-        call.senderThread = new Thread(() -> audioSendLoop(call), "audio-sender-" + call.callId);
-        call.senderThread.start();
+        call.senderThread = AppThreads.start("audio-sender-" + call.callId, false, () -> audioSendLoop(call));
 
         // Thread nhận audio
-        call.receiverThread = new Thread(() -> audioReceiveLoop(call), "audio-receiver-" + call.callId);
-        call.receiverThread.start();
+        call.receiverThread = AppThreads.start("audio-receiver-" + call.callId, false, () -> audioReceiveLoop(call));
 
         System.out.println("✅ Audio streaming started");
         
@@ -337,16 +326,13 @@ public class AudioCallManager {
         call.status = CallStatus.ENDED;
 
         // Gửi end message
-        String json = P2PMessageProtocol.buildAudioEnd(
+        P2PMessageProtocol.Message outgoing = P2PMessageProtocol.createAudioEnd(
             p2pManager.getLocalUserId(),
             call.peerId,
             callId
         );
         
-        PeerConnection conn = p2pManager.getConnection(call.peerId);
-        if (conn != null) {
-            conn.sendTcp(json);
-        }
+        p2pManager.send(call.peerId, outgoing);
 
         // Cleanup audio resources
         cleanup();
@@ -400,6 +386,13 @@ public class AudioCallManager {
         // Note: không đóng udpSocket ở đây vì có thể có nhiều calls
     }
 
+    /**
+     * Đang gọi / chờ gọi với peer (P2PManager không đóng kết nối này khi dọn pool)
+     */
+    boolean hasActiveCall(Integer peerId) {
+        return activeCalls.values().stream().anyMatch(c -> peerId.equals(c.peerId));
+    }
+
     public void shutdown() {
         // End all active calls
         activeCalls.keySet().forEach(this::endCall);
@@ -0,0 +1,259 @@
+package network.p2p;
+
+import config.AppConfig;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * FileSendWindow - Cửa sổ trượt của 1 file đang gửi (số chunk đã gửi mà receiver chưa FILE_CHUNK_ACK)
+ * - Gửi lần lượt các chunk trong plan (tăng dần: cả file, hoặc chỉ chunk còn thiếu sau FILE_RESUME);
+ *   vị trí trong plan gọi là seq, cửa sổ tính theo seq
+ * - Receiver ACK tích lũy: mọi chunk < nextChunk đã ghi xong → đổi ra seq bằng tìm nhị phân trong plan
+ * - Cửa sổ kiểu AIMD như TCP: slow start (+1 / chunk được ACK) tới ssthresh, sau đó +1 / cửa sổ;
+ *   quá RTO không có ACK mới → coi như nghẽn: ssthresh = cwnd / 2, cwnd = ssthresh, RTO x2,
+ *   gửi lại chunk chưa ACK đầu tiên (receiver bỏ chunk hỏng / chunk tới trước metadata);
+ *   3 ACK trùng liền nhau (receiver nhận chunk sau nhưng vẫn thiếu chunk này) → gửi lại ngay, không chờ RTO
+ * - RTT đo theo chunk (gửi → ACK, bỏ chunk gửi lại) bằng PeerLinkStats; RTT vượt xa RTT nhỏ nhất
+ *   (hàng đợi phía trước đang dài ra) → thu nhỏ dần thay vì tăng
+ * - Không vượt maxWindow (fileWindow peer quảng bá trong HELLO)
+ * - FILE_CHUNK_NACK (chunk hỏng) → gửi lại riêng chunk đó (pollResend), các chunk sau receiver vẫn nhận
+ * Thread gửi file gọi awaitSlot/awaitAllAcked/pollResend/onSent/rewind, thread dispatch của peer gọi onAck/onNack.
+ */
+class FileSendWindow {
+    private static final double MIN_WINDOW = 2;
+    // RTT > 2 x RTT nhỏ nhất + QUEUE_DELAY_SLACK → đang xếp hàng (loopback/LAN có RTT rất nhỏ nên cần phần cộng thêm)
+    private static final long QUEUE_DELAY_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int MAX_BACKOFF = 64;
+    private static final int DUP_ACK_THRESHOLD = 3;
+
+    private final int maxWindow;
+    private final int[] plan;
+    private final long[] sentAtNanos; // Thời điểm gửi, theo seq % maxWindow
+    private final PeerLinkStats rtt = new PeerLinkStats();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    private double cwnd;
+    private double ssthresh;
+    private int acked = 0;            // Mọi seq < acked đã được ACK
+    private int sentUpTo = 0;         // Mọi seq < sentUpTo đã gửi ít nhất 1 lần
+    private int resentUpTo = 0;       // Seq < resentUpTo có thể đã gửi 2 lần → không lấy mẫu RTT (Karn)
+    private long minRttNanos = Long.MAX_VALUE;
+    private int backoff = 1;
+    private int dupAcks = 0;
+    private long lastProgressNanos = System.nanoTime();
+    private long lastAckNanos = System.nanoTime();
+    private boolean aborted = false;
+    private final BitSet resend = new BitSet(); // Seq receiver báo hỏng, chờ gửi lại
+
+    /**
+     * @param plan chunkIndex cần gửi, tăng dần
+     */
+    FileSendWindow(int maxWindow, int[] plan) {
+        this.plan = plan;
+        this.maxWindow = (int) Math.max(MIN_WINDOW, maxWindow);
+        this.sentAtNanos = new long[this.maxWindow];
+        this.cwnd = Math.max(MIN_WINDOW, Math.min(AppConfig.P2P_FILE_INITIAL_WINDOW_CHUNKS, this.maxWindow));
+        this.ssthresh = this.maxWindow;
+    }
+
+    /**
+     * Chờ tới khi cửa sổ cho phép gửi seq
+     * @return false nếu hết RTO mà không có ACK mới (đã thu cửa sổ), có chunk cần gửi lại hoặc bị abort
+     *         → caller kiểm tra lại rồi gọi tiếp
+     * @throws IOException không có ACK nào quá P2P_FILE_STALL_TIMEOUT_MS
+     */
+    boolean awaitSlot(int seq) throws IOException, InterruptedException {
+        return await(() -> seq < acked + (int) cwnd);
+    }
+
+    /**
+     * Chờ tới khi receiver ACK hết plan (cùng quy ước trả về với awaitSlot)
+     */
+    boolean awaitAllAcked() throws IOException, InterruptedException {
+        return await(() -> acked >= plan.length);
+    }
+
+    void onSent(int seq) {
+        lock.lock();
+        try {
+            sentAtNanos[seq % maxWindow] = System.nanoTime();
+            sentUpTo = Math.max(sentUpTo, seq + 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * FILE_CHUNK_ACK từ receiver: mọi chunk < nextChunk đã ghi xong
+     */
+    void onAck(int nextChunk) {
+        lock.lock();
+        try {
+            // Số chunk của plan nằm trước nextChunk
+            int pos = Arrays.binarySearch(plan, nextChunk);
+            int seq = Math.min(pos >= 0 ? pos : -pos - 1, sentUpTo);
+            if (seq == acked && acked < sentUpTo && ++dupAcks == DUP_ACK_THRESHOLD) {
+                // Receiver vẫn nhận chunk sau nhưng thiếu chunk acked → gửi lại ngay (fast retransmit)
+                resend.set(acked);
+                resentUpTo = sentUpTo;
+                changed.signalAll();
+            }
+            if (seq <= acked) return; // ACK trùng / cũ
+
+            int newlyAcked = seq - acked;
+            acked = seq;
+            dupAcks = 0;
+            long now = System.nanoTime();
+
+            boolean queueing = false;
+            if (seq > resentUpTo) {
+                long sample = now - sentAtNanos[(seq - 1) % maxWindow];
+                rtt.onRttSample(sample);
+                minRttNanos = Math.min(minRttNanos, sample);
+                queueing = sample > 2 * minRttNanos + QUEUE_DELAY_SLACK_NANOS;
+            }
+
+            if (queueing) {
+                cwnd = Math.max(MIN_WINDOW, cwnd - (double) newlyAcked / cwnd);
+            } else if (cwnd < ssthresh) {
+                cwnd = Math.min(maxWindow, cwnd + newlyAcked);
+            } else {
+                cwnd = Math.min(maxWindow, cwnd + (double) newlyAcked / cwnd);
+            }
+
+            backoff = 1;
+            lastProgressNanos = now;
+            lastAckNanos = now;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * FILE_CHUNK_NACK từ receiver: chunkIndex bị hỏng → gửi lại (thread gửi đang chờ sẽ được đánh thức)
+     */
+    void onNack(int chunkIndex) {
+        lock.lock();
+        try {
+            int seq = Arrays.binarySearch(plan, chunkIndex);
+            if (seq < acked || seq >= sentUpTo) return; // Không thuộc plan / đã ACK / chưa gửi
+            if (chunkIndex == 0) {
+                // Chưa có chunk đầu (metadata) thì receiver bỏ luôn các chunk sau → gửi lại tất cả đã gửi
+                resend.set(seq, sentUpTo);
+            } else {
+                resend.set(seq);
+            }
+            resentUpTo = sentUpTo; // Karn: ACK sau đây có thể tính cả thời gian gửi lại
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return seq cần gửi lại (receiver báo hỏng), -1 nếu không có
+     */
+    int pollResend() {
+        lock.lock();
+        try {
+            resend.clear(0, acked); // Đã ACK trong lúc chờ → không cần gửi lại
+            int seq = resend.nextSetBit(0);
+            if (seq >= 0) resend.clear(seq);
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Kết nối đã đổi (mất kết nối rồi nối lại): chunk chưa ACK có thể đã mất → gửi lại từ chunk chưa ACK
+     * @return seq đầu tiên cần gửi lại
+     */
+    int rewind() {
+        lock.lock();
+        try {
+            resentUpTo = sentUpTo;
+            resend.clear(); // Gửi lại tất cả từ chunk chưa ACK
+            lastProgressNanos = System.nanoTime();
+            return acked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hủy gửi: đánh thức thread gửi đang chờ
+     */
+    void abort() {
+        lock.lock();
+        try {
+            aborted = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int acked() {
+        lock.lock();
+        try {
+            return acked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean await(BooleanSupplier ready) throws IOException, InterruptedException {
+        lock.lock();
+        try {
+            while (!ready.getAsBoolean()) {
+                if (aborted || !resend.isEmpty()) return false;
+
+                long now = System.nanoTime();
+                if (now - lastAckNanos >= TimeUnit.MILLISECONDS.toNanos(AppConfig.P2P_FILE_STALL_TIMEOUT_MS)) {
+                    throw new IOException("No file chunk ACK for " + AppConfig.P2P_FILE_STALL_TIMEOUT_MS + "ms");
+                }
+                long left = lastProgressNanos + TimeUnit.MILLISECONDS.toNanos(rtt.rtoMillis() * backoff) - now;
+                if (left <= 0) {
+                    onTimeout(now);
+                    return false;
+                }
+                changed.awaitNanos(left);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Gọi dưới lock
+    private void onTimeout(long now) {
+        if (acked < sentUpTo) {
+            resend.set(acked);
+            resentUpTo = sentUpTo;
+        }
+        ssthresh = Math.max(MIN_WINDOW, cwnd / 2);
+        cwnd = ssthresh;
+        backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        lastProgressNanos = now;
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("cwnd=%.1f ssthresh=%.1f acked=%d %s", cwnd, ssthresh, acked, rtt);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
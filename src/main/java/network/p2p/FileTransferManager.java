@@ -1,24 +1,47 @@
 package network.p2p;
 
+import config.AppConfig;
+import util.AppThreads;
 import util.FileChecksumUtil;
+import util.MessageId;
 
+import protocol.FrameCompression;
 import protocol.P2PMessageProtocol;
+import protocol.P2PPayloads;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.ToLongFunction;
 
 /**
  * - Chia file thành chunks
  * - Gửi trực tiếp qua TCP
  * - Hỗ trợ idempotent với clientMessageId
+ * - Peer hỗ trợ FILE_CHUNK_ACK: gửi theo cửa sổ trượt (FileSendWindow), tốc độ theo ACK của receiver
+ *   thay vì nghỉ cố định sau mỗi chunk; mất kết nối giữa chừng → nối lại, gửi tiếp từ chunk chưa ACK
+ * - Peer cũ: gửi liền, chỉ bị chặn bởi hàng đợi writer (làn BULK)
+ * - Gửi lại file cùng clientMessageId (FileRetryService) → hỏi receiver bằng FILE_RESUME, chỉ gửi chunk còn thiếu;
+ *   receiver lưu chunk đã nhận ra đĩa (PartialTransferStore) nên nhớ được qua cả lần khởi động lại
+ * - Mỗi chunk kèm CRC32C: receiver phát hiện chunk hỏng ngay khi nhận, FILE_CHUNK_NACK → chỉ gửi lại chunk đó
+ * - Checksum: caller đã tính sẵn (lúc copy file) thì dùng luôn, không thì tính dần theo chunk lúc gửi;
+ *   gửi kèm FILE_COMPLETE → không đọc cả file chỉ để tính checksum trước khi gửi
  */
 public class FileTransferManager {
     
-    private static final int CHUNK_SIZE = 32 * 1024; // 32KB per chunk
+    public static final int CHUNK_SIZE = 32 * 1024; // 32KB per chunk
+    private static final int SAVE_PARTIAL_EVERY = 32;  // Lưu bitmap chunk đã nhận mỗi 32 chunk (1MB)
+    private static final long HELLO_WAIT_MS = 2000;    // Kết nối vừa mở: chờ HELLO để biết peer hỗ trợ gì
     
     // Map: fileId -> FileTransfer
     private final Map<String, OutgoingTransfer> outgoingTransfers = new ConcurrentHashMap<>();
+    // Map: fileId -> file đang nhận (chỉ thread dispatch của peer gửi đụng tới file đó)
+    private final Map<String, PartialTransferStore.Partial> incoming = new ConcurrentHashMap<>();
+    private final PartialTransferStore partialStore = new PartialTransferStore();
     
     private final P2PManager p2pManager;
     private FileTransferListener listener;
@@ -38,6 +61,13 @@ public class FileTransferManager {
         this.listener = listener;
     }
 
+    /**
+     * Thư mục lưu trạng thái file nhận dở (chưa đặt → chỉ nhớ trong bộ nhớ, mất khi tắt app)
+     */
+    public void setResumeDirectory(java.nio.file.Path directory) {
+        partialStore.setDirectory(directory);
+    }
+
     // ===== OUTGOING FILE TRANSFER =====
     
     /**
@@ -45,21 +75,30 @@ public class FileTransferManager {
      */
     public String sendFile(Integer toUserId, File file, Integer conversationId, 
                           String clientMessageId) throws IOException {
+        return sendFile(toUserId, file, conversationId, clientMessageId, null);
+    }
+
+    /**
+     * @param checksum SHA-256 của file nếu caller đã có (null → tính dần lúc gửi)
+     */
+    public String sendFile(Integer toUserId, File file, Integer conversationId,
+                          String clientMessageId, String checksum) throws IOException {
         if (!file.exists() || !file.isFile()) {
             throw new IOException("File not found: " + file.getAbsolutePath());
         }
 
-        String fileId = UUID.randomUUID().toString();
+        String fileId = MessageId.nextString();
         String fileName = file.getName();
         Long fileSize = file.length();
 
         OutgoingTransfer transfer = new OutgoingTransfer(
             fileId, file, toUserId, conversationId, clientMessageId
         );
+        transfer.checksum = checksum;
         outgoingTransfers.put(fileId, transfer);
 
         // Start sending immediately
-        new Thread(() -> sendFileChunks(transfer), "file-sender-" + fileId).start();
+        AppThreads.start("file-sender-" + fileId, false, () -> sendFileChunks(transfer));
         
         System.out.println("📤 Sending file: " + fileName + " (" + formatSize(fileSize) + ")");
         
@@ -71,22 +110,71 @@ public class FileTransferManager {
      */
     private void sendFileChunks(OutgoingTransfer transfer) {
         try {
-            byte[] buffer = new byte[CHUNK_SIZE];
-            int totalChunks = (int) Math.ceil((double) transfer.file.length() / CHUNK_SIZE);
-            int chunkIndex = 0;
-            
-         // ✅ TÍNH CHECKSUM 1 LẦN
-            transfer.checksum = FileChecksumUtil.sha256(transfer.file);
-
-            try (FileInputStream fis = new FileInputStream(transfer.file)) {
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) > 0 && 
-                       transfer.status == TransferStatus.SENDING) {
-                    
-                    byte[] chunk = Arrays.copyOf(buffer, bytesRead);
-                    
+            long fileSize = transfer.file.length();
+            int totalChunks = (int) Math.ceil((double) fileSize / CHUNK_SIZE);
+
+            // ✅ Chưa có checksum → tính dần theo chunk đọc ra để gửi (chunk gửi lại sau khi nối lại không tính lại)
+            MessageDigest digest = transfer.checksum == null ? FileChecksumUtil.newSha256() : null;
+            int hashedChunks = 0;
+
+            PeerConnection conn = connectionTo(transfer.toUserId);
+            // Chưa có HELLO thì không biết peer có ACK / FILE_RESUME / FILE_CHUNK_NACK không → chờ, tránh rơi về cách gửi cũ
+            conn.getChannel().awaitPeerHello(HELLO_WAIT_MS);
+            int[] plan = planChunks(conn, transfer, fileSize, totalChunks);
+            FileSendWindow window = conn.getChannel().supportsFileWindow()
+                    ? new FileSendWindow(peerFileWindow(conn), plan)
+                    : null;
+            transfer.window = window; // Trước khi xét status: cancel sau thời điểm này sẽ abort được cửa sổ
+
+            try (FileChannel source = FileChannel.open(transfer.file.toPath(), StandardOpenOption.READ)) {
+                int seq = 0; // Vị trí trong plan
+                int alreadyReceived = totalChunks - plan.length;
+                int progress = -1;
+                boolean incompressible = FrameCompression.isPrecompressed(transfer.file.getName());
+
+                while (transfer.status == TransferStatus.SENDING) {
+                    PeerConnection current = connectionTo(transfer.toUserId);
+                    if (current != conn) {
+                        if (window == null) {
+                            throw new IOException("Connection to peer " + transfer.toUserId + " was reset");
+                        }
+                        conn = current;
+                        seq = window.rewind();
+                        System.out.println("🔄 Resuming file " + transfer.file.getName()
+                                + " from chunk " + (seq < plan.length ? plan[seq] : totalChunks));
+                    }
+
+                    // Chunk receiver báo hỏng (FILE_CHUNK_NACK) → gửi lại trước, không cần chờ cửa sổ
+                    int resendSeq = window != null ? window.pollResend() : -1;
+                    int sendSeq = resendSeq >= 0 ? resendSeq : seq;
+                    if (resendSeq < 0) {
+                        if (seq >= plan.length) {
+                            // Gửi hết → chờ receiver ACK đủ (peer cũ không ACK)
+                            if (window == null || window.awaitAllAcked()) break;
+                            continue;
+                        }
+                        if (window != null && !window.awaitSlot(seq)) {
+                            continue; // Hết RTO / có chunk cần gửi lại / bị hủy → xét lại trạng thái và kết nối
+                        }
+                    }
+                    int chunkIndex = plan[sendSeq];
+
+                    // Đọc đúng vị trí của chunk (gửi lại sau khi nối lại kết nối cũng đọc được)
+                    // Mảng đúng kích thước chunk chính là payload của binary frame (không copy, không Base64)
+                    long offset = (long) chunkIndex * CHUNK_SIZE;
+                    byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, fileSize - offset)];
+                    readFully(source, chunk, offset, transfer.file.getName());
+                    if (digest != null && chunkIndex == hashedChunks) {
+                        digest.update(chunk);
+                        hashedChunks++;
+                    }
+                    if (chunkIndex == 0 && !incompressible) {
+                        // Đuôi file không nói gì → thử nén chunk đầu, không nén được thì gửi cả file không nén
+                        incompressible = FrameCompression.looksIncompressible(chunk);
+                    }
+
                     // Build protocol message
-                   String json = P2PMessageProtocol.buildFileChunk(
+                   P2PMessageProtocol.Message outgoing = P2PMessageProtocol.createFileChunk(
                        p2pManager.getLocalUserId(),
                        transfer.toUserId,
                        transfer.fileId,
@@ -94,43 +182,52 @@ public class FileTransferManager {
                        chunk,
                        totalChunks,
                        transfer.file.getName(),
-                       transfer.file.length(),
+                       fileSize,
                        transfer.conversationId,
                        transfer.clientMessageId,
                        transfer.checksum 
                    );
-                    
-                   PeerConnection conn = p2pManager.getConnection(transfer.toUserId);
-                   if (conn == null || !conn.sendTcp(json)) {
+                   outgoing.incompressible = incompressible;
+
+                   if (!conn.send(outgoing)) {
+                       if (window != null && !conn.isTcpConnected()) {
+                           continue; // Kết nối vừa đóng → vòng sau nối lại, gửi lại từ chunk chưa ACK
+                       }
                        throw new IOException("Failed to send chunk " + chunkIndex);
                    }
+                   if (window != null) {
+                       window.onSent(sendSeq);
+                   }
+                   if (resendSeq >= 0) {
+                       continue;
+                   }
+                   seq++;
 
-                   chunkIndex++;
-                   int progress = (int) ((chunkIndex * 100.0) / totalChunks);
-                   
-                   // Update progress
-                   if (listener != null) {
-                       listener.onFileProgress(transfer.fileId, progress, true);
+                   // Progress: chunk receiver đã có + đã ACK (peer cũ: chunk đã gửi), chỉ báo khi % đổi
+                   int done = alreadyReceived + (window != null ? window.acked() : seq);
+                   int percent = (int) ((done * 100.0) / totalChunks);
+                   if (percent != progress && listener != null) {
+                       progress = percent;
+                       listener.onFileProgress(transfer.fileId, percent, true);
                    }
-                    
-                    
-                    // Small delay to avoid overwhelming network
-                    Thread.sleep(10);
                 }
             }
 
             if (transfer.status == TransferStatus.SENDING) {
+                if (digest != null) {
+                    transfer.checksum = hashedChunks == totalChunks
+                            ? FileChecksumUtil.toHex(digest.digest())
+                            : FileChecksumUtil.sha256(transfer.file);
+                }
+
                 // Send complete message
-                String json = P2PMessageProtocol.buildFileComplete(
+                P2PMessageProtocol.Message outgoing = P2PMessageProtocol.createFileComplete(
                     p2pManager.getLocalUserId(),
                     transfer.toUserId,
-                    transfer.fileId
+                    transfer.fileId,
+                    transfer.checksum
                 );
-                
-                PeerConnection conn = p2pManager.getConnection(transfer.toUserId);
-                if (conn != null) {
-                    conn.sendTcp(json);
-                }
+                conn.send(outgoing);
 
                 transfer.status = TransferStatus.COMPLETED;
                 
@@ -138,7 +235,8 @@ public class FileTransferManager {
 //                    listener.onFileComplete(transfer.fileId, transfer.file, true);
 //                }
                 
-                System.out.println("✅ File sent successfully: " + transfer.file.getName());
+                System.out.println("✅ File sent successfully: " + transfer.file.getName()
+                        + (window != null ? " (" + window + ")" : ""));
             }
 
         } catch (Exception e) {
@@ -153,6 +251,118 @@ public class FileTransferManager {
         }
     }
 
+    /**
+     * Chunk cần gửi (tăng dần): peer hỗ trợ FILE_RESUME, có clientMessageId và checksum → hỏi receiver chunk nào còn thiếu
+     * (checksum để receiver chắc là cùng file; chưa có checksum = lần gửi đầu, không có gì để gửi tiếp)
+     * Receiver không trả lời kịp → gửi cả file
+     */
+    private int[] planChunks(PeerConnection conn, OutgoingTransfer transfer, long fileSize, int totalChunks)
+            throws InterruptedException {
+        int[] all = new int[totalChunks];
+        Arrays.setAll(all, i -> i);
+        if (transfer.clientMessageId == null || transfer.checksum == null
+                || !conn.getChannel().supportsFileResume()) {
+            return all;
+        }
+
+        P2PMessageProtocol.Message query = P2PMessageProtocol.createFileResume(
+                p2pManager.getLocalUserId(),
+                transfer.toUserId,
+                transfer.fileId,
+                transfer.clientMessageId,
+                transfer.file.getName(),
+                fileSize,
+                totalChunks,
+                transfer.conversationId,
+                transfer.checksum
+        );
+        if (!conn.send(query)) {
+            return all;
+        }
+
+        try {
+            BitSet missing = transfer.resumeReply.get(AppConfig.P2P_FILE_RESUME_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (missing == null) {
+                return all;
+            }
+            int[] plan = missing.stream().filter(i -> i < totalChunks).toArray();
+            if (plan.length < totalChunks) {
+                System.out.println("🔄 Resuming file " + transfer.file.getName() + ": "
+                        + (totalChunks - plan.length) + "/" + totalChunks + " chunks already received");
+            }
+            return plan;
+        } catch (ExecutionException | TimeoutException e) {
+            System.err.println("⚠️ No FILE_RESUME reply for " + transfer.file.getName() + ", sending whole file");
+            return all;
+        }
+    }
+
+    /**
+     * Kết nối tới peer; đã mất thì nối lại (PeerConnector, có backoff)
+     */
+    private PeerConnection connectionTo(Integer userId) throws IOException {
+        PeerConnection conn = p2pManager.getConnection(userId);
+        if ((conn == null || !conn.isTcpConnected()) && p2pManager.connectToPeer(userId)) {
+            conn = p2pManager.getConnection(userId);
+        }
+        if (conn == null || !conn.isTcpConnected() || conn.getChannel() == null) {
+            throw new IOException("Peer " + userId + " not connected");
+        }
+        return conn;
+    }
+
+    private static int peerFileWindow(PeerConnection conn) {
+        P2PPayloads.Hello hello = conn.getChannel().getPeerHello();
+        return hello != null && hello.fileWindow() > 0 ? hello.fileWindow() : AppConfig.P2P_FILE_WINDOW_CHUNKS;
+    }
+
+    private static void readFully(FileChannel source, byte[] chunk, long offset, String fileName) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(chunk);
+        while (buf.hasRemaining()) {
+            if (source.read(buf, offset + buf.position()) < 0) {
+                throw new IOException("File changed while sending: " + fileName);
+            }
+        }
+    }
+
+    /**
+     * FILE_CHUNK_ACK từ receiver → mở rộng cửa sổ gửi của file đó
+     */
+    void handleChunkAck(Integer fromUserId, P2PPayloads.FileChunkAck ack) {
+        OutgoingTransfer transfer = ack.fileId() != null ? outgoingTransfers.get(ack.fileId()) : null;
+        if (transfer == null || !transfer.toUserId.equals(fromUserId)) return;
+
+        FileSendWindow window = transfer.window;
+        if (window != null) {
+            window.onAck(ack.nextChunk());
+        }
+    }
+
+    /**
+     * FILE_CHUNK_NACK từ receiver → gửi lại riêng chunk bị hỏng
+     */
+    void handleChunkNack(Integer fromUserId, P2PPayloads.FileChunkNack nack) {
+        OutgoingTransfer transfer = nack.fileId() != null ? outgoingTransfers.get(nack.fileId()) : null;
+        if (transfer == null || !transfer.toUserId.equals(fromUserId)) return;
+
+        FileSendWindow window = transfer.window;
+        if (window != null) {
+            System.err.println("⚠️ Peer " + fromUserId + " got corrupted chunk " + nack.chunkIndex()
+                    + " of " + transfer.file.getName() + ", resending");
+            window.onNack(nack.chunkIndex());
+        }
+    }
+
+    /**
+     * FILE_RESUME_ACK từ receiver → các chunk còn thiếu (sai định dạng → null, gửi cả file)
+     */
+    void handleResumeAck(Integer fromUserId, P2PPayloads.FileResumeAck ack) {
+        OutgoingTransfer transfer = ack.fileId() != null ? outgoingTransfers.get(ack.fileId()) : null;
+        if (transfer == null || !transfer.toUserId.equals(fromUserId)) return;
+
+        transfer.resumeReply.complete(ack.missingChunks());
+    }
+
     /**
      * Hủy việc gửi file
      */
@@ -160,17 +370,19 @@ public class FileTransferManager {
         OutgoingTransfer transfer = outgoingTransfers.get(fileId);
         if (transfer != null) {
             transfer.status = TransferStatus.CANCELED;
+            transfer.resumeReply.complete(null);
+            FileSendWindow window = transfer.window;
+            if (window != null) {
+                window.abort();
+            }
             
-            String json = P2PMessageProtocol.buildFileCancel(
+            P2PMessageProtocol.Message outgoing = P2PMessageProtocol.createFileCancel(
                 p2pManager.getLocalUserId(),
                 toUserId,
                 fileId
             );
             
-            PeerConnection conn = p2pManager.getConnection(toUserId);
-            if (conn != null) {
-                conn.sendTcp(json);
-            }
+            p2pManager.send(toUserId, outgoing);
             
             if (listener != null) {
                 listener.onFileCanceled(fileId, true);
@@ -181,6 +393,164 @@ public class FileTransferManager {
     }
 
     // ===== INCOMING FILE TRANSFER =====
+
+    /**
+     * Chunk chưa nhận → true (ghi xong thì gọi ackIncomingChunk); receiver ghi theo vị trí nên không cần đúng thứ tự
+     * Chunk trùng (sender gửi lại sau khi nối lại kết nối) / ngoài file → false, ACK lại chunk đang chờ
+     * Chunk sai CRC / sai kích thước → false, FILE_CHUNK_NACK để sender gửi lại riêng chunk đó
+     */
+    boolean acceptIncomingChunk(Integer fromUserId, P2PPayloads.FileChunk chunk) {
+        PartialTransferStore.Partial partial = incoming.get(chunk.fileId());
+        if (!chunk.crcMatches() || (partial != null && !hasExpectedLength(partial, chunk))) {
+            // Hỏng trên đường đi → không ghi, xin gửi lại riêng chunk này (peer cũ: chờ hỏng checksum cả file)
+            System.err.println("❌ Corrupted file chunk " + chunk.chunkIndex() + ": " + chunk.fileId());
+            sendChunkNack(fromUserId, chunk.fileId(), chunk.chunkIndex());
+            return false;
+        }
+        if (partial == null) {
+            if (chunk.chunkIndex() != 0) {
+                // Chunk đầu (có metadata) bị hỏng / chưa tới → xin lại chunk đầu, chunk này sender gửi lại sau RTO
+                System.err.println("❌ Unexpected file chunk " + chunk.chunkIndex() + ": " + chunk.fileId());
+                sendChunkNack(fromUserId, chunk.fileId(), 0);
+                return false;
+            }
+            startIncoming(fromUserId, chunk);
+            return true;
+        }
+        int index = chunk.chunkIndex();
+        if (index < 0 || index >= partial.totalChunks || partial.received.get(index)) {
+            sendChunkAck(fromUserId, chunk.fileId(), partial.received.nextClearBit(0));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Chunk đã ghi xong → ACK tích lũy cho sender, thỉnh thoảng lưu bitmap ra đĩa
+     */
+    void ackIncomingChunk(Integer fromUserId, P2PPayloads.FileChunk chunk) {
+        PartialTransferStore.Partial partial = incoming.get(chunk.fileId());
+        if (partial == null) return;
+
+        partial.received.set(chunk.chunkIndex());
+        if (++partial.unsaved >= SAVE_PARTIAL_EVERY) {
+            partialStore.save(partial);
+        }
+        sendChunkAck(fromUserId, chunk.fileId(), partial.received.nextClearBit(0));
+    }
+
+    /**
+     * File đã nhận xong / bị hủy
+     */
+    void forgetIncoming(String fileId) {
+        PartialTransferStore.Partial partial = fileId != null ? incoming.remove(fileId) : null;
+        if (partial != null) {
+            partialStore.delete(partial);
+        }
+    }
+
+    /**
+     * FILE_RESUME: sender gửi lại file (fileId mới, cùng clientMessageId) → chunk nào còn thiếu
+     * @param restore fileId cũ → kích thước file tạm còn trên đĩa, -1 nếu mất file tạm
+     *                (FileTransferController đổi file tạm sang fileId mới)
+     * @return chunk còn thiếu; không biết gì về file / khác file → cả file
+     */
+    BitSet resumeIncoming(Integer fromUserId, P2PPayloads.FileResume resume,
+                          ToLongFunction<String> restore) {
+        BitSet all = new BitSet();
+        all.set(0, resume.totalChunks());
+        String key = resume.clientMessageId() != null ? resume.clientMessageId() : resume.fileId();
+        long fileSize = resume.fileSize() != null ? resume.fileSize() : -1;
+
+        PartialTransferStore.Partial partial = findIncoming(key);
+        boolean inMemory = partial != null;
+        if (!inMemory) {
+            partial = partialStore.load(key);
+        }
+        if (partial == null) {
+            return all;
+        }
+        if (!partial.matches(fromUserId, fileSize, resume.totalChunks(), resume.checksum())) {
+            System.out.println("⚠️ File changed since last attempt, receiving again: " + resume.fileName());
+            incoming.remove(partial.fileId, partial);
+            partialStore.delete(partial);
+            return all;
+        }
+
+        if (!inMemory || !partial.fileId.equals(resume.fileId())) {
+            long kept = restore.applyAsLong(partial.fileId);
+            if (kept < 0) {
+                incoming.remove(partial.fileId, partial);
+                partialStore.delete(partial);
+                return all;
+            }
+            if (kept < fileSize) {
+                // Chỉ giữ chunk nằm trọn trong phần còn trên đĩa
+                partial.received.clear((int) (kept / CHUNK_SIZE), resume.totalChunks());
+            }
+            incoming.remove(partial.fileId, partial);
+            partial.fileId = resume.fileId();
+            partial.fileName = resume.fileName();
+            partial.conversationId = resume.conversationId();
+            incoming.put(partial.fileId, partial);
+            partialStore.save(partial);
+        }
+
+        BitSet missing = all;
+        missing.andNot(partial.received);
+        System.out.println("🔄 Resume " + resume.fileName() + ": " + missing.cardinality()
+                + "/" + resume.totalChunks() + " chunks missing");
+        return missing;
+    }
+
+    private void startIncoming(Integer fromUserId, P2PPayloads.FileChunk chunk) {
+        PartialTransferStore.Partial partial = new PartialTransferStore.Partial();
+        partial.fileId = chunk.fileId();
+        partial.fromUserId = fromUserId;
+        partial.clientMessageId = chunk.clientMessageId();
+        partial.fileName = chunk.fileName();
+        partial.fileSize = chunk.fileSize() != null ? chunk.fileSize() : -1;
+        partial.totalChunks = chunk.totalChunks();
+        partial.conversationId = chunk.conversationId();
+        partial.checksum = chunk.checksum();
+
+        // Sender gửi lại từ đầu (không hỏi FILE_RESUME / hết hạn chờ) → bỏ lần nhận dở trước của cùng file
+        PartialTransferStore.Partial previous = findIncoming(partial.key());
+        if (previous != null) {
+            incoming.remove(previous.fileId, previous);
+        }
+        incoming.put(partial.fileId, partial);
+    }
+
+    private PartialTransferStore.Partial findIncoming(String key) {
+        for (PartialTransferStore.Partial partial : incoming.values()) {
+            if (key.equals(partial.key())) return partial;
+        }
+        return null;
+    }
+
+    private static boolean hasExpectedLength(PartialTransferStore.Partial partial, P2PPayloads.FileChunk chunk) {
+        if (chunk.chunkData() == null) return false;
+        if (partial.fileSize < 0) return true; // Không biết kích thước file
+        long expected = Math.min(CHUNK_SIZE, partial.fileSize - (long) chunk.chunkIndex() * CHUNK_SIZE);
+        return expected <= 0 || chunk.chunkData().length == expected; // Ngoài file → để kiểm tra chunkIndex xử lý
+    }
+
+    private void sendChunkNack(Integer toUserId, String fileId, int chunkIndex) {
+        PeerConnection conn = p2pManager.getConnection(toUserId);
+        PeerChannel channel = conn != null ? conn.getChannel() : null;
+        if (channel != null && channel.supportsChunkNack()) {
+            conn.send(P2PMessageProtocol.createFileChunkNack(p2pManager.getLocalUserId(), toUserId, fileId, chunkIndex));
+        }
+    }
+
+    private void sendChunkAck(Integer toUserId, String fileId, int nextChunk) {
+        PeerConnection conn = p2pManager.getConnection(toUserId);
+        PeerChannel channel = conn != null ? conn.getChannel() : null;
+        if (channel != null && channel.supportsFileWindow()) {
+            conn.send(P2PMessageProtocol.createFileChunkAck(p2pManager.getLocalUserId(), toUserId, fileId, nextChunk));
+        }
+    }
     
     /**
      * Xử lý file chunk nhận được
@@ -218,10 +588,23 @@ public class FileTransferManager {
         return String.format("%.2f MB", bytes / (1024.0 * 1024.0));
     }
 
+    /**
+     * Đang gửi file cho peer (P2PManager không đóng kết nối này khi dọn pool)
+     */
+    boolean hasActiveTransfer(Integer peerId) {
+        return outgoingTransfers.values().stream()
+                .anyMatch(t -> t.toUserId.equals(peerId) && t.status == TransferStatus.SENDING);
+    }
+
     public void shutdown() {
         // Cancel all ongoing transfers
-        outgoingTransfers.values().forEach(t -> t.status = TransferStatus.CANCELED);
+        outgoingTransfers.values().forEach(t -> {
+            t.status = TransferStatus.CANCELED;
+            t.resumeReply.complete(null);
+            if (t.window != null) t.window.abort();
+        });
         outgoingTransfers.clear();
+        incoming.clear();
     }
 
     // ===== INNER CLASSES =====
@@ -236,8 +619,10 @@ public class FileTransferManager {
         Integer toUserId;
         Integer conversationId;
         String clientMessageId;
-        TransferStatus status = TransferStatus.SENDING;
+        volatile TransferStatus status = TransferStatus.SENDING;
         String checksum;
+        volatile FileSendWindow window; // null: peer cũ không ACK chunk
+        final CompletableFuture<BitSet> resumeReply = new CompletableFuture<>(); // Chunk còn thiếu (FILE_RESUME_ACK)
         
         OutgoingTransfer(String fileId, File file, Integer toUserId, 
                         Integer conversationId, String clientMessageId) {
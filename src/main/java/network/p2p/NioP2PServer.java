@@ -0,0 +1,497 @@
+package network.p2p;
+
+import config.AppConfig;
+import protocol.P2PMessageProtocol;
+import util.DirectBufferPool;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * NioP2PServer - P2PServer dạng non-blocking (bật bằng AppConfig.P2P_NIO_SERVER)
+ * - P2P_NIO_SELECTORS selector thread cho mọi kết nối đến (thread đầu tiên nhận luôn accept)
+ * - Mỗi kết nối: read buffer (direct, lấy từ DirectBufferPool, cache theo selector thread),
+ *   decode frame / dòng JSON ngay trong buffer khi có dữ liệu (PeerChannel.decode)
+ * - Message decode xong vào inbox của kết nối, xử lý lần lượt trên pool dùng chung của PeerDispatcher
+ *   (giữ thứ tự từng kết nối)
+ * - Inbox đầy → ngừng đọc kết nối đó; outbound đầy → thread gửi chờ
+ * Số thread cố định dù có bao nhiêu peer kết nối đến.
+ */
+class NioP2PServer {
+    private static final int OUT_BUFFER_SIZE = 8 * 1024;
+    private static final int DRAIN_BATCH = 32; // Message / lượt worker, để các peer chia đều worker
+
+    private final int port;
+    private final P2PServer owner;
+    private final Set<Connection> connections = new CopyOnWriteArraySet<>();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    private volatile boolean running = false;
+    private ServerSocketChannel serverChannel;
+    private SelectorLoop[] loops;
+    private final ExecutorService workers = PeerDispatcher.getInstance().pool();
+
+    NioP2PServer(int port, P2PServer owner) {
+        this.port = port;
+        this.owner = owner;
+    }
+
+    /**
+     * Bind port và khởi động selector thread + worker pool
+     */
+    boolean start() {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+
+            running = true;
+            loops = new SelectorLoop[Math.max(1, AppConfig.P2P_NIO_SELECTORS)];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new SelectorLoop(i);
+            }
+            serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+            for (SelectorLoop loop : loops) {
+                loop.thread.start();
+            }
+
+            System.out.println("✅ P2P Server (NIO) started on port " + port + " (" + loops.length + " selector)");
+            return true;
+        } catch (IOException e) {
+            System.err.println("❌ P2P Server error: " + e.getMessage());
+            stop();
+            return false;
+        }
+    }
+
+    void stop() {
+        running = false;
+
+        connections.forEach(Connection::close);
+        connections.clear();
+
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignored) {}
+
+        if (loops != null) {
+            for (SelectorLoop loop : loops) {
+                if (loop != null) loop.selector.wakeup();
+            }
+        }
+    }
+
+    void setAcceptedTypes(Set<P2PMessageProtocol.MessageType> acceptedTypes) {
+        connections.forEach(c -> c.channel.setAcceptedTypes(acceptedTypes));
+    }
+
+    private void accept() throws IOException {
+        SocketChannel sc;
+        while ((sc = serverChannel.accept()) != null) {
+            sc.configureBlocking(false);
+            sc.socket().setTcpNoDelay(true);
+            SelectorLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+            SocketChannel accepted = sc;
+            loop.execute(() -> loop.register(accepted));
+        }
+    }
+
+    // ===== SELECTOR LOOP =====
+
+    private class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        SelectorLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "p2p-selector-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * Chạy task trên selector thread (đổi interest ops, đăng ký kết nối mới)
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        void register(SocketChannel sc) {
+            Connection conn = null;
+            try {
+                conn = new Connection(sc, this);
+                conn.key = sc.register(selector, SelectionKey.OP_READ, conn);
+                connections.add(conn);
+                System.out.println("✅ New P2P connection from " + sc.socket().getInetAddress());
+                conn.channel.open(owner.getLocalUserId(), null);
+            } catch (IOException e) {
+                System.err.println("❌ Failed to register P2P connection: " + e.getMessage());
+                if (conn != null) {
+                    conn.close();
+                } else {
+                    try { sc.close(); } catch (IOException ignored) {}
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            DirectBufferPool.getInstance().enableThreadCache();
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.err.println("❌ P2P selector error: " + e.getMessage());
+                    break;
+                }
+                if (!running) break; // stop() đánh thức selector
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (IOException e) {
+                            if (running) System.err.println("❌ P2P accept error: " + e.getMessage());
+                        }
+                        continue;
+                    }
+
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) conn.onReadable();
+                        if (key.isValid() && key.isWritable()) conn.onWritable();
+                    } catch (IOException | CancelledKeyException e) {
+                        conn.lost();
+                    } catch (RuntimeException e) {
+                        if (running) System.err.println("❌ P2P connection error: " + e.getMessage());
+                        conn.lost();
+                    }
+                }
+            }
+
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // ===== CONNECTION =====
+
+    private class Connection {
+        private final SocketChannel sc;
+        private final SelectorLoop loop;
+        private final Outbound outbound = new Outbound();
+        private final PeerChannel channel;
+        private SelectionKey key;
+
+        // Chỉ selector thread đụng tới (tạo trong register → trên selector thread)
+        private ByteBuffer readBuf = DirectBufferPool.getInstance().acquire();
+
+        // Inbox: selector thread thêm, 1 worker tại 1 thời điểm lấy ra
+        private final Queue<P2PMessageProtocol.Message> inbox = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inboxSize = new AtomicInteger();
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+        private volatile boolean readPaused = false;
+        private Integer remotePeerId; // Chỉ worker đang drain đụng tới
+        private volatile PeerConnection adopted;
+
+        private final AtomicBoolean closing = new AtomicBoolean(false);
+
+        Connection(SocketChannel sc, SelectorLoop loop) {
+            this.sc = sc;
+            this.loop = loop;
+            this.channel = new PeerChannel(sc.socket(), outbound);
+            this.channel.setAcceptedTypes(owner.getAcceptedTypes());
+            // HELLO đọc trên selector thread → nhận kết nối trên worker (P2PManager có thể đóng kết nối đi của nó)
+            this.channel.setHelloListener(hello -> workers.execute(this::adopt));
+        }
+
+        private void adopt() {
+            if (closing.get()) return;
+            adopted = owner.adopt(channel, this::close);
+            if (adopted != null && closing.get()) {
+                adopted.onInboundClosed(); // Đóng trong lúc đang nhận
+            }
+        }
+
+        // ----- Read (selector thread) -----
+
+        void onReadable() throws IOException {
+            int n = sc.read(readBuf);
+            if (n < 0) {
+                channel.onEndOfStream();
+                lost();
+                return;
+            }
+
+            readBuf.flip();
+            int needed = channel.decode(readBuf, this::enqueue);
+            readBuf.compact();
+            // Frame lớn / dòng JSON dài → buffer lớn hơn; xong → quay về buffer của pool
+            readBuf = PeerChannel.fitReadBuffer(readBuf, needed);
+        }
+
+        private void releaseReadBuffer() {
+            if (readBuf != null) {
+                DirectBufferPool.getInstance().release(readBuf);
+                readBuf = null;
+            }
+        }
+
+        private void enqueue(P2PMessageProtocol.Message msg) {
+            if (!P2PMessageProtocol.isValid(msg)) {
+                System.err.println("❌ Invalid P2P message received");
+                return;
+            }
+
+            inbox.add(msg);
+            if (inboxSize.incrementAndGet() >= AppConfig.P2P_NIO_MAX_INBOX && !readPaused) {
+                // Worker xử lý không kịp → ngừng đọc peer này (TCP tự đẩy ngược về bên gửi)
+                readPaused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                if (inboxSize.get() <= AppConfig.P2P_NIO_MAX_INBOX / 2) {
+                    resumeRead(); // Worker vừa drain xong trước khi thấy readPaused
+                }
+            }
+            if (draining.compareAndSet(false, true)) {
+                workers.execute(this::drain);
+            }
+        }
+
+        private void resumeRead() {
+            if (readPaused && key.isValid()) {
+                readPaused = false;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        // ----- Dispatch (worker) -----
+
+        private void drain() {
+            int handled = 0;
+            P2PMessageProtocol.Message msg;
+            while (handled < DRAIN_BATCH && (msg = inbox.poll()) != null) {
+                int left = inboxSize.decrementAndGet();
+                if (readPaused && left <= AppConfig.P2P_NIO_MAX_INBOX / 2) {
+                    loop.execute(this::resumeRead);
+                }
+                dispatch(msg);
+                handled++;
+            }
+
+            draining.set(false);
+            // Còn message (hết lượt hoặc vừa có thêm) → xếp lại cuối hàng đợi của pool
+            if (!inbox.isEmpty() && !closing.get() && draining.compareAndSet(false, true)) {
+                workers.execute(this::drain);
+            }
+        }
+
+        private void dispatch(P2PMessageProtocol.Message msg) {
+            // Peer ID lấy từ HELLO; peer cũ không gửi HELLO → lấy từ message đầu tiên
+            if (remotePeerId == null) {
+                remotePeerId = channel.getPeerUserId() != null ? channel.getPeerUserId() : msg.from;
+                System.out.println("✅ Identified peer: " + remotePeerId);
+            }
+
+            P2PServer.P2PMessageHandler handler = owner.getMessageHandler();
+            if (handler == null) return;
+            try {
+                handler.onMessageReceived(remotePeerId, msg);
+            } catch (RuntimeException e) {
+                System.err.println("❌ Error handling P2P message " + msg.type + ": " + e.getMessage());
+            }
+        }
+
+        // ----- Write -----
+
+        void onWritable() throws IOException {
+            outbound.onWritable();
+        }
+
+        // ----- Close -----
+
+        void lost() {
+            if (!closing.get() && running) {
+                System.err.println("⚠️ P2P connection lost: " + sc.socket().getInetAddress());
+            }
+            outbound.closed(); // Writer đang chờ outbound vơi → thoát ngay, không giữ selector thread
+            close();
+        }
+
+        void close() {
+            if (!closing.compareAndSet(false, true)) return;
+
+            channel.close(); // Đẩy nốt batch đang chờ (best effort) rồi đóng socket
+            outbound.closed();
+            if (key != null) key.cancel();
+            try { sc.close(); } catch (IOException ignored) {}
+            inbox.clear();
+            connections.remove(this);
+            // Key đã cancel → selector không đọc vào buffer nữa; trả buffer trên selector thread
+            if (loop.inLoop()) {
+                releaseReadBuffer();
+            } else {
+                loop.execute(this::releaseReadBuffer);
+            }
+
+            PeerConnection conn = adopted;
+            if (conn != null) {
+                workers.execute(conn::onInboundClosed);
+            }
+        }
+
+        /**
+         * Stream ghi của PeerChannel: ghi thẳng vào SocketChannel khi được,
+         * phần chưa ghi hết giữ lại và ghi tiếp khi selector báo OP_WRITE
+         * Khóa bằng ReentrantLock (không synchronized/wait) để thread gửi là virtual thread không bị ghim
+         */
+        private class Outbound extends OutputStream {
+            private final ReentrantLock lock = new ReentrantLock();
+            private final Condition drained = lock.newCondition();
+            private ByteBuffer buf = ByteBuffer.allocate(OUT_BUFFER_SIZE); // Chế độ ghi
+            private boolean writeInterest = false;
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) {
+                lock.lock();
+                try {
+                    ensureCapacity(1);
+                    buf.put((byte) b);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                lock.lock();
+                try {
+                    awaitSpace();
+                    ensureCapacity(len);
+                    buf.put(b, off, len);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                lock.lock();
+                try {
+                    if (closed) throw new IOException("Connection closed");
+                    writeOut();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void close() {
+                // Connection.close() lo đóng SocketChannel
+            }
+
+            void onWritable() throws IOException {
+                lock.lock();
+                try {
+                    writeOut();
+                    if (buf.position() == 0) {
+                        writeInterest = false;
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        if (buf.capacity() > OUT_BUFFER_SIZE) {
+                            buf = ByteBuffer.allocate(OUT_BUFFER_SIZE);
+                        }
+                        drained.signalAll();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            void closed() {
+                lock.lock();
+                try {
+                    closed = true;
+                    drained.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // Gọi dưới lock
+            private void writeOut() throws IOException {
+                buf.flip();
+                try {
+                    while (buf.hasRemaining() && sc.write(buf) > 0) {
+                        // Ghi tới khi socket buffer đầy
+                    }
+                } finally {
+                    buf.compact();
+                }
+                if (buf.position() > 0 && !writeInterest) {
+                    writeInterest = true;
+                    loop.execute(() -> {
+                        if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    });
+                }
+            }
+
+            /**
+             * Peer đọc chậm → thread gửi chờ tới khi outbound vơi (selector thread không bao giờ chờ)
+             */
+            private void awaitSpace() throws IOException {
+                if (buf.position() < AppConfig.P2P_NIO_MAX_OUTBOUND_BYTES || loop.inLoop()) return;
+                writeOut();
+                while (!closed && buf.position() >= AppConfig.P2P_NIO_MAX_OUTBOUND_BYTES) {
+                    try {
+                        drained.await(1, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for P2P send buffer");
+                    }
+                }
+                if (closed) throw new IOException("Connection closed");
+            }
+
+            private void ensureCapacity(int n) {
+                if (buf.remaining() >= n) return;
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + n));
+                buf.flip();
+                bigger.put(buf);
+                buf = bigger;
+            }
+        }
+    }
+}
@@ -1,20 +1,33 @@
 package network.p2p;
 
+import config.AppConfig;
 import protocol.P2PMessageProtocol;
+import protocol.P2PPayloads;
 import service.ChatService;
 import model.Message;
+import util.AppThreads;
+import util.MessageId;
 
 import java.io.File;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import controller.ChatController;
 
 /**
  * P2PManager - Router with Idempotent support and simplified file transfer
  */
-public class P2PManager implements PeerConnection.P2PMessageHandler {
+public class P2PManager implements PeerConnection.P2PMessageHandler, PeerHeartbeat.Listener {
     private final Integer localUserId;
     private final Map<Integer, PeerConnection> activeConnections = new ConcurrentHashMap<>();
     private final ChatService chatService;
@@ -24,10 +37,15 @@ public class P2PManager implements PeerConnection.P2PMessageHandler {
     // Managers
     private final FileTransferManager fileTransferManager;
     private final AudioCallManager audioCallManager;
+    private final PeerConnector connector;
     
     // Callback cho UI
     private P2PEventListener eventListener;
 
+    // Dispatch table: MessageType → handler nhận payload có kiểu
+    private final Map<P2PMessageProtocol.MessageType, Consumer<P2PMessageProtocol.Message>> handlers =
+            new EnumMap<>(P2PMessageProtocol.MessageType.class);
+
     public interface P2PEventListener {
         void onChatMessageReceived(Integer conversationId, Message message);
         void onTypingReceived(Integer conversationId, Integer userId);
@@ -58,37 +76,158 @@ public class P2PManager implements PeerConnection.P2PMessageHandler {
         // Initialize managers
         this.fileTransferManager = new FileTransferManager(this);
         this.audioCallManager = new AudioCallManager(this);
+        this.connector = new PeerConnector(this);
         
         setupFileTransferListener();
         setupAudioCallListener();
+        registerHandlers();
     }
 
     // ===== CONNECTION MANAGEMENT =====
 
+    /**
+     * Kết nối tới peer và chờ kết quả (dùng chung lần dial đang chạy nếu có)
+     */
     public boolean connectToPeer(Integer userId) {
-        if (activeConnections.containsKey(userId)) {
-            return true;
+        try {
+            return connector.connect(userId).get() != null;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
+    }
+
+    /**
+     * Kết nối tới peer, không chờ (dial song song trên thread riêng, peer không tới được → backoff)
+     */
+    public CompletableFuture<PeerConnection> connectToPeerAsync(Integer userId) {
+        return connector.connect(userId);
+    }
 
+    /**
+     * Dial thật (blocking, tối đa P2P_CONNECT_TIMEOUT_MS) - chỉ PeerConnector gọi
+     * @return kết nối được giữ sau tie-break, null nếu không kết nối được
+     */
+    PeerConnection dial(Integer userId) {
         PeerInfo peer = discoveryService.getPeer(userId);
         if (peer == null) {
             System.err.println("❌ Peer not found: " + userId);
-            return false;
+            return null;
         }
 
-        PeerConnection conn = new PeerConnection(peer);
+        PeerConnection conn = new PeerConnection(peer, localUserId);
         conn.setMessageHandler(this);
+        conn.setAcceptedTypes(getHandledTypes());
 
-        if (conn.connectTcp(5000)) {
-            activeConnections.put(userId, conn);
+        if (conn.connectTcp((int) AppConfig.P2P_CONNECT_TIMEOUT_MS)) {
             System.out.println("✅ Connected to peer: " + userId);
-            return true;
+            return register(userId, conn);
+        }
+
+        return null;
+    }
+
+    /**
+     * Kết nối do peer mở tới P2PServer (peer đã HELLO) → gửi luôn trên đó, không dial thêm
+     * Gắn bằng P2PServer.setConnectionListener(p2pManager::adoptConnection)
+     */
+    public void adoptConnection(PeerConnection conn) {
+        Integer userId = conn.getRemotePeer().getUserId();
+        conn.setMessageHandler(this);
+        connector.forget(userId); // Peer tới được mình → bỏ backoff
+        if (register(userId, conn) == conn) {
+            System.out.println("✅ Using incoming connection from peer: " + userId);
+        }
+    }
+
+    /**
+     * Giữ 1 kết nối / peer. Hai bên dial nhau cùng lúc → giữ kết nối do bên có userId nhỏ hơn mở
+     * (hai bên tự quyết như nhau, không cần trao đổi thêm)
+     * Kết nối thua do mình mở → đóng; do peer mở → để peer tự đóng (server vẫn đọc nốt message đang bay)
+     * @return kết nối được giữ
+     */
+    private PeerConnection register(Integer userId, PeerConnection candidate) {
+        PeerConnection[] replaced = new PeerConnection[1];
+        PeerConnection kept = activeConnections.compute(userId, (id, existing) -> {
+            if (existing == null || existing == candidate) return candidate;
+            if (!existing.isTcpConnected() || prefers(candidate, existing, id)) {
+                replaced[0] = existing;
+                return candidate;
+            }
+            return existing;
+        });
+
+        PeerConnection loser = kept == candidate ? replaced[0] : candidate;
+        if (loser != null && (!loser.isInbound() || kept.isInbound())) {
+            loser.closeTcp();
+        }
+        if (kept == candidate) {
+            PeerHeartbeat.getInstance().watch(candidate, this);
+            evictIfOverLimit(userId);
         }
+        return kept;
+    }
+
+    /**
+     * Giữ tối đa P2P_MAX_CONNECTIONS kết nối: vượt → đóng kết nối lâu không có message nhất (LRU),
+     * trừ peer vừa kết nối và peer đang gửi file / đang gọi. Lần gửi sau PeerConnector tự kết nối lại.
+     */
+    private void evictIfOverLimit(Integer justConnected) {
+        while (activeConnections.size() > AppConfig.P2P_MAX_CONNECTIONS) {
+            PeerConnection lru = null;
+            long lruIdleMs = -1;
+            for (Map.Entry<Integer, PeerConnection> entry : activeConnections.entrySet()) {
+                if (entry.getKey().equals(justConnected) || isBusy(entry.getKey())) continue;
+
+                PeerConnection conn = entry.getValue();
+                PeerLinkStats stats = conn.getLinkStats();
+                long idleMs = conn.isTcpConnected() && stats != null ? stats.millisSinceActive() : Long.MAX_VALUE;
+                if (idleMs > lruIdleMs) {
+                    lru = conn;
+                    lruIdleMs = idleMs;
+                }
+            }
+            if (lru == null) return; // Mọi kết nối đều đang dùng
+
+            System.out.println("👋 Connection pool full, closing least recently used peer "
+                    + lru.getRemotePeer().getUserId());
+            closeQuietly(lru);
+        }
+    }
+
+    private boolean isBusy(Integer userId) {
+        return fileTransferManager.hasActiveTransfer(userId) || audioCallManager.hasActiveCall(userId);
+    }
 
-        return false;
+    /**
+     * Đóng mà không báo UI (peer vẫn online)
+     */
+    private void closeQuietly(PeerConnection conn) {
+        activeConnections.remove(conn.getRemotePeer().getUserId(), conn);
+        closeInBackground(conn);
+    }
+
+    /**
+     * Đóng trên thread riêng: peer không đọc → close() chờ writer (có giới hạn),
+     * không được giữ thread của PeerDispatcher / heartbeat trong lúc đó
+     */
+    private void closeInBackground(PeerConnection conn) {
+        AppThreads.start("p2p-close-" + conn.getRemotePeer().getUserId(), conn::closeTcp);
+    }
+
+    private boolean prefers(PeerConnection candidate, PeerConnection existing, Integer userId) {
+        if (candidate.isInbound() == existing.isInbound()) {
+            return candidate.isInbound(); // Peer dial lại → kết nối mới; mình dial trùng → giữ cái cũ
+        }
+        Integer candidateDialer = candidate.isInbound() ? userId : localUserId;
+        Integer existingDialer = existing.isInbound() ? userId : localUserId;
+        return candidateDialer < existingDialer;
     }
 
     public void disconnectPeer(Integer userId) {
+        connector.forget(userId); // Peer offline / đổi địa chỉ → lần sau dial lại ngay
         PeerConnection conn = activeConnections.remove(userId);
         if (conn != null) {
             conn.closeAll();
@@ -96,21 +235,50 @@ public class P2PManager implements PeerConnection.P2PMessageHandler {
         }
     }
 
-    private PeerConnection getOrCreateConnection(Integer userId) {
+    /**
+     * Kết nối đang mở (null nếu chưa có / đã bị đóng do idle, LRU) — không dial lại, gửi message dùng send()
+     */
+    public PeerConnection getConnection(Integer userId) {
+        return activeConnections.get(userId);
+    }
+
+    /**
+     * Gửi message tới peer; kết nối đã bị đóng (idle / LRU) → PeerConnector dial lại, message chờ kết nối
+     * @return false nếu peer đang trong backoff hoặc hàng đợi đầy
+     */
+    public boolean send(Integer userId, P2PMessageProtocol.Message msg) {
+        return connector.send(userId, msg);
+    }
+
+    /**
+     * RTT / độ sống của kết nối tới peer (null nếu chưa kết nối)
+     */
+    public PeerLinkStats getLinkStats(Integer userId) {
         PeerConnection conn = activeConnections.get(userId);
-        if (conn != null && conn.isTcpConnected()) {
-            return conn;
-        }
+        return conn != null ? conn.getLinkStats() : null;
+    }
 
-        if (connectToPeer(userId)) {
-            return activeConnections.get(userId);
-        }
+    // ===== HEARTBEAT =====
 
-        return null;
+    @Override
+    public void onPeerDead(PeerConnection conn) {
+        Integer userId = conn.getRemotePeer().getUserId();
+        boolean removed = activeConnections.remove(userId, conn);
+        closeInBackground(conn);
+        if (removed && eventListener != null) {
+            eventListener.onConnectionLost(userId);
+        }
     }
 
-    public PeerConnection getConnection(Integer userId) {
-        return activeConnections.get(userId);
+    @Override
+    public void onPeerIdle(PeerConnection conn) {
+        if (isBusy(conn.getRemotePeer().getUserId())) {
+            // Đang gọi (audio đi UDP, TCP rảnh) / đang gửi file → giữ, xét lại ở vòng sau
+            PeerHeartbeat.getInstance().watch(conn, this);
+            return;
+        }
+        // Không báo UI: peer vẫn online, lần gửi sau PeerConnector tự kết nối lại
+        closeQuietly(conn);
     }
 
     public Integer getLocalUserId() {
@@ -126,20 +294,16 @@ public class P2PManager implements PeerConnection.P2PMessageHandler {
         var participants = chatService.listParticipants(conversationId);
         if (participants == null || participants.isEmpty()) return false;
 
-        String json = P2PMessageProtocol.buildChatMessage(localUserId, conversationId, content, clientMessageId);
+        P2PMessageProtocol.Message outgoing = P2PMessageProtocol.createChatMessage(localUserId, conversationId, content, clientMessageId);
         boolean success = true;
 
         for (var user : participants) {
             if (user.getId().equals(localUserId)) continue;
 
-            PeerConnection conn = getOrCreateConnection(user.getId());
-            if (conn != null) {
-                if (!conn.sendTcp(json)) {
-                    success = false;
-                    System.err.println("❌ Failed to send message to peer: " + user.getId());
-                }
-            } else {
+            // Không chờ: peer chưa kết nối → dial song song, message chờ trong hàng đợi của peer đó
+            if (!connector.send(user.getId(), outgoing)) {
                 success = false;
+                System.err.println("❌ Failed to send message to peer: " + user.getId());
             }
         }
 
@@ -150,7 +314,7 @@ public class P2PManager implements PeerConnection.P2PMessageHandler {
      * Legacy wrapper (tự động generate clientMessageId)
      */
     public boolean sendChatMessage(Integer conversationId, String content) {
-        String clientMessageId = UUID.randomUUID().toString();
+        String clientMessageId = MessageId.nextString();
         return sendChatMessage(conversationId, content, clientMessageId);
     }
 
@@ -158,15 +322,12 @@ public class P2PManager implements PeerConnection.P2PMessageHandler {
         var participants = chatService.listParticipants(conversationId);
         if (participants == null) return;
 
-        String json = P2PMessageProtocol.buildTypingStart(localUserId, conversationId);
+        P2PMessageProtocol.Message outgoing = P2PMessageProtocol.createTypingStart(localUserId, conversationId);
 
         for (var user : participants) {
             if (user.getId().equals(localUserId)) continue;
-            
-            PeerConnection conn = activeConnections.get(user.getId());
-            if (conn != null) {
-                conn.sendTcp(json);
-            }
+
+            send(user.getId(), outgoing);
         }
     }
 
@@ -174,15 +335,12 @@ public class P2PManager implements PeerConnection.P2PMessageHandler {
         var participants = chatService.listParticipants(conversationId);
         if (participants == null) return;
 
-        String json = P2PMessageProtocol.buildTypingStop(localUserId, conversationId);
+        P2PMessageProtocol.Message outgoing = P2PMessageProtocol.createTypingStop(localUserId, conversationId);
 
         for (var user : participants) {
             if (user.getId().equals(localUserId)) continue;
 
-            PeerConnection conn = activeConnections.get(user.getId());
-            if (conn != null) {
-                conn.sendTcp(json);
-            }
+            send(user.getId(), outgoing);
         }
     }
 
@@ -196,6 +354,14 @@ public class P2PManager implements PeerConnection.P2PMessageHandler {
         return fileTransferManager.sendFile(toUserId, file, conversationId, clientMessageId);
     }
 
+    /**
+     * Gửi file đã có checksum SHA-256 (không phải đọc cả file để tính lại trước khi gửi)
+     */
+    public String sendFile(Integer toUserId, File file, Integer conversationId,
+                          String clientMessageId, String checksum) throws Exception {
+        return fileTransferManager.sendFile(toUserId, file, conversationId, clientMessageId, checksum);
+    }
+
     /**
      * Hủy việc gửi file
      */
@@ -235,39 +401,64 @@ public class P2PManager implements PeerConnection.P2PMessageHandler {
 
     // ===== MESSAGE HANDLER =====
 
+    private void registerHandlers() {
+        on(P2PMessageProtocol.MessageType.CHAT_MESSAGE, P2PPayloads.Chat.class, this::handleChatMessage);
+        handlers.put(P2PMessageProtocol.MessageType.TYPING_START, this::handleTypingStart);
+        // TYPING_STOP: UI tự ẩn typing indicator → không đăng ký, PeerChannel bỏ ngay khi đọc
+
+        on(P2PMessageProtocol.MessageType.MESSAGE_ACK, P2PPayloads.ClientMessageRef.class, this::handleMessageAck);
+        on(P2PMessageProtocol.MessageType.MESSAGE_SEEN_ACK, P2PPayloads.MessageRef.class, this::handleMessageSeenAck);
+
+        // File transfer - simplified
+        on(P2PMessageProtocol.MessageType.FILE_CHUNK, P2PPayloads.FileChunk.class, this::handleFileChunk);
+        on(P2PMessageProtocol.MessageType.FILE_COMPLETE, P2PPayloads.FileComplete.class, this::handleFileComplete);
+        on(P2PMessageProtocol.MessageType.FILE_CANCEL, P2PPayloads.FileRef.class, this::handleFileCancel);
+        on(P2PMessageProtocol.MessageType.FILE_ACK, P2PPayloads.FileRef.class, this::handleFileAck);
+        on(P2PMessageProtocol.MessageType.FILE_NACK, P2PPayloads.FileNack.class, this::handleFileNack);
+        on(P2PMessageProtocol.MessageType.FILE_CHUNK_ACK, P2PPayloads.FileChunkAck.class,
+                (msg, ack) -> fileTransferManager.handleChunkAck(msg.from, ack));
+        on(P2PMessageProtocol.MessageType.FILE_CHUNK_NACK, P2PPayloads.FileChunkNack.class,
+                (msg, nack) -> fileTransferManager.handleChunkNack(msg.from, nack));
+        on(P2PMessageProtocol.MessageType.FILE_RESUME, P2PPayloads.FileResume.class, this::handleFileResume);
+        on(P2PMessageProtocol.MessageType.FILE_RESUME_ACK, P2PPayloads.FileResumeAck.class,
+                (msg, ack) -> fileTransferManager.handleResumeAck(msg.from, ack));
+
+        // Audio call
+        on(P2PMessageProtocol.MessageType.AUDIO_REQUEST, P2PPayloads.CallRef.class,
+                (msg, call) -> audioCallManager.handleCallRequest(msg.from, call.callId()));
+        on(P2PMessageProtocol.MessageType.AUDIO_ACCEPT, P2PPayloads.AudioAccept.class,
+                (msg, accept) -> audioCallManager.handleCallAccept(msg.from, accept));
+        on(P2PMessageProtocol.MessageType.AUDIO_REJECT, P2PPayloads.AudioReject.class, this::handleAudioReject);
+        on(P2PMessageProtocol.MessageType.AUDIO_END, P2PPayloads.CallRef.class,
+                (msg, call) -> audioCallManager.handleCallEnd(call.callId()));
+
+        on(P2PMessageProtocol.MessageType.MESSAGE_SEEN, P2PPayloads.MessageRef.class, this::handleMessageSeen);
+    }
+
+    private <P> void on(P2PMessageProtocol.MessageType type, Class<P> payloadType,
+                        BiConsumer<P2PMessageProtocol.Message, P> handler) {
+        handlers.put(type, msg -> handler.accept(msg, payloadType.cast(P2PPayloads.bodyOf(msg))));
+    }
+
+    /**
+     * Các type có handler - PeerChannel bỏ các type khác ngay khi đọc (không decode)
+     */
+    public Set<P2PMessageProtocol.MessageType> getHandledTypes() {
+        return Collections.unmodifiableSet(EnumSet.copyOf(handlers.keySet()));
+    }
+
     @Override
     public void onMessageReceived(P2PMessageProtocol.Message msg) {
         if (msg == null || msg.type == null) return;
 
+        Consumer<P2PMessageProtocol.Message> handler = handlers.get(P2PMessageProtocol.typeOf(msg));
+        if (handler == null) {
+            System.out.println("⚠️ Unhandled message type: " + msg.type);
+            return;
+        }
+
         try {
-            P2PMessageProtocol.MessageType type = P2PMessageProtocol.MessageType.valueOf(msg.type);
-
-            switch (type) {
-                case CHAT_MESSAGE -> handleChatMessage(msg);
-                case TYPING_START -> handleTypingStart(msg);
-                case TYPING_STOP -> handleTypingStop(msg);
-                
-                case MESSAGE_ACK -> handleMessageAck(msg);
-                case MESSAGE_SEEN_ACK -> handleMessageSeenAck(msg);
-                
-                // File transfer - simplified
-                case FILE_CHUNK -> handleFileChunk(msg);
-                case FILE_COMPLETE -> handleFileComplete(msg);
-                case FILE_CANCEL -> handleFileCancel(msg);
-                case FILE_ACK -> handleFileAck(msg);      // ✅ NEW
-                case FILE_NACK -> handleFileNack(msg);    // ✅ NEW
-                
-                // Audio call
-                case AUDIO_REQUEST -> audioCallManager.handleCallRequest(msg);
-                case AUDIO_ACCEPT -> audioCallManager.handleCallAccept(msg);
-                case AUDIO_REJECT -> handleAudioReject(msg);
-                case AUDIO_END -> audioCallManager.handleCallEnd(
-                    (String) msg.data.get("callId"));
-                
-                case MESSAGE_SEEN -> handleMessageSeen(msg);
-                
-                default -> System.out.println("⚠️ Unhandled message type: " + type);
-            }
+            handler.accept(msg);
         } catch (Exception e) {
             System.err.println("❌ Error handling message: " + e.getMessage());
             e.printStackTrace();
@@ -289,11 +480,11 @@ public class P2PManager implements PeerConnection.P2PMessageHandler {
 
     // ===== HANDLE INCOMING MESSAGES - WITH IDEMPOTENT =====
 
-    private void handleChatMessage(P2PMessageProtocol.Message msg) {
+    private void handleChatMessage(P2PMessageProtocol.Message msg, P2PPayloads.Chat chat) {
         if (eventListener == null) return;
 
-        String content = (String) msg.data.get("content");
-        String clientMessageId = (String) msg.data.get("clientMessageId");
+        String content = chat.content();
+        String clientMessageId = chat.clientMessageId();
         
         // Sử dụng sendMessageIdempotent để tránh duplicate
         Message savedMsg = chatService.sendMessageIdempotent(
@@ -302,35 +493,32 @@ public class P2PManager implements PeerConnection.P2PMessageHandler {
             content, 
             null,
             Message.MessageType.TEXT,
-            clientMessageId != null ? clientMessageId : UUID.randomUUID().toString()
+            clientMessageId != null ? clientMessageId : MessageId.nextString()
         );
 
         if (savedMsg != null) {
             // ✅ gửi ACK về sender
-            PeerConnection conn = getOrCreateConnection(msg.from);
-            if (conn != null) {
-                String ack = P2PMessageProtocol.buildMessageAck(
-                    localUserId,
-                    msg.from,
-                    clientMessageId
-                );
-                conn.sendTcp(ack);
-            }
+            P2PMessageProtocol.Message ack = P2PMessageProtocol.createMessageAck(
+                localUserId,
+                msg.from,
+                clientMessageId
+            );
+            connector.send(msg.from, ack);
 
             eventListener.onChatMessageReceived(msg.conversationId, savedMsg);
         }
     }
     
-    private void handleMessageAck(P2PMessageProtocol.Message msg) {
-        String clientMessageId = (String) msg.data.get("clientMessageId");
+    private void handleMessageAck(P2PMessageProtocol.Message msg, P2PPayloads.ClientMessageRef ack) {
+        String clientMessageId = ack.clientMessageId();
         if (clientMessageId != null) {
             chatService.markMessageSentByClientId(clientMessageId);
         }
     }
 
 
-    private void handleMessageNack(P2PMessageProtocol.Message msg) {
-        String clientMessageId = (String) msg.data.get("clientMessageId");
+    private void handleMessageNack(P2PMessageProtocol.Message msg, P2PPayloads.ClientMessageRef nack) {
+        String clientMessageId = nack.clientMessageId();
 
         if (clientMessageId != null) {
             chatService.markMessageFailedByClientId(clientMessageId);
@@ -338,13 +526,13 @@ public class P2PManager implements PeerConnection.P2PMessageHandler {
     }
 
     
-    private void handleMessageSeenAck(P2PMessageProtocol.Message msg) {
-        Number messageId = (Number) msg.data.get("messageId");
+    private void handleMessageSeenAck(P2PMessageProtocol.Message msg, P2PPayloads.MessageRef seen) {
+        Integer messageId = seen.messageId();
         Integer fromUser = msg.from;
 
         if (messageId != null && fromUser != null) {
             chatService.confirmMessageSeenAck(
-                messageId.intValue(),
+                messageId,
                 fromUser
             );
         }
@@ -356,93 +544,88 @@ public class P2PManager implements PeerConnection.P2PMessageHandler {
         }
     }
 
-    private void handleTypingStop(P2PMessageProtocol.Message msg) {
-        // UI có thể xử lý việc ẩn typing indicator
-    }
+    private void handleFileChunk(P2PMessageProtocol.Message msg, P2PPayloads.FileChunk chunk) {
+        // Metadata (fileName, fileSize, ...) chỉ có ở chunk đầu, các chunk sau là null
 
-    private void handleFileChunk(P2PMessageProtocol.Message msg) {
-        String fileId = (String) msg.data.get("fileId");
-        Number chunkIndex = (Number) msg.data.get("chunkIndex");
-        Number totalChunks = (Number) msg.data.get("totalChunks");
-        String chunkDataB64 = (String) msg.data.get("chunkData");
-        
-        // Decode chunk data
-        byte[] chunkData = java.util.Base64.getDecoder().decode(chunkDataB64);
-        
-        // Metadata from first chunk
-        String fileName = null;
-        Long fileSize = null;
-        Integer conversationId = null;
-        String clientMessageId = null;
-        String checksum = null;
-        
-        if (chunkIndex.intValue() == 0) {
-            fileName = (String) msg.data.get("fileName");
-            Number fileSizeNum = (Number) msg.data.get("fileSize");
-            fileSize = fileSizeNum != null ? fileSizeNum.longValue() : null;
-            Number convId = (Number) msg.data.get("conversationId");
-            conversationId = convId != null ? convId.intValue() : null;
-            clientMessageId = (String) msg.data.get("clientMessageId");
-            checksum = (String) msg.data.get("checksum");
+        // Chunk trùng (sender gửi lại sau khi nối lại kết nối) / hỏng (đã xin gửi lại) → bỏ
+        if (!fileTransferManager.acceptIncomingChunk(msg.from, chunk)) {
+            return;
         }
-        
-     // ✅ FORWARD TO FileTransferController
+
+        // ✅ FORWARD TO FileTransferController
         if (chatController != null && chatController.getFileTransferController() != null) {
             chatController.getFileTransferController().handleFileChunk(
                 msg.from, 
-                fileId, 
-                chunkIndex.intValue(), 
-                chunkData,
-                totalChunks.intValue(), 
-                fileName, 
-                fileSize, 
-                conversationId, 
-                clientMessageId,
-                checksum  // ✅ Pass checksum
+                chunk.fileId(), 
+                chunk.chunkIndex(), 
+                chunk.chunkData(),
+                chunk.totalChunks(), 
+                chunk.fileName(), 
+                chunk.fileSize(), 
+                chunk.conversationId(), 
+                chunk.clientMessageId(),
+                chunk.checksum()  // ✅ Pass checksum
             );
         }
+
+        // ACK sau khi ghi xong → sender gửi nhanh bằng tốc độ receiver ghi được
+        fileTransferManager.ackIncomingChunk(msg.from, chunk);
     }
 
-    private void handleFileComplete(P2PMessageProtocol.Message msg) {
-        String fileId = (String) msg.data.get("fileId");
+    private void handleFileComplete(P2PMessageProtocol.Message msg, P2PPayloads.FileComplete file) {
+        String fileId = file.fileId();
+        fileTransferManager.forgetIncoming(fileId);
         
         if (chatController != null && chatController.getFileTransferController() != null) {
-            chatController.getFileTransferController().handleFileComplete(fileId);
+            chatController.getFileTransferController().handleFileComplete(fileId, file.checksum());
         }
         
      // 2️⃣ GỬI FILE_ACK về sender
-        PeerConnection conn = getOrCreateConnection(msg.from);
-        if (conn != null) {
-            String ack = P2PMessageProtocol.buildFileAck(
-                localUserId,
-                msg.from,
-                fileId
-            );
-            conn.sendTcp(ack);
-        }
+        P2PMessageProtocol.Message ack = P2PMessageProtocol.createFileAck(
+            localUserId,
+            msg.from,
+            fileId
+        );
+        connector.send(msg.from, ack);
+    }
+
+    private void handleFileResume(P2PMessageProtocol.Message msg, P2PPayloads.FileResume resume) {
+        if (resume.fileId() == null || resume.totalChunks() < 0) return;
+
+        // File tạm do FileTransferController giữ → đổi sang fileId mới; không có UI (test) → tin bitmap
+        BitSet missing = fileTransferManager.resumeIncoming(msg.from, resume, previousFileId ->
+                chatController != null && chatController.getFileTransferController() != null
+                        ? chatController.getFileTransferController().handleFileResume(
+                                msg.from, previousFileId, resume.fileId(), resume.fileName(), resume.fileSize(),
+                                resume.conversationId(), resume.clientMessageId(), resume.checksum())
+                        : Long.MAX_VALUE);
+
+        connector.send(msg.from,
+                P2PMessageProtocol.createFileResumeAck(localUserId, msg.from, resume.fileId(), missing));
     }
 
-    private void handleFileCancel(P2PMessageProtocol.Message msg) {
-        String fileId = (String) msg.data.get("fileId");
+    private void handleFileCancel(P2PMessageProtocol.Message msg, P2PPayloads.FileRef file) {
+        String fileId = file.fileId();
+        fileTransferManager.forgetIncoming(fileId);
         
         if (eventListener != null) {
             eventListener.onFileCanceled(fileId, false);
         }
     }
 
-    private void handleAudioReject(P2PMessageProtocol.Message msg) {
-        String callId = (String) msg.data.get("callId");
-        String reason = (String) msg.data.get("reason");
+    private void handleAudioReject(P2PMessageProtocol.Message msg, P2PPayloads.AudioReject reject) {
+        String callId = reject.callId();
+        String reason = reject.reason();
         
 //        if (eventListener != null) {
 //            eventListener.onAudioCallRejected(msg.from, callId, reason);
 //        }
     }
 
-    private void handleMessageSeen(P2PMessageProtocol.Message msg) {
-        Number messageId = (Number) msg.data.get("messageId");
+    private void handleMessageSeen(P2PMessageProtocol.Message msg, P2PPayloads.MessageRef seen) {
+        Integer messageId = seen.messageId();
         if (messageId != null) {
-            chatService.markMessageSeen(messageId.intValue(), msg.from);
+            chatService.markMessageSeen(messageId, msg.from);
         }
     }
 
@@ -480,8 +663,8 @@ public class P2PManager implements PeerConnection.P2PMessageHandler {
     /**
      * ✅ Handle FILE_ACK from receiver
      */
-    private void handleFileAck(P2PMessageProtocol.Message msg) {
-        String fileId = (String) msg.data.get("fileId");
+    private void handleFileAck(P2PMessageProtocol.Message msg, P2PPayloads.FileRef file) {
+        String fileId = file.fileId();
         if (fileId == null) return;
 
         System.out.println("✅ Receiver confirmed file: " + fileId);
@@ -496,9 +679,9 @@ public class P2PManager implements PeerConnection.P2PMessageHandler {
     /**
      * ✅ Handle FILE_NACK from receiver
      */
-    private void handleFileNack(P2PMessageProtocol.Message msg) {
-        String fileId = (String) msg.data.get("fileId");
-        String reason = (String) msg.data.get("reason");
+    private void handleFileNack(P2PMessageProtocol.Message msg, P2PPayloads.FileNack nack) {
+        String fileId = nack.fileId();
+        String reason = nack.reason();
         
         if (fileId != null) {
             System.err.println("❌ Received FILE_NACK for: " + fileId + ", reason: " + reason);
@@ -541,23 +724,6 @@ public class P2PManager implements PeerConnection.P2PMessageHandler {
                     eventListener.onFileError(fileId, error);
                 }
             }
-            
-            /**
-             * ✅ Handle FILE_NACK from receiver
-             */
-            private void handleFileNack(P2PMessageProtocol.Message msg) {
-                String fileId = (String) msg.data.get("fileId");
-                String reason = (String) msg.data.get("reason");
-                
-                if (fileId != null) {
-                    System.err.println("❌ Received FILE_NACK for: " + fileId + ", reason: " + reason);
-                    
-                    if (eventListener != null) {
-                        eventListener.onFileError(fileId, reason);
-                    }
-                }
-            }
-            
         });
     }
 
@@ -614,6 +780,13 @@ public class P2PManager implements PeerConnection.P2PMessageHandler {
     public void setEventListener(P2PEventListener listener) {
         this.eventListener = listener;
     }
+
+    /**
+     * Thư mục lưu trạng thái file nhận dở (để sender gửi lại chỉ phần thiếu, kể cả sau khi khởi động lại)
+     */
+    public void setPartialTransferDirectory(Path directory) {
+        fileTransferManager.setResumeDirectory(directory);
+    }
     
     // Method to expose file chunk handling to FileTransferController
     public FileChunkMetadata getFileMetadata(String fileId) {
@@ -629,6 +802,7 @@ public class P2PManager implements PeerConnection.P2PMessageHandler {
     public void shutdown() {
         fileTransferManager.shutdown();
         audioCallManager.shutdown();
+        connector.shutdown();
         activeConnections.values().forEach(PeerConnection::closeAll);
         activeConnections.clear();
         fileChunkMetadata.clear();
@@ -1,10 +1,14 @@
 package network.p2p;
 
+import config.AppConfig;
 import protocol.P2PMessageProtocol;
+import util.AppThreads;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
@@ -13,22 +17,35 @@ import network.p2p.PeerConnection.P2PMessageHandler;
 
 /**
  * P2PServer - Lắng nghe incoming P2P connections từ peers khác
+ * - AppConfig.P2P_NIO_SERVER: NioP2PServer (số thread cố định cho mọi kết nối đến)
+ * - Ngược lại: 1 thread blocking / kết nối
  */
 public class P2PServer {
 
 	private final int port;
+    private Integer localUserId; // Gửi trong HELLO
     private volatile boolean running = false;
     private ServerSocket serverSocket;
     private Thread acceptorThread;
+    private NioP2PServer nioServer;
     private final Set<IncomingPeerHandler> handlers = new CopyOnWriteArraySet<>();
     
  // Handler cho incoming messages
     private P2PMessageHandler messageHandler;
+    private volatile Set<P2PMessageProtocol.MessageType> acceptedTypes; // null = nhận hết
+    private InboundConnectionListener connectionListener;
     
     public interface P2PMessageHandler {
         void onMessageReceived(Integer fromUserId, P2PMessageProtocol.Message message);
     }
 
+    /**
+     * Peer đã HELLO trên kết nối đến → P2PManager dùng luôn kết nối này để gửi (ACK, chat, ...)
+     */
+    public interface InboundConnectionListener {
+        void onInboundConnection(PeerConnection connection);
+    }
+
     public P2PServer(int port) {
         this.port = port;
     }
@@ -38,10 +55,17 @@ public class P2PServer {
      */
     public void start() {
         if (running) return;
+
+        if (AppConfig.P2P_NIO_SERVER) {
+            nioServer = new NioP2PServer(port, this);
+            running = nioServer.start();
+            return;
+        }
         
-        acceptorThread = new Thread(() -> {
+        acceptorThread = AppThreads.newThread("p2p-acceptor", () -> {
             try {
-                serverSocket = new ServerSocket(port);
+                // Socket nhận về có SocketChannel → PeerChannel đọc thẳng vào direct buffer
+                serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
                 running = true;
                 System.out.println("✅ P2P Server started on port " + port);
                 
@@ -49,16 +73,14 @@ public class P2PServer {
                     Socket clientSocket = serverSocket.accept();
                     IncomingPeerHandler handler = new IncomingPeerHandler(clientSocket);
                     handlers.add(handler);
-                    new Thread(handler, "p2p-incoming-" + clientSocket.getInetAddress()).start();
+                    AppThreads.start("p2p-incoming-" + clientSocket.getInetAddress(), false, handler);
                 }
             } catch (IOException e) {
                 if (running) {
                     System.err.println("❌ P2P Server error: " + e.getMessage());
                 }
             }
-        }, "p2p-acceptor");
-        
-        acceptorThread.setDaemon(true);
+        });
         acceptorThread.start();
     }
     
@@ -67,6 +89,11 @@ public class P2PServer {
      */
     public void stop() {
         running = false;
+
+        if (nioServer != null) {
+            nioServer.stop();
+            nioServer = null;
+        }
         
         handlers.forEach(IncomingPeerHandler::close);
         handlers.clear();
@@ -85,21 +112,79 @@ public class P2PServer {
     public void setMessageHandler(P2PMessageHandler handler) {
         this.messageHandler = handler;
     }
+
+    public void setLocalUserId(Integer localUserId) {
+        this.localUserId = localUserId;
+    }
+
+    public void setConnectionListener(InboundConnectionListener listener) {
+        this.connectionListener = listener;
+    }
+
+    /**
+     * Chỉ nhận các type có handler (vd: P2PManager.getHandledTypes()), type khác bỏ ngay khi đọc
+     */
+    public void setAcceptedTypes(Set<P2PMessageProtocol.MessageType> acceptedTypes) {
+        this.acceptedTypes = acceptedTypes;
+        handlers.forEach(h -> {
+            if (h.channel != null) h.channel.setAcceptedTypes(acceptedTypes);
+        });
+        if (nioServer != null) {
+            nioServer.setAcceptedTypes(acceptedTypes);
+        }
+    }
+
+    P2PMessageHandler getMessageHandler() {
+        return messageHandler;
+    }
+
+    Integer getLocalUserId() {
+        return localUserId;
+    }
+
+    Set<P2PMessageProtocol.MessageType> getAcceptedTypes() {
+        return acceptedTypes;
+    }
+
+    /**
+     * Bọc kết nối đến (peer đã HELLO) thành PeerConnection và giao cho listener
+     * Peer cũ không gửi HELLO → không gọi, kết nối đến chỉ dùng để đọc như trước
+     * @param closer đóng kết nối phía server
+     * @return PeerConnection đã giao (server gọi onInboundClosed() khi đóng), null nếu không có listener
+     */
+    PeerConnection adopt(PeerChannel channel, Runnable closer) {
+        InboundConnectionListener listener = connectionListener;
+        Integer peerId = channel.getPeerUserId();
+        if (listener == null || peerId == null) return null;
+
+        // Lấy IP/port từ discovery (voice dùng port + 1); peer chưa có trong discovery → IP của socket
+        PeerInfo peer = PeerDiscoveryService.getInstance().getPeer(peerId);
+        if (peer == null) {
+            peer = new PeerInfo(peerId, channel.getSocket().getInetAddress().getHostAddress(), AppConfig.P2P_PORT);
+        }
+
+        channel.startWriter("p2p-writer-" + peerId);
+        PeerConnection conn = PeerConnection.adopt(peer, localUserId, channel, closer);
+        conn.setAcceptedTypes(acceptedTypes);
+        listener.onInboundConnection(conn);
+        return conn;
+    }
     
 // ===== INCOMING PEER HANDLER =====
     
     private class IncomingPeerHandler implements Runnable {
         private final Socket socket;
-        private BufferedReader reader;
-        private PrintWriter writer;
+        private PeerChannel channel;
         private volatile boolean active = true;
         private Integer remotePeerId;
+        private volatile PeerConnection adopted;
 
         public IncomingPeerHandler(Socket socket) {
             this.socket = socket;
             try {
-                this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                this.writer = new PrintWriter(socket.getOutputStream(), true);
+                this.channel = new PeerChannel(socket);
+                this.channel.setAcceptedTypes(acceptedTypes);
+                this.channel.setHelloListener(hello -> adopted = adopt(channel, this::close));
             } catch (IOException e) {
                 close();
             }
@@ -110,9 +195,12 @@ public class P2PServer {
             System.out.println("✅ New P2P connection from " + socket.getInetAddress());
             
             try {
-                String line;
-                while (active && (line = reader.readLine()) != null) {
-                    handleMessage(line);
+                if (channel == null) return;
+                channel.open(localUserId, null);
+                
+                P2PMessageProtocol.Message msg;
+                while (active && (msg = channel.read()) != null) {
+                    handleMessage(msg);
                 }
             } catch (IOException e) {
                 if (active) {
@@ -123,17 +211,15 @@ public class P2PServer {
             }
         }
         
-        private void handleMessage(String json) {
-            P2PMessageProtocol.Message msg = P2PMessageProtocol.parse(json);
-            
+        private void handleMessage(P2PMessageProtocol.Message msg) {
             if (!P2PMessageProtocol.isValid(msg)) {
                 System.err.println("❌ Invalid P2P message received");
                 return;
             }
 
-            // Lưu lại peer ID từ message đầu tiên
+            // Peer ID lấy từ HELLO; peer cũ không gửi HELLO → lấy từ message đầu tiên
             if (remotePeerId == null) {
-                remotePeerId = msg.from;
+                remotePeerId = channel.getPeerUserId() != null ? channel.getPeerUserId() : msg.from;
                 System.out.println("✅ Identified peer: " + remotePeerId);
             }
 
@@ -144,10 +230,11 @@ public class P2PServer {
         }
         
         public void send(String json) {
-            if (writer != null && !socket.isClosed()) {
-                synchronized (writer) {
-                    writer.println(json);
-                    writer.flush();
+            if (channel != null && !socket.isClosed()) {
+                try {
+                    channel.send(json);
+                } catch (IOException e) {
+                    System.err.println("❌ Failed to send to incoming peer: " + e.getMessage());
                 }
             }
         }
@@ -155,11 +242,15 @@ public class P2PServer {
         public void close() {
             active = false;
             
-            try { if (reader != null) reader.close(); } catch (IOException ignored) {}
-            try { if (writer != null) writer.close(); } catch (Exception ignored) {}
+            if (channel != null) channel.close();
             try { if (socket != null) socket.close(); } catch (IOException ignored) {}
             
             handlers.remove(this);
+
+            PeerConnection conn = adopted;
+            if (conn != null) {
+                conn.onInboundClosed();
+            }
         }
     
     }
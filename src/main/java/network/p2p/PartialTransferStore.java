@@ -0,0 +1,118 @@
+package network.p2p;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Objects;
+
+/**
+ * PartialTransferStore - Trạng thái file đang nhận dở (chunk nào đã ghi), lưu ra đĩa để gửi lại chỉ phần thiếu
+ * - Khóa theo clientMessageId (giữ nguyên giữa các lần sender gửi lại; fileId thì đổi mỗi lần)
+ * - 1 file "<key>.resume" (JSON) / file đang nhận, ghi file tạm rồi đổi tên → không bao giờ đọc phải file dở
+ * - Chưa đặt thư mục (setDirectory) → chỉ giữ trong bộ nhớ
+ */
+class PartialTransferStore {
+    private static final String SUFFIX = ".resume";
+
+    private final Gson gson = new Gson();
+    private volatile Path directory;
+
+    /**
+     * File đang nhận dở (chỉ thread dispatch của peer gửi đụng tới)
+     */
+    static final class Partial {
+        String fileId;
+        Integer fromUserId;
+        String clientMessageId;
+        String fileName;
+        long fileSize;
+        int totalChunks;
+        Integer conversationId;
+        String checksum;
+        String receivedChunks;          // Base64 của BitSet, chỉ dùng khi lưu / đọc
+        transient BitSet received = new BitSet();
+        transient int unsaved;          // Số chunk nhận được từ lần lưu trước
+
+        String key() {
+            return clientMessageId != null ? clientMessageId : fileId;
+        }
+
+        /**
+         * Cùng file với FILE_RESUME của cùng sender (kích thước, số chunk, checksum khớp)
+         */
+        boolean matches(Integer fromUserId, long fileSize, int totalChunks, String checksum) {
+            return Objects.equals(this.fromUserId, fromUserId)
+                    && this.fileSize == fileSize
+                    && this.totalChunks == totalChunks
+                    && Objects.equals(this.checksum, checksum);
+        }
+    }
+
+    void setDirectory(Path directory) {
+        try {
+            Files.createDirectories(directory);
+            this.directory = directory;
+        } catch (IOException e) {
+            System.err.println("❌ Cannot create partial transfer directory: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return null nếu chưa lưu / không đọc được
+     */
+    Partial load(String key) {
+        Path file = fileFor(key);
+        if (file == null || !Files.exists(file)) return null;
+
+        try {
+            Partial partial = gson.fromJson(Files.readString(file, StandardCharsets.UTF_8), Partial.class);
+            if (partial == null) return null;
+            partial.received = partial.receivedChunks != null
+                    ? BitSet.valueOf(Base64.getDecoder().decode(partial.receivedChunks))
+                    : new BitSet();
+            return partial;
+        } catch (IOException | JsonParseException | IllegalArgumentException e) {
+            System.err.println("⚠️ Ignoring unreadable partial transfer " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    void save(Partial partial) {
+        partial.unsaved = 0;
+        Path file = fileFor(partial.key());
+        if (file == null) return;
+
+        partial.receivedChunks = Base64.getEncoder().encodeToString(partial.received.toByteArray());
+        try {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.writeString(temp, gson.toJson(partial), StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("⚠️ Failed to save partial transfer " + partial.fileId + ": " + e.getMessage());
+        }
+    }
+
+    void delete(Partial partial) {
+        Path file = fileFor(partial.key());
+        if (file == null) return;
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("⚠️ Failed to delete partial transfer " + file + ": " + e.getMessage());
+        }
+    }
+
+    private Path fileFor(String key) {
+        Path dir = directory;
+        if (dir == null || key == null) return null;
+        // Khóa đến từ peer → chỉ giữ ký tự an toàn cho tên file
+        return dir.resolve(key.replaceAll("[^A-Za-z0-9_-]", "_") + SUFFIX);
+    }
+}
@@ -0,0 +1,39 @@
+package network.p2p;
+
+import protocol.P2PPayloads;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PeerCapabilityCache - Nhớ HELLO gần nhất của từng peer (theo userId)
+ * Kết nối lại tới peer đã biết → PeerChannel dùng luôn codec đã thỏa thuận (không chờ HELLO_ACK).
+ * Peer đổi phiên bản / tắt tính năng → kết nối lạc quan thất bại → xóa cache, lần sau bắt tay đầy đủ.
+ */
+public class PeerCapabilityCache {
+    private static final PeerCapabilityCache instance = new PeerCapabilityCache();
+
+    private final Map<Integer, P2PPayloads.Hello> capabilities = new ConcurrentHashMap<>();
+
+    private PeerCapabilityCache() {}
+
+    public static PeerCapabilityCache getInstance() {
+        return instance;
+    }
+
+    public P2PPayloads.Hello get(Integer userId) {
+        return userId != null ? capabilities.get(userId) : null;
+    }
+
+    public void put(Integer userId, P2PPayloads.Hello hello) {
+        if (userId != null && hello != null) {
+            capabilities.put(userId, hello);
+        }
+    }
+
+    public void invalidate(Integer userId) {
+        if (userId != null && capabilities.remove(userId) != null) {
+            System.out.println("⚠️ Cleared cached capabilities of peer " + userId);
+        }
+    }
+}
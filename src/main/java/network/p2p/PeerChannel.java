@@ -0,0 +1,1124 @@
+package network.p2p;
+
+import config.AppConfig;
+import protocol.BinaryFrameCodec;
+import protocol.FrameCompression;
+import protocol.P2PMessageProtocol;
+import protocol.P2PPayloads;
+import util.AppThreads;
+import util.DirectBufferPool;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * PeerChannel - Framing trên 1 TCP socket giữa 2 peer
+ * - Mặc định: JSON, mỗi message 1 dòng (tương thích peer cũ)
+ * - Binary: length-prefixed frame (BinaryFrameCodec) sau khi 2 bên bắt tay
+ *
+ * Bắt tay HELLO (mỗi chiều chuyển độc lập):
+ * 1. Khi mở kết nối, mỗi bên gửi dòng "#hello {...}": userId, version, codecs, compression,
+ *    maxFrame, fileWindow
+ * 2. Nhận HELLO của peer → chọn codec/compression peer đọc được, gửi "#hello-ack {...}"
+ *    rồi chuyển chiều ghi
+ * 3. Nhận HELLO_ACK của peer → chuyển chiều đọc
+ * Peer cũ không gửi HELLO → kết nối giữ JSON.
+ *
+ * Kết nối lại tới peer có trong PeerCapabilityCache: HELLO mang luôn useCodec/useCompression
+ * và chiều ghi chuyển ngay sau dòng HELLO (không chờ HELLO_ACK).
+ *
+ * Batching (chỉ binary, trong writer): message nhỏ gửi liền nhau trong P2P_BATCH_LINGER_MICROS được gom
+ * thành 1 frame BATCH → 1 lần write + flush thay vì N lần. Receiver tách BATCH ngay trong read().
+ *
+ * Writer riêng (startWriter, dùng cho PeerConnection): send() chỉ xếp message vào hàng đợi có giới hạn,
+ * 1 writer thread lấy hết những gì đang chờ, ghi liền (message nhỏ gom BATCH) rồi flush 1 lần.
+ * Thread gửi (file sender, ACK, UI) không tranh khóa ghi với nhau và không chờ syscall.
+ * Hàng đợi chia 3 làn (Lane): CONTROL → INTERACTIVE → BULK; làn trên luôn ghi trước,
+ * BULK (file) tối đa P2P_BULK_BYTES_PER_TURN mỗi lượt → chat/ACK không phải chờ sau cả loạt chunk.
+ *
+ * PING/PONG xử lý ngay trong kênh (không tới P2PManager): PING → trả PONG, PONG → mẫu RTT (PeerLinkStats).
+ *
+ * Đọc: socket có SocketChannel (PeerConnection, P2PServer) → đọc thẳng vào direct buffer lấy từ
+ * DirectBufferPool, tách frame / dòng ngay trong buffer (decode), frame đọc qua stream dùng lại
+ * (không copy ra byte[], không tạo stream mới mỗi frame). Socket thường → stream như cũ.
+ */
+public class PeerChannel {
+    private static final int OUT_BUFFER_SIZE = 64 * 1024;
+    private static final int WRITER_DRAIN_MAX = 256;       // Message / lần flush của writer
+    private static final long SEND_QUEUE_TIMEOUT_MS = 5000;
+    private static final long WRITER_CLOSE_TIMEOUT_MS = 1000;
+
+    private final Socket socket;
+    private final DataInputStream in;          // null: đọc bằng SocketChannel / decode() (NIO)
+    private final SocketChannel readChannel;   // != null: read() đọc thẳng vào readBuf
+    private final DataOutputStream out;
+    // ReentrantLock thay cho synchronized: virtual thread không bị ghim khi ghi socket dưới khóa
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Chiều ghi: đổi trên reader thread, đọc từ mọi thread gửi (dưới writeLock)
+    private volatile boolean binaryOut = false;
+    // Chiều đọc: chỉ reader thread đụng tới
+    private boolean binaryIn = false;
+
+    // Nén: compressor chỉ dùng dưới writeLock, decompressor chỉ reader thread dùng
+    private FrameCompression.Compressor compressor;
+    private FrameCompression.Decompressor decompressor;
+    private byte[] compressedIn;
+
+    // Writer riêng: mỗi làn 1 hàng đợi không khóa (phần tử: Message hoặc JSON String)
+    // Giới hạn bằng semaphore (đầy → thread gửi chờ): CONTROL + INTERACTIVE theo số message, BULK theo byte
+    private Thread writer;
+    private volatile boolean writerRunning = false;
+    private final Queue<Object> controlLane = new ConcurrentLinkedQueue<>();
+    private final Queue<Object> interactiveLane = new ConcurrentLinkedQueue<>();
+    private final Queue<Object> bulkLane = new ConcurrentLinkedQueue<>();
+    private final Semaphore messageSlots = new Semaphore(AppConfig.P2P_WRITER_QUEUE_CAPACITY);
+    private final Semaphore bulkSlots = new Semaphore(AppConfig.P2P_BULK_QUEUE_BYTES);
+
+    // Batching: pending chỉ đụng tới dưới writeLock
+    private final List<P2PMessageProtocol.Message> pending = new ArrayList<>();
+    // Message tách từ BATCH, chờ read() trả ra (chỉ reader thread)
+    private final ArrayDeque<P2PMessageProtocol.Message> unpacked = new ArrayDeque<>();
+    private final LineBuffer lineBuffer = new LineBuffer();
+
+    // Đọc từ buffer (chỉ reader thread): readBuf của pool khi đọc bằng SocketChannel,
+    // stream đọc frame dùng lại cho mọi frame, message đã decode chờ read() trả ra
+    private ByteBuffer readBuf;
+    private final BufferInput frameInput = new BufferInput();
+    private final DataInputStream frameIn = new DataInputStream(frameInput);
+    private final BufferInput inflatedInput = new BufferInput();
+    private final DataInputStream inflatedIn = new DataInputStream(inflatedInput);
+    private final ArrayDeque<P2PMessageProtocol.Message> decoded = new ArrayDeque<>();
+
+    // Handshake
+    private Integer localUserId;
+    private Integer expectedPeerId;       // Biết trước khi kết nối chủ động (dùng cache)
+    private boolean optimistic = false;   // Chiều ghi đã chuyển theo cache, chưa được peer xác nhận
+    private volatile P2PPayloads.Hello peerHello;
+    private final CountDownLatch helloSettled = new CountDownLatch(1); // Đã nhận HELLO / biết peer cũ không gửi
+
+    // Type local có xử lý; frame type khác bị bỏ ngay khi đọc, không decode (null = nhận hết)
+    private volatile Set<P2PMessageProtocol.MessageType> acceptedTypes;
+
+    // Báo khi nhận HELLO của peer (P2PServer nhận kết nối đến vào P2PManager)
+    private Consumer<P2PPayloads.Hello> helloListener;
+
+    // RTT / lần cuối nghe thấy peer (PING/PONG)
+    private final PeerLinkStats stats = new PeerLinkStats();
+
+    public PeerChannel(Socket socket) throws IOException {
+        this.socket = socket;
+        this.readChannel = socket.getChannel();
+        this.in = readChannel == null
+                ? new DataInputStream(new BufferedInputStream(socket.getInputStream()))
+                : null;
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), OUT_BUFFER_SIZE));
+    }
+
+    /**
+     * Kênh non-blocking (NIO server): không có stream đọc, byte nhận được đưa vào qua decode()
+     * @param rawOut stream ghi ra SocketChannel (đã tự buffer)
+     */
+    PeerChannel(Socket socket, OutputStream rawOut) {
+        this.socket = socket;
+        this.in = null;
+        this.readChannel = null;
+        this.out = new DataOutputStream(rawOut);
+    }
+
+    /**
+     * Gửi HELLO (gọi 1 lần ngay sau khi kết nối được mở)
+     * @param localUserId userId của mình
+     * @param peerUserId userId của peer nếu đã biết (kết nối chủ động), null với kết nối đến
+     */
+    public void open(Integer localUserId, Integer peerUserId) throws IOException {
+        this.localUserId = localUserId;
+        this.expectedPeerId = peerUserId;
+
+        P2PPayloads.Hello cached = PeerCapabilityCache.getInstance().get(peerUserId);
+        String useCodec = cached != null ? chooseCodec(cached) : null;
+        String useCompression = useCodec != null ? chooseCompression(cached) : null;
+        if (P2PMessageProtocol.CODEC_JSON.equals(useCodec)) {
+            useCodec = null; // JSON là mặc định, không cần báo
+        }
+
+        P2PMessageProtocol.Message hello = P2PMessageProtocol.createHello(
+                localUserId,
+                localCodecs(),
+                localCompression(),
+                BinaryFrameCodec.MAX_FRAME_SIZE,
+                AppConfig.P2P_FILE_WINDOW_CHUNKS,
+                useCodec,
+                useCompression);
+
+        writeLock.lock();
+        try {
+            writeLine(P2PMessageProtocol.HELLO_PREFIX + P2PMessageProtocol.toJson(hello));
+            out.flush();
+            if (useCodec != null) {
+                switchOut(useCompression);
+                optimistic = true;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // ===== READ =====
+
+    /**
+     * Đọc message kế tiếp (blocking)
+     * @return message, hoặc null khi peer đóng kết nối
+     */
+    public P2PMessageProtocol.Message read() throws IOException {
+        try {
+            P2PMessageProtocol.Message msg = readChannel != null ? readFromChannel() : readNext();
+            if (msg == null) {
+                onClosedBeforeHello();
+                releaseReadBuffer();
+            }
+            return msg;
+        } catch (IOException e) {
+            onClosedBeforeHello();
+            releaseReadBuffer();
+            throw e;
+        }
+    }
+
+    /**
+     * Đọc bằng SocketChannel (blocking): đọc thẳng vào buffer của pool, decode mọi message đã đủ byte
+     */
+    private P2PMessageProtocol.Message readFromChannel() throws IOException {
+        while (decoded.isEmpty()) {
+            if (readBuf == null) {
+                readBuf = DirectBufferPool.getInstance().acquire();
+            }
+            readBuf.flip();
+            int needed = decode(readBuf, decoded::add);
+            readBuf.compact();
+            readBuf = fitReadBuffer(readBuf, needed);
+
+            if (decoded.isEmpty() && readChannel.read(readBuf) < 0) {
+                return null;
+            }
+        }
+        return decoded.poll();
+    }
+
+    // Reader thread gọi khi dừng đọc (buffer trả về pool không được đụng tới nữa)
+    private void releaseReadBuffer() {
+        if (readBuf != null) {
+            DirectBufferPool.getInstance().release(readBuf);
+            readBuf = null;
+        }
+    }
+
+    /**
+     * Buffer đọc (chế độ ghi, sau compact) đủ chứa needed byte:
+     * thiếu → chuyển sang buffer lớn hơn (dòng JSON chưa biết độ dài → gấp đôi);
+     * đang dùng buffer lớn mà phần còn lại đã nhỏ → quay về buffer của pool
+     */
+    static ByteBuffer fitReadBuffer(ByteBuffer buf, int needed) {
+        DirectBufferPool pool = DirectBufferPool.getInstance();
+        ByteBuffer next;
+        if (needed > buf.capacity()) {
+            next = pool.acquire(Math.max(needed, buf.capacity() * 2));
+        } else if (!pool.isPooled(buf) && buf.position() <= DirectBufferPool.BUFFER_SIZE / 2
+                && needed <= DirectBufferPool.BUFFER_SIZE) {
+            next = pool.acquire();
+        } else {
+            return buf;
+        }
+        buf.flip();
+        next.put(buf);
+        pool.release(buf);
+        return next;
+    }
+
+    private P2PMessageProtocol.Message readNext() throws IOException {
+        while (true) {
+            P2PMessageProtocol.Message msg;
+            if (!unpacked.isEmpty()) {
+                msg = unpacked.poll();
+            } else if (binaryIn) {
+                try {
+                    msg = onFrame(readFrame(in, in.readInt()));
+                } catch (EOFException e) {
+                    return null;
+                }
+            } else {
+                String line = readLine();
+                if (line == null) return null;
+                msg = onLine(line);
+            }
+            if (msg != null && !handleLinkMessage(msg)) {
+                return msg;
+            }
+        }
+    }
+
+    /**
+     * Đọc từ buffer (NIO server, readFromChannel): decode mọi message đã đủ byte trong buf, giao cho sink theo thứ tự
+     * buf ở chế độ đọc (đã flip); byte của message chưa đủ được giữ lại, caller compact() rồi đọc tiếp
+     * @return số byte buf cần chứa được để decode message kế tiếp (caller nới buffer nếu thiếu)
+     */
+    int decode(ByteBuffer buf, Consumer<P2PMessageProtocol.Message> sink) throws IOException {
+        try {
+            while (true) {
+                while (!unpacked.isEmpty()) {
+                    deliver(unpacked.poll(), sink);
+                }
+
+                P2PMessageProtocol.Message msg;
+                if (binaryIn) {
+                    if (buf.remaining() < 4) return 4;
+                    int length = buf.getInt(buf.position());
+                    int bodyLength = length & ~FrameCompression.COMPRESSED_FLAG;
+                    if (bodyLength > BinaryFrameCodec.MAX_FRAME_SIZE) {
+                        throw new IOException("Invalid binary frame length: " + bodyLength);
+                    }
+                    if (buf.remaining() < 4 + bodyLength) return 4 + bodyLength;
+
+                    // Đọc frame ngay trong buffer (heap hay direct đều được)
+                    frameInput.reset(buf, buf.position() + 4, bodyLength);
+                    buf.position(buf.position() + 4 + bodyLength);
+                    msg = onFrame(readFrame(frameIn, length));
+                } else {
+                    int end = indexOf(buf, (byte) '\n');
+                    if (end < 0) {
+                        if (buf.remaining() >= BinaryFrameCodec.MAX_FRAME_SIZE) {
+                            throw new IOException("JSON line too long");
+                        }
+                        return buf.remaining() + 1;
+                    }
+                    lineBuffer.reset();
+                    lineBuffer.write(buf, buf.position(), end);
+                    buf.position(end + 1);
+                    msg = onLine(lineBuffer.toLine());
+                }
+                if (msg != null) {
+                    deliver(msg, sink);
+                }
+            }
+        } catch (IOException e) {
+            onClosedBeforeHello();
+            throw e;
+        }
+    }
+
+    private void deliver(P2PMessageProtocol.Message msg, Consumer<P2PMessageProtocol.Message> sink) throws IOException {
+        if (!handleLinkMessage(msg)) {
+            sink.accept(msg);
+        }
+    }
+
+    /**
+     * PING → trả PONG, PONG → mẫu RTT; message khác tính là hoạt động của app
+     * @return true nếu là PING/PONG (đã xử lý, không trả ra)
+     */
+    private boolean handleLinkMessage(P2PMessageProtocol.Message msg) throws IOException {
+        P2PMessageProtocol.MessageType type = P2PMessageProtocol.typeOf(msg);
+        if (type == P2PMessageProtocol.MessageType.PING) {
+            if (P2PPayloads.bodyOf(msg) instanceof P2PPayloads.Ping ping) {
+                sendControl(P2PMessageProtocol.createPong(localUserId, ping.nonce()));
+            }
+            return true;
+        }
+        if (type == P2PMessageProtocol.MessageType.PONG) {
+            if (P2PPayloads.bodyOf(msg) instanceof P2PPayloads.Ping pong) {
+                long rtt = System.nanoTime() - pong.nonce();
+                if (rtt > 0 && rtt < TimeUnit.MINUTES.toNanos(1)) {
+                    stats.onRttSample(rtt);
+                }
+            }
+            return true;
+        }
+        stats.onActive();
+        return false;
+    }
+
+    /**
+     * NIO server: peer đóng kết nối
+     */
+    void onEndOfStream() {
+        onClosedBeforeHello();
+    }
+
+    private static int indexOf(ByteBuffer buf, byte b) {
+        for (int i = buf.position(); i < buf.limit(); i++) {
+            if (buf.get(i) == b) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Xử lý 1 binary frame đã đọc
+     * @return message cần trả ra, null nếu frame bị bỏ qua hoặc là BATCH (đã tách vào unpacked)
+     */
+    private P2PMessageProtocol.Message onFrame(P2PMessageProtocol.Message msg) throws IOException {
+        stats.onHeard();
+        if (msg.type == null) {
+            return null; // Type lạ hoặc local không xử lý → đã bỏ qua
+        }
+        if (P2PMessageProtocol.typeOf(msg) == P2PMessageProtocol.MessageType.BATCH) {
+            unpacked.addAll(P2PMessageProtocol.unpackBatch(msg, acceptedTypes));
+            return null;
+        }
+        return msg;
+    }
+
+    /**
+     * Xử lý 1 dòng JSON / dòng điều khiển
+     * @return message cần trả ra, null nếu dòng bị bỏ qua hoặc là dòng điều khiển
+     */
+    private P2PMessageProtocol.Message onLine(String line) throws IOException {
+        stats.onHeard();
+        if (line.isEmpty()) return null;
+
+        if (line.charAt(0) == '#') {
+            handleControlLine(line);
+            return null;
+        }
+        // Peer mới luôn gửi HELLO trước tiên → message thường tới trước HELLO = peer cũ
+        helloSettled.countDown();
+
+        // Đọc nhanh type trước: type bị bỏ (TYPING_STOP, type lạ, ...) không tốn parse đầy đủ
+        String typeName = P2PMessageProtocol.peekTypeName(line);
+        if (typeName != null && !accepts(P2PMessageProtocol.typeOf(typeName))) {
+            return null;
+        }
+
+        P2PMessageProtocol.Message msg = P2PMessageProtocol.parse(line);
+        if (msg != null && (typeName != null || accepts(P2PMessageProtocol.typeOf(msg)))) {
+            return msg;
+        }
+        return null;
+    }
+
+    private void handleControlLine(String line) throws IOException {
+        if (line.startsWith(P2PMessageProtocol.HELLO_PREFIX)) {
+            P2PMessageProtocol.Message msg = P2PMessageProtocol.parse(line.substring(P2PMessageProtocol.HELLO_PREFIX.length()));
+            if (P2PPayloads.bodyOf(msg) instanceof P2PPayloads.Hello hello) {
+                handleHello(hello);
+                if (helloListener != null) {
+                    helloListener.accept(hello);
+                }
+            }
+        } else if (line.startsWith(P2PMessageProtocol.HELLO_ACK_PREFIX)) {
+            P2PMessageProtocol.Message msg = P2PMessageProtocol.parse(line.substring(P2PMessageProtocol.HELLO_ACK_PREFIX.length()));
+            if (P2PPayloads.bodyOf(msg) instanceof P2PPayloads.HelloAck ack) {
+                switchIn(ack.useCodec(), ack.useCompression());
+            }
+        }
+        // Dòng điều khiển không biết → bỏ qua (peer mới hơn)
+    }
+
+    private void handleHello(P2PPayloads.Hello hello) throws IOException {
+        peerHello = hello;
+        helloSettled.countDown();
+        PeerCapabilityCache.getInstance().put(hello.userId(), hello);
+
+        // Peer gửi lạc quan theo cache của nó → ngay sau dòng này là codec đó
+        if (hello.useCodec() != null) {
+            switchIn(hello.useCodec(), hello.useCompression());
+        }
+
+        writeLock.lock();
+        try {
+            if (optimistic) {
+                // Kiểm tra codec mình đang dùng theo cache vẫn hợp với peer
+                if (!hello.codecs().contains(P2PMessageProtocol.CODEC_BINARY)
+                        || (compressor != null && !hello.compression().contains(FrameCompression.TOKEN))) {
+                    PeerCapabilityCache.getInstance().invalidate(hello.userId());
+                    throw new IOException("Cached codec no longer supported by peer " + hello.userId());
+                }
+                optimistic = false;
+                return;
+            }
+            if (binaryOut) return;
+
+            String useCodec = chooseCodec(hello);
+            String useCompression = chooseCompression(hello);
+            writeLine(P2PMessageProtocol.HELLO_ACK_PREFIX
+                    + P2PMessageProtocol.toJson(P2PMessageProtocol.createHelloAck(localUserId, useCodec, useCompression)));
+            out.flush();
+            if (P2PMessageProtocol.CODEC_BINARY.equals(useCodec)) {
+                switchOut(useCompression);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void switchIn(String codec, String compression) throws IOException {
+        if (codec == null || codec.equals(P2PMessageProtocol.CODEC_JSON)) {
+            return;
+        }
+        if (!codec.equals(P2PMessageProtocol.CODEC_BINARY) || !AppConfig.P2P_BINARY_FRAMES) {
+            throw new IOException("Peer uses unsupported codec: " + codec);
+        }
+        if (compression != null) {
+            if (!compression.equals(FrameCompression.TOKEN) || !AppConfig.P2P_COMPRESSION) {
+                throw new IOException("Peer uses unsupported compression: " + compression);
+            }
+            decompressor = new FrameCompression.Decompressor();
+        }
+        binaryIn = true;
+    }
+
+    // Gọi dưới writeLock
+    private void switchOut(String compression) {
+        if (compression != null) {
+            compressor = new FrameCompression.Compressor();
+        }
+        binaryOut = true;
+    }
+
+    /**
+     * Kết nối lạc quan bị đóng trước khi nhận HELLO → cache có thể đã cũ
+     */
+    private void onClosedBeforeHello() {
+        if (optimistic && peerHello == null) {
+            PeerCapabilityCache.getInstance().invalidate(expectedPeerId);
+        }
+    }
+
+    private static List<String> localCodecs() {
+        return AppConfig.P2P_BINARY_FRAMES
+                ? List.of(P2PMessageProtocol.CODEC_BINARY, P2PMessageProtocol.CODEC_JSON)
+                : List.of(P2PMessageProtocol.CODEC_JSON);
+    }
+
+    private static List<String> localCompression() {
+        return AppConfig.P2P_COMPRESSION ? List.of(FrameCompression.TOKEN) : List.of();
+    }
+
+    private static String chooseCodec(P2PPayloads.Hello hello) {
+        return AppConfig.P2P_BINARY_FRAMES && hello.codecs().contains(P2PMessageProtocol.CODEC_BINARY)
+                ? P2PMessageProtocol.CODEC_BINARY
+                : P2PMessageProtocol.CODEC_JSON;
+    }
+
+    private static String chooseCompression(P2PPayloads.Hello hello) {
+        return AppConfig.P2P_BINARY_FRAMES && AppConfig.P2P_COMPRESSION
+                && hello.codecs().contains(P2PMessageProtocol.CODEC_BINARY)
+                && hello.compression().contains(FrameCompression.TOKEN)
+                ? FrameCompression.TOKEN
+                : null;
+    }
+
+    /**
+     * Đọc thân 1 binary frame (4 byte length đã đọc); bit cao của length = frame nén
+     */
+    private P2PMessageProtocol.Message readFrame(DataInputStream in, int length) throws IOException {
+        if ((length & FrameCompression.COMPRESSED_FLAG) == 0) {
+            return BinaryFrameCodec.read(in, length, acceptedTypes);
+        }
+        if (decompressor == null) {
+            throw new IOException("Compressed frame on uncompressed channel");
+        }
+
+        int compressedLength = length & ~FrameCompression.COMPRESSED_FLAG;
+        if (compressedLength > BinaryFrameCodec.MAX_FRAME_SIZE) {
+            throw new IOException("Invalid compressed frame length: " + compressedLength);
+        }
+        if (compressedIn == null || compressedIn.length < compressedLength) {
+            compressedIn = new byte[Math.max(compressedLength, 8 * 1024)];
+        }
+        in.readFully(compressedIn, 0, compressedLength);
+
+        int frameLength = decompressor.decompress(compressedIn, compressedLength);
+        inflatedInput.reset(decompressor.buffer(), frameLength);
+        return BinaryFrameCodec.read(inflatedIn, inflatedIn.readInt(), acceptedTypes);
+    }
+
+    /**
+     * Đọc 1 dòng UTF-8 (không dùng BufferedReader vì stream có thể chuyển sang binary giữa chừng)
+     */
+    private String readLine() throws IOException {
+        lineBuffer.reset();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                return lineBuffer.toLine();
+            }
+            lineBuffer.write(b);
+        }
+        return lineBuffer.size() > 0 ? lineBuffer.toLine() : null;
+    }
+
+    // ===== WRITE =====
+
+    /**
+     * Gửi message theo codec đang dùng cho chiều ghi
+     */
+    public void send(P2PMessageProtocol.Message msg) throws IOException {
+        stats.onActive();
+        if (writer != null) {
+            enqueue(msg);
+            return;
+        }
+        writeLock.lock();
+        try {
+            if (binaryOut) {
+                sendFrame(msg);
+            } else {
+                writeLine(P2PMessageProtocol.toJson(msg));
+                out.flush();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Gửi JSON đã build sẵn (API cũ)
+     * Nếu chiều ghi đã là binary thì parse lại rồi encode binary
+     */
+    public void send(String json) throws IOException {
+        stats.onActive();
+        if (writer != null) {
+            enqueue(json);
+            return;
+        }
+        writeLock.lock();
+        try {
+            if (binaryOut) {
+                P2PMessageProtocol.Message msg = P2PMessageProtocol.parseGeneric(json);
+                if (msg == null) {
+                    throw new IOException("Invalid P2P message: " + json);
+                }
+                sendFrame(msg);
+            } else {
+                writeLine(json);
+                out.flush();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Gửi PING (PeerHeartbeat), nonce = thời điểm gửi → PONG về tính được RTT
+     * Không chờ: hàng đợi writer đầy thì bỏ lượt này
+     */
+    void ping() throws IOException {
+        sendControl(P2PMessageProtocol.createPing(localUserId, System.nanoTime()));
+    }
+
+    /**
+     * Peer trả lời PING (HELLO.version >= HEARTBEAT_VERSION); peer cũ không gửi HELLO / bản cũ → không ping
+     */
+    public boolean supportsHeartbeat() {
+        P2PPayloads.Hello hello = peerHello;
+        return hello != null && hello.version() >= P2PMessageProtocol.HEARTBEAT_VERSION;
+    }
+
+    /**
+     * Peer ACK từng chunk file (FILE_CHUNK_ACK) → bên gửi dùng cửa sổ trượt thay vì gửi liền một mạch
+     */
+    public boolean supportsFileWindow() {
+        P2PPayloads.Hello hello = peerHello;
+        return hello != null && hello.version() >= P2PMessageProtocol.FILE_WINDOW_VERSION;
+    }
+
+    /**
+     * Peer trả lời FILE_RESUME (chunk nào còn thiếu) → gửi lại file chỉ gửi phần thiếu
+     */
+    public boolean supportsFileResume() {
+        P2PPayloads.Hello hello = peerHello;
+        return hello != null && hello.version() >= P2PMessageProtocol.FILE_RESUME_VERSION;
+    }
+
+    /**
+     * Peer gửi lại riêng chunk bị FILE_CHUNK_NACK → receiver báo được chunk hỏng thay vì chờ hỏng cả file
+     */
+    public boolean supportsChunkNack() {
+        P2PPayloads.Hello hello = peerHello;
+        return hello != null && hello.version() >= P2PMessageProtocol.FILE_CHUNK_NACK_VERSION;
+    }
+
+    public PeerLinkStats getLinkStats() {
+        return stats;
+    }
+
+    /**
+     * Gửi PING/PONG: không tính là hoạt động của app, không bao giờ chờ
+     * (gọi trên thread đọc / selector thread / timer của heartbeat)
+     */
+    private void sendControl(P2PMessageProtocol.Message msg) throws IOException {
+        if (writer == null) {
+            writeLock.lock();
+            try {
+                if (binaryOut) {
+                    sendFrame(msg);
+                } else {
+                    writeLine(P2PMessageProtocol.toJson(msg));
+                    out.flush();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            return;
+        }
+        if (writerRunning && messageSlots.tryAcquire()) {
+            controlLane.offer(msg);
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // ===== WRITER =====
+
+    /**
+     * Chuyển sang ghi bằng writer riêng (gọi 1 lần sau open(), trước khi gửi message)
+     */
+    public void startWriter(String name) {
+        writerRunning = true;
+        writer = AppThreads.start(name, this::writeLoop);
+    }
+
+    /**
+     * Làn gửi của writer
+     */
+    enum Lane {
+        CONTROL,      // ACK, SEEN, tín hiệu cuộc gọi, PING/PONG
+        INTERACTIVE,  // Chat, typing
+        BULK          // Dữ liệu file (và FILE_COMPLETE/CANCEL để giữ thứ tự với chunk của cùng file)
+    }
+
+    static Lane laneOf(P2PMessageProtocol.MessageType type, boolean hasPayload) {
+        if (hasPayload) return Lane.BULK;
+        if (type == null) return Lane.INTERACTIVE;
+        return switch (type) {
+            case FILE_CHUNK, FILE_COMPLETE, FILE_CANCEL -> Lane.BULK;
+            case CHAT_MESSAGE, TYPING_START, TYPING_STOP, AUDIO_DATA -> Lane.INTERACTIVE;
+            default -> Lane.CONTROL;
+        };
+    }
+
+    private static Lane laneOf(Object item) {
+        if (item instanceof P2PMessageProtocol.Message msg) {
+            return laneOf(P2PMessageProtocol.typeOf(msg), msg.payload != null);
+        }
+        String typeName = P2PMessageProtocol.peekTypeName((String) item);
+        return laneOf(typeName != null ? P2PMessageProtocol.typeOf(typeName) : null, false);
+    }
+
+    /**
+     * Số byte tính vào giới hạn làn BULK (ước lượng, không encode)
+     */
+    private static int bulkSize(Object item) {
+        int size = item instanceof P2PMessageProtocol.Message msg
+                ? (msg.payload != null ? msg.payload.length : 0) + 256
+                : ((String) item).length();
+        return Math.min(size, AppConfig.P2P_BULK_QUEUE_BYTES);
+    }
+
+    private void enqueue(Object item) throws IOException {
+        if (!writerRunning) {
+            throw new IOException("Channel closed");
+        }
+        Lane lane = laneOf(item);
+        try {
+            boolean acquired = lane == Lane.BULK
+                    ? bulkSlots.tryAcquire(bulkSize(item), SEND_QUEUE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    : messageSlots.tryAcquire(SEND_QUEUE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (!acquired) {
+                throw new IOException("Send queue full, peer is not reading");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for send queue");
+        }
+        switch (lane) {
+            case CONTROL -> controlLane.offer(item);
+            case INTERACTIVE -> interactiveLane.offer(item);
+            case BULK -> bulkLane.offer(item);
+        }
+        LockSupport.unpark(writer);
+    }
+
+    private boolean outboundEmpty() {
+        return controlLane.isEmpty() && interactiveLane.isEmpty() && bulkLane.isEmpty();
+    }
+
+    private void writeLoop() {
+        long lingerNanos = TimeUnit.MICROSECONDS.toNanos(AppConfig.P2P_BATCH_LINGER_MICROS);
+        long flushDeadline = 0; // != 0: đang giữ batch chưa flush, ghi muộn nhất lúc này (nanoTime)
+        try {
+            while (true) {
+                if (outboundEmpty()) {
+                    if (flushDeadline != 0) {
+                        long waitNanos = flushDeadline - System.nanoTime();
+                        if (waitNanos > 0 && writerRunning) {
+                            LockSupport.parkNanos(this, waitNanos); // send() mới unpark → gom tiếp
+                            continue;
+                        }
+                        flushOutbound();
+                        flushDeadline = 0;
+                        continue;
+                    }
+                    if (!writerRunning) break;
+                    LockSupport.park(this);
+                    continue;
+                }
+                boolean mayLinger = lingerNanos > 0 && (flushDeadline == 0 || System.nanoTime() < flushDeadline);
+                if (!drainOutbound(mayLinger)) {
+                    flushDeadline = 0;
+                } else if (flushDeadline == 0) {
+                    flushDeadline = System.nanoTime() + lingerNanos;
+                }
+            }
+        } catch (IOException e) {
+            if (writerRunning) {
+                System.err.println("❌ Failed to write to peer: " + e.getMessage());
+                close(); // Reader thread nhận EOF → báo mất kết nối như bình thường
+            }
+        } catch (RuntimeException e) {
+            // Lỗi encode... cũng làm writer dừng → đóng kênh, không để thread gửi chờ hàng đợi đầy
+            System.err.println("❌ P2P writer failed: " + e);
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * 1 lượt ghi: lấy theo thứ tự làn (tối đa WRITER_DRAIN_MAX message, BULK tối đa
+     * P2P_BULK_BYTES_PER_TURN byte) rồi flush 1 lần. Lượt sau lại xét CONTROL trước.
+     * mayLinger: batch message nhỏ chưa đầy thì chưa flush, chờ thêm message trong thời gian linger
+     * @return true nếu đang giữ batch chưa flush
+     */
+    private boolean drainOutbound(boolean mayLinger) throws IOException {
+        writeLock.lock();
+        try {
+            int drained = 0;
+            int bulkBytes = 0;
+            while (drained < WRITER_DRAIN_MAX) {
+                Object item = controlLane.poll();
+                if (item == null) item = interactiveLane.poll();
+                if (item != null) {
+                    messageSlots.release();
+                } else if (bulkBytes < AppConfig.P2P_BULK_BYTES_PER_TURN && (item = bulkLane.poll()) != null) {
+                    int size = bulkSize(item);
+                    bulkSlots.release(size);
+                    bulkBytes += size;
+                } else {
+                    break;
+                }
+                drained++;
+                writeQueued(item);
+            }
+            if (mayLinger && !pending.isEmpty() && pending.size() < AppConfig.P2P_BATCH_MAX_MESSAGES) {
+                return true;
+            }
+            flushPending();
+            out.flush();
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Hết thời gian linger → ghi batch đang giữ
+     */
+    private void flushOutbound() throws IOException {
+        writeLock.lock();
+        try {
+            flushPending();
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Gọi dưới writeLock
+    private void writeQueued(Object item) throws IOException {
+        if (!binaryOut) {
+            writeLine(item instanceof String json ? json : P2PMessageProtocol.toJson((P2PMessageProtocol.Message) item));
+            return;
+        }
+        P2PMessageProtocol.Message msg = item instanceof String json ? P2PMessageProtocol.parseGeneric(json)
+                : (P2PMessageProtocol.Message) item;
+        if (msg == null) {
+            System.err.println("❌ Dropped invalid P2P message: " + item);
+            return;
+        }
+        if (msg.payload != null) {
+            flushPending(); // Giữ thứ tự với message nhỏ đang gom
+            writeFrame(msg);
+        } else {
+            pending.add(msg);
+            if (pending.size() >= AppConfig.P2P_BATCH_MAX_MESSAGES) flushPending();
+        }
+    }
+
+    // ===== BATCHING =====
+
+    /**
+     * Gửi 1 binary frame ngay (kênh chưa có writer, gọi dưới writeLock)
+     * Gom BATCH chỉ làm trong writer (drainOutbound)
+     */
+    private void sendFrame(P2PMessageProtocol.Message msg) throws IOException {
+        flushPending();
+        writeFrame(msg);
+        out.flush();
+    }
+
+    /**
+     * Ghi các message đang chờ: 1 message → frame thường, nhiều message → 1 frame BATCH
+     */
+    private void flushPending() throws IOException {
+        if (pending.isEmpty()) return;
+        try {
+            if (pending.size() == 1) {
+                writeFrame(pending.get(0));
+            } else {
+                writeFrame(P2PMessageProtocol.createBatch(pending.get(0).from, pending));
+            }
+        } finally {
+            pending.clear();
+        }
+    }
+
+    /**
+     * Ghi 1 binary frame (gọi dưới writeLock)
+     * Payload đã nén sẵn (ảnh, zip, ...) đi thẳng, không qua DEFLATE
+     */
+    private void writeFrame(P2PMessageProtocol.Message msg) throws IOException {
+        P2PPayloads.Hello hello = peerHello;
+        if (msg.payload != null && hello != null && hello.maxFrame() > 0
+                && msg.payload.length > hello.maxFrame() - 1024) {
+            throw new IOException("Payload exceeds peer max frame size: " + msg.payload.length);
+        }
+        if (compressor == null || msg.incompressible) {
+            BinaryFrameCodec.write(out, msg);
+            return;
+        }
+        int length = compressor.compress(BinaryFrameCodec.encode(msg));
+        out.writeInt(length | FrameCompression.COMPRESSED_FLAG);
+        out.write(compressor.buffer(), 0, length);
+    }
+
+    private void writeLine(String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    // ===== STATE =====
+
+    public boolean isBinaryOut() {
+        return binaryOut;
+    }
+
+    public boolean isBinaryIn() {
+        return binaryIn;
+    }
+
+    /**
+     * Chỉ nhận các type này (type khác bị bỏ ngay khi đọc); null = nhận hết
+     */
+    public void setAcceptedTypes(Set<P2PMessageProtocol.MessageType> acceptedTypes) {
+        if (acceptedTypes != null) {
+            // PING/PONG luôn nhận (kênh tự xử lý)
+            Set<P2PMessageProtocol.MessageType> withLink =
+                    EnumSet.of(P2PMessageProtocol.MessageType.PING, P2PMessageProtocol.MessageType.PONG);
+            withLink.addAll(acceptedTypes);
+            acceptedTypes = withLink;
+        }
+        this.acceptedTypes = acceptedTypes;
+    }
+
+    /**
+     * Gọi trên thread đọc ngay sau khi xử lý HELLO của peer (đặt trước khi bắt đầu đọc)
+     */
+    void setHelloListener(Consumer<P2PPayloads.Hello> helloListener) {
+        this.helloListener = helloListener;
+    }
+
+    private boolean accepts(P2PMessageProtocol.MessageType type) {
+        Set<P2PMessageProtocol.MessageType> accepted = acceptedTypes;
+        return type != null && (accepted == null || accepted.contains(type));
+    }
+
+    public boolean isCompressedOut() {
+        return compressor != null;
+    }
+
+    /**
+     * HELLO của peer (null nếu peer cũ không gửi HELLO hoặc chưa nhận)
+     */
+    public P2PPayloads.Hello getPeerHello() {
+        return peerHello;
+    }
+
+    /**
+     * Chờ HELLO của peer (kết nối vừa mở) trước khi chọn cách gửi theo khả năng của peer
+     * @return HELLO, null nếu peer cũ hoặc chưa nhận kịp trong timeoutMs
+     */
+    public P2PPayloads.Hello awaitPeerHello(long timeoutMs) throws InterruptedException {
+        helloSettled.await(timeoutMs, TimeUnit.MILLISECONDS);
+        return peerHello;
+    }
+
+    public Integer getPeerUserId() {
+        P2PPayloads.Hello hello = peerHello;
+        return hello != null && hello.userId() != null ? hello.userId() : expectedPeerId;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public void close() {
+        boolean writerStuck = false;
+        if (writer != null && writerRunning) {
+            // Writer ghi nốt hàng đợi rồi dừng
+            writerRunning = false;
+            LockSupport.unpark(writer);
+            if (Thread.currentThread() != writer) {
+                try {
+                    writer.join(WRITER_CLOSE_TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                writerStuck = writer.isAlive();
+            }
+        }
+        // Đẩy nốt batch đang chờ trước khi đóng. Peer không đọc → writer (hoặc thread gửi) kẹt trong
+        // lệnh ghi socket dưới writeLock: không chờ khóa, đóng socket luôn để gỡ nó ra
+        if (!writerStuck && tryLockWrite()) {
+            try {
+                flushPending();
+                out.flush();
+            } catch (IOException ignored) {
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        try { socket.close(); } catch (IOException ignored) {}
+        try { if (in != null) in.close(); } catch (IOException ignored) {}
+        try { out.close(); } catch (IOException ignored) {}
+        // Socket đã đóng → lệnh ghi đang kẹt (nếu có) ném lỗi và nhả khóa
+        writeLock.lock();
+        try {
+            if (compressor != null) {
+                compressor.close();
+                compressor = null;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private boolean tryLockWrite() {
+        try {
+            return writeLock.tryLock(WRITER_CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // ===== INNER CLASSES =====
+
+    private static class LineBuffer extends ByteArrayOutputStream {
+        LineBuffer() {
+            super(1024);
+        }
+
+        /**
+         * Thêm byte [from, to) của src (không đổi position của src)
+         */
+        void write(ByteBuffer src, int from, int to) {
+            int len = to - from;
+            if (count + len > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + len));
+            }
+            src.get(from, buf, count, len);
+            count += len;
+        }
+
+        String toLine() {
+            int len = count;
+            if (len > 0 && buf[len - 1] == '\r') len--; // println trên Windows
+            return new String(buf, 0, len, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * InputStream đọc 1 đoạn của ByteBuffer / byte[] (absolute get, không đổi position),
+     * reset() để dùng lại cho frame kế tiếp thay vì tạo stream mới
+     */
+    private static final class BufferInput extends InputStream {
+        private ByteBuffer src;
+        private byte[] array;
+        private int pos;
+        private int end;
+
+        void reset(ByteBuffer src, int from, int length) {
+            this.src = src;
+            this.array = null;
+            this.pos = from;
+            this.end = from + length;
+        }
+
+        void reset(byte[] array, int length) {
+            this.src = null;
+            this.array = array;
+            this.pos = 0;
+            this.end = length;
+        }
+
+        @Override
+        public int read() {
+            if (pos >= end) return -1;
+            byte b = array != null ? array[pos] : src.get(pos);
+            pos++;
+            return b & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            int n = Math.min(len, end - pos);
+            if (n <= 0) return -1;
+            if (array != null) {
+                System.arraycopy(array, pos, b, off, n);
+            } else {
+                src.get(pos, b, off, n);
+            }
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, end - pos));
+            pos += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return end - pos;
+        }
+    }
+}
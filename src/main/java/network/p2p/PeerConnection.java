@@ -1,10 +1,13 @@
 package network.p2p;
 
+import config.AppConfig;
 import protocol.P2PMessageProtocol;
+import util.AppThreads;
 
 import java.io.*;
 import java.net.*;
-import java.util.concurrent.*;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -14,13 +17,14 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class PeerConnection {
     private final PeerInfo remotePeer;
+    private final Integer localUserId;
     
     // TCP components
     private Socket tcpSocket;
-    private BufferedReader tcpReader;
-    private PrintWriter tcpWriter;
+    private PeerChannel tcpChannel;
     private final AtomicBoolean tcpConnected = new AtomicBoolean(false);
     private Thread tcpReaderThread;
+    private Runnable inboundCloser; // != null: kết nối do peer mở tới P2PServer (server đọc, ở đây chỉ ghi)
     
     // UDP components (cho voice call)
     private DatagramSocket udpSocket;
@@ -28,9 +32,8 @@ public class PeerConnection {
     
     // Message handler
     private P2PMessageHandler messageHandler;
+    private Set<P2PMessageProtocol.MessageType> acceptedTypes; // null = nhận hết
     
-    // Thread pool
-    private final ExecutorService executor = Executors.newCachedThreadPool();
 
     public interface P2PMessageHandler {
         void onMessageReceived(P2PMessageProtocol.Message message);
@@ -40,9 +43,28 @@ public class PeerConnection {
     
 
     public PeerConnection(PeerInfo remotePeer) {
+        this(remotePeer, null);
+    }
+
+    public PeerConnection(PeerInfo remotePeer, Integer localUserId) {
         this.remotePeer = remotePeer;
+        this.localUserId = localUserId;
     }
     
+    /**
+     * Nhận kết nối do peer mở tới P2PServer (peer đã HELLO) → gửi luôn trên socket đó, không dial thêm
+     * Server vẫn đọc message như cũ và gọi onInboundClosed() khi kết nối đóng
+     * @param closer đóng kết nối phía server
+     */
+    static PeerConnection adopt(PeerInfo remotePeer, Integer localUserId, PeerChannel channel, Runnable closer) {
+        PeerConnection conn = new PeerConnection(remotePeer, localUserId);
+        conn.tcpChannel = channel;
+        conn.tcpSocket = channel.getSocket();
+        conn.inboundCloser = closer;
+        conn.tcpConnected.set(true);
+        return conn;
+    }
+
     /**
      * Kết nối TCP tới peer
      */
@@ -50,14 +72,17 @@ public class PeerConnection {
         if (tcpConnected.get()) return true;
         
         try {
-            tcpSocket = new Socket();
+            // Socket có SocketChannel → PeerChannel đọc thẳng vào direct buffer của pool
+            tcpSocket = SocketChannel.open().socket();
             tcpSocket.connect(
                 new InetSocketAddress(remotePeer.getIp(), remotePeer.getPort()), 
                 timeoutMs
             );
             
-            tcpReader = new BufferedReader(new InputStreamReader(tcpSocket.getInputStream()));
-            tcpWriter = new PrintWriter(tcpSocket.getOutputStream(), true);
+            tcpChannel = new PeerChannel(tcpSocket);
+            tcpChannel.setAcceptedTypes(acceptedTypes);
+            tcpChannel.open(localUserId, remotePeer.getUserId());
+            tcpChannel.startWriter("p2p-writer-" + remotePeer.getUserId());
             
             tcpConnected.set(true);
             startTcpReader();
@@ -76,11 +101,11 @@ public class PeerConnection {
      * Khởi động thread đọc TCP messages
      */
     private void startTcpReader() {
-        tcpReaderThread = new Thread(() -> {
+        tcpReaderThread = AppThreads.newThread("tcp-reader-" + remotePeer.getUserId(), () -> {
             try {
-                String line;
-                while (tcpConnected.get() && (line = tcpReader.readLine()) != null) {
-                    handleIncomingMessage(line);
+                P2PMessageProtocol.Message msg;
+                while (tcpConnected.get() && (msg = tcpChannel.read()) != null) {
+                    handleIncomingMessage(msg);
                 }
             } catch (IOException e) {
                 if (tcpConnected.get()) {
@@ -92,21 +117,19 @@ public class PeerConnection {
                     messageHandler.onConnectionLost();
                 }
             }
-        }, "tcp-reader-" + remotePeer.getUserId());
-        
-        tcpReaderThread.setDaemon(true);
+        });
         tcpReaderThread.start();
     }
 
     /**
      * Xử lý message nhận được
      */
-    private void handleIncomingMessage(String json) {
+    private void handleIncomingMessage(P2PMessageProtocol.Message msg) {
         if (messageHandler == null) return;
         
-        P2PMessageProtocol.Message msg = P2PMessageProtocol.parse(json);
         if (P2PMessageProtocol.isValid(msg)) {
-            executor.submit(() -> messageHandler.onMessageReceived(msg));
+            // Chạy trên pool dùng chung, lần lượt theo thứ tự nhận của peer này
+            PeerDispatcher.getInstance().dispatch(remotePeer.getUserId(), () -> messageHandler.onMessageReceived(msg));
         }
     }
 
@@ -114,16 +137,32 @@ public class PeerConnection {
      * Gửi message qua TCP
      */
     public boolean sendTcp(String json) {
-        if (!tcpConnected.get() || tcpWriter == null) {
+        if (!tcpConnected.get() || tcpChannel == null) {
             System.err.println("❌ TCP not connected to peer " + remotePeer.getUserId());
             return false;
         }
         
         try {
-            synchronized (tcpWriter) {
-                tcpWriter.println(json);
-                tcpWriter.flush();
-            }
+            tcpChannel.send(json);
+            return true;
+        } catch (Exception e) {
+            System.err.println("❌ Failed to send TCP message: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Gửi message qua TCP (binary frame nếu peer hỗ trợ, ngược lại JSON)
+     * Chỉ xếp vào hàng đợi của writer; lỗi ghi sau đó → đóng kết nối (onConnectionLost)
+     */
+    public boolean send(P2PMessageProtocol.Message msg) {
+        if (!tcpConnected.get() || tcpChannel == null) {
+            System.err.println("❌ TCP not connected to peer " + remotePeer.getUserId());
+            return false;
+        }
+        
+        try {
+            tcpChannel.send(msg);
             return true;
         } catch (Exception e) {
             System.err.println("❌ Failed to send TCP message: " + e.getMessage());
@@ -136,9 +175,13 @@ public class PeerConnection {
      */
     public void closeTcp() {
         tcpConnected.set(false);
+
+        if (inboundCloser != null) {
+            inboundCloser.run();
+            return;
+        }
         
-        try { if (tcpReader != null) tcpReader.close(); } catch (IOException ignored) {}
-        try { if (tcpWriter != null) tcpWriter.close(); } catch (Exception ignored) {}
+        if (tcpChannel != null) tcpChannel.close();
         try { if (tcpSocket != null) tcpSocket.close(); } catch (IOException ignored) {}
         
         if (tcpReaderThread != null) {
@@ -221,10 +264,58 @@ public class PeerConnection {
         this.messageHandler = handler;
     }
 
+    /**
+     * Chỉ nhận các type có handler, type khác bỏ ngay khi đọc (null = nhận hết)
+     */
+    public void setAcceptedTypes(Set<P2PMessageProtocol.MessageType> acceptedTypes) {
+        this.acceptedTypes = acceptedTypes;
+        if (tcpChannel != null) {
+            tcpChannel.setAcceptedTypes(acceptedTypes);
+        }
+    }
+
     public boolean isTcpConnected() {
         return tcpConnected.get();
     }
 
+    /**
+     * true: kết nối do peer mở (nhận từ P2PServer), false: do mình dial
+     */
+    public boolean isInbound() {
+        return inboundCloser != null;
+    }
+
+    /**
+     * P2PServer báo kết nối đến đã đóng (peer ngắt / lỗi đọc)
+     */
+    void onInboundClosed() {
+        if (tcpConnected.getAndSet(false) && messageHandler != null) {
+            messageHandler.onConnectionLost();
+        }
+    }
+
+    /**
+     * RTT / thời điểm nghe thấy peer lần cuối (null nếu chưa kết nối)
+     */
+    public PeerLinkStats getLinkStats() {
+        PeerChannel channel = tcpChannel;
+        return channel != null ? channel.getLinkStats() : null;
+    }
+
+    /**
+     * Đang kết nối và (với peer có heartbeat) vẫn nghe thấy peer trong P2P_DEAD_TIMEOUT_MS
+     */
+    public boolean isAlive() {
+        PeerChannel channel = tcpChannel;
+        if (!tcpConnected.get() || channel == null) return false;
+        return !channel.supportsHeartbeat()
+                || channel.getLinkStats().millisSinceHeard() < AppConfig.P2P_DEAD_TIMEOUT_MS;
+    }
+
+    PeerChannel getChannel() {
+        return tcpChannel;
+    }
+
     public boolean isUdpOpen() {
         return udpOpen.get();
     }
@@ -239,6 +330,5 @@ public class PeerConnection {
     public void closeAll() {
         closeTcp();
         closeUdp();
-        executor.shutdownNow();
     }
 }
\ No newline at end of file
@@ -0,0 +1,205 @@
+package network.p2p;
+
+import config.AppConfig;
+import protocol.P2PMessageProtocol;
+import util.AppThreads;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PeerConnector - Mở kết nối P2P mà không bắt thread gửi chờ
+ * - connect(): dial trên thread riêng; nhiều caller cùng peer dùng chung 1 future (không dial trùng)
+ * - send(): đã kết nối → gửi ngay; chưa → xếp hàng, gửi đúng thứ tự khi kết nối xong
+ *   → gửi nhóm không phải chờ thành viên chậm nhất, các peer được dial song song
+ * - Peer không kết nối được → nhớ kèm backoff tăng dần (P2P_CONNECT_BACKOFF_MS x2, tối đa
+ *   P2P_CONNECT_BACKOFF_MAX_MS); trong thời gian đó connect()/send() báo lỗi ngay, không dial lại
+ */
+class PeerConnector {
+    private static final int MAX_QUEUED_PER_PEER = 256;
+
+    private final P2PManager p2pManager;
+    private final ExecutorService dialers = AppThreads.newPerTaskExecutor("p2p-connector-");
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private final Map<Integer, Backoff> unreachable = new ConcurrentHashMap<>();
+
+    PeerConnector(P2PManager p2pManager) {
+        this.p2pManager = p2pManager;
+    }
+
+    /**
+     * Kết nối tới peer (dùng lại kết nối đang có / đang mở)
+     * @return future hoàn thành với kết nối, lỗi nếu không kết nối được hoặc peer đang trong backoff
+     */
+    CompletableFuture<PeerConnection> connect(Integer userId) {
+        PeerConnection conn = connected(userId);
+        if (conn != null) {
+            return CompletableFuture.completedFuture(conn);
+        }
+        Pending p = pending.get(userId);
+        if (p != null) {
+            return p.future;
+        }
+        long waitMs = backoffRemainingMs(userId);
+        if (waitMs > 0) {
+            return CompletableFuture.failedFuture(
+                    new IOException("Peer " + userId + " unreachable, retry in " + waitMs + "ms"));
+        }
+        return start(userId).future;
+    }
+
+    /**
+     * Gửi message, tự kết nối nếu cần (không chờ kết nối)
+     * @return false nếu peer đang trong backoff hoặc hàng đợi đầy; true = đã gửi / đã xếp hàng
+     */
+    boolean send(Integer userId, P2PMessageProtocol.Message msg) {
+        while (true) {
+            // Xét hàng đợi trước: message mới không được vượt message đang chờ kết nối
+            Pending p = pending.get(userId);
+            if (p == null) {
+                PeerConnection conn = connected(userId);
+                if (conn != null) {
+                    return conn.send(msg);
+                }
+                long waitMs = backoffRemainingMs(userId);
+                if (waitMs > 0) {
+                    System.err.println("⚠️ Peer " + userId + " unreachable, retry in " + waitMs + "ms");
+                    return false;
+                }
+                p = start(userId);
+            }
+
+            synchronized (p) {
+                if (!p.done) {
+                    if (p.queued.size() >= MAX_QUEUED_PER_PEER) {
+                        System.err.println("❌ Too many messages waiting for connection to peer " + userId);
+                        return false;
+                    }
+                    p.queued.add(msg);
+                    return true;
+                }
+            }
+            if (p.future.isCompletedExceptionally()) {
+                return false;
+            }
+            // Vừa kết nối xong → gửi thẳng ở vòng sau
+        }
+    }
+
+    /**
+     * Xóa backoff (peer vừa dial tới mình, đổi IP/port, ...)
+     */
+    void forget(Integer userId) {
+        unreachable.remove(userId);
+    }
+
+    void shutdown() {
+        dialers.shutdownNow();
+        pending.clear();
+        unreachable.clear();
+    }
+
+    // ===== INTERNAL =====
+
+    private PeerConnection connected(Integer userId) {
+        PeerConnection conn = p2pManager.getConnection(userId);
+        return conn != null && conn.isTcpConnected() ? conn : null;
+    }
+
+    private Pending start(Integer userId) {
+        Pending created = new Pending();
+        Pending existing = pending.putIfAbsent(userId, created);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            dialers.execute(() -> {
+                PeerConnection conn = null;
+                try {
+                    conn = p2pManager.dial(userId);
+                } catch (RuntimeException e) {
+                    System.err.println("❌ Failed to connect to peer " + userId + ": " + e.getMessage());
+                } finally {
+                    finish(userId, created, conn);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Đã shutdown() → báo lỗi cho caller (send() trả false), không ném ra UI
+            abort(userId, created, new IOException("P2P connector is shut down"));
+        }
+        return created;
+    }
+
+    private void finish(Integer userId, Pending p, PeerConnection conn) {
+        if (conn == null) {
+            Backoff backoff = unreachable.merge(userId, Backoff.first(), (old, ignored) -> old.next());
+            System.err.println("⚠️ Peer " + userId + " unreachable, next attempt in " + backoff.delayMs() + "ms");
+            abort(userId, p, new IOException("Cannot connect to peer " + userId));
+            return;
+        }
+        unreachable.remove(userId);
+
+        // Gửi ngoài khóa (send() có thể chờ hàng đợi của writer); message xếp thêm trong lúc gửi
+        // được lấy ở vòng sau → vẫn đúng thứ tự, chỉ đánh dấu done khi hàng đợi đã rỗng
+        while (true) {
+            List<P2PMessageProtocol.Message> batch;
+            synchronized (p) {
+                if (p.queued.isEmpty()) {
+                    p.done = true;
+                    break;
+                }
+                batch = new ArrayList<>(p.queued);
+                p.queued.clear();
+            }
+            batch.forEach(conn::send);
+        }
+        pending.remove(userId, p);
+        p.future.complete(conn);
+    }
+
+    private void abort(Integer userId, Pending p, IOException cause) {
+        synchronized (p) {
+            if (!p.queued.isEmpty()) {
+                System.err.println("❌ Dropped " + p.queued.size() + " message(s) queued for peer " + userId);
+            }
+            p.queued.clear();
+            p.done = true;
+        }
+        pending.remove(userId, p);
+        p.future.completeExceptionally(cause);
+    }
+
+    private long backoffRemainingMs(Integer userId) {
+        Backoff backoff = unreachable.get(userId);
+        if (backoff == null) return 0;
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(backoff.retryAtNanos() - System.nanoTime()));
+    }
+
+    // Kết nối đang mở tới 1 peer + message chờ gửi (khóa trên chính object này)
+    private static class Pending {
+        final CompletableFuture<PeerConnection> future = new CompletableFuture<>();
+        final List<P2PMessageProtocol.Message> queued = new ArrayList<>();
+        boolean done = false;
+    }
+
+    private record Backoff(int failures, long delayMs, long retryAtNanos) {
+        static Backoff first() {
+            return of(1, AppConfig.P2P_CONNECT_BACKOFF_MS);
+        }
+
+        Backoff next() {
+            return of(failures + 1, Math.min(delayMs * 2, AppConfig.P2P_CONNECT_BACKOFF_MAX_MS));
+        }
+
+        private static Backoff of(int failures, long delayMs) {
+            return new Backoff(failures, delayMs, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs));
+        }
+    }
+}
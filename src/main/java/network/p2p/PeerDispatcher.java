@@ -0,0 +1,88 @@
+package network.p2p;
+
+import config.AppConfig;
+import util.AppThreads;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * PeerDispatcher - Xử lý message P2P nhận được trên 1 pool dùng chung (P2P_DISPATCH_THREADS thread)
+ * - Message cùng peer chạy lần lượt đúng thứ tự nhận (FILE_CHUNK N luôn xong trước N+1)
+ * - Các peer khác nhau chạy song song
+ * - Số thread cố định dù có bao nhiêu peer
+ * Hàng đợi giữ theo peer ID (không xóa khi mất kết nối: số peer có hạn, kết nối lại vẫn giữ thứ tự).
+ */
+public class PeerDispatcher {
+    private static final PeerDispatcher instance = new PeerDispatcher();
+
+    private static final int DRAIN_BATCH = 32; // Task / lượt, để các peer chia đều thread
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(
+            AppConfig.P2P_DISPATCH_THREADS, AppThreads.factory("p2p-dispatch-"));
+    private final Map<Integer, SerialQueue> queues = new ConcurrentHashMap<>();
+
+    private PeerDispatcher() {}
+
+    public static PeerDispatcher getInstance() {
+        return instance;
+    }
+
+    /**
+     * Xếp task vào hàng đợi của peer; chạy sau mọi task đã xếp trước đó của cùng peer
+     */
+    public void dispatch(Integer peerId, Runnable task) {
+        queues.computeIfAbsent(peerId, SerialQueue::new).add(task);
+    }
+
+    /**
+     * Pool dùng chung (NioP2PServer chạy phần xử lý inbox của từng kết nối trên đây)
+     */
+    ExecutorService pool() {
+        return pool;
+    }
+
+    // ===== SERIAL QUEUE =====
+
+    private class SerialQueue implements Runnable {
+        private final Integer peerId;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        SerialQueue(Integer peerId) {
+            this.peerId = peerId;
+        }
+
+        void add(Runnable task) {
+            tasks.add(task);
+            if (scheduled.compareAndSet(false, true)) {
+                pool.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int handled = 0;
+            Runnable task;
+            while (handled < DRAIN_BATCH && (task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("❌ Error handling message from peer " + peerId + ": " + e.getMessage());
+                }
+                handled++;
+            }
+
+            scheduled.set(false);
+            // Còn task (hết lượt hoặc vừa có thêm) → xếp lại cuối hàng đợi của pool
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                pool.execute(this);
+            }
+        }
+    }
+}
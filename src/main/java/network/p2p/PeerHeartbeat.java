@@ -0,0 +1,118 @@
+package network.p2p;
+
+import config.AppConfig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PeerHeartbeat - PING định kỳ cho mọi PeerConnection trên 1 timer dùng chung (không thread / peer)
+ *
+ * Timer wheel: P2P_HEARTBEAT_INTERVAL_MS chia thành WHEEL_SLOTS ô, mỗi tick xử lý 1 ô
+ * → mỗi kết nối được xét 1 lần / interval, PING của nhiều peer rải đều thay vì dồn cùng lúc.
+ * Mỗi lần xét 1 kết nối:
+ * - Đã đóng → bỏ khỏi wheel
+ * - Peer có heartbeat mà không nghe thấy gì quá P2P_DEAD_TIMEOUT_MS → Listener.onPeerDead
+ * - Không có message của app quá P2P_IDLE_TIMEOUT_MS → Listener.onPeerIdle
+ * - Ngược lại → PING (PONG về cập nhật RTT trong PeerLinkStats)
+ * Listener chạy trên PeerDispatcher, không giữ timer; listener không được chặn (đóng kết nối trên thread riêng).
+ */
+public class PeerHeartbeat {
+    private static final PeerHeartbeat instance = new PeerHeartbeat();
+
+    private static final int WHEEL_SLOTS = 8;
+
+    public interface Listener {
+        void onPeerDead(PeerConnection connection);
+        void onPeerIdle(PeerConnection connection);
+    }
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "p2p-heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final List<Set<Entry>> wheel = new ArrayList<>(WHEEL_SLOTS);
+    private volatile int cursor = 0; // Timer thread tăng, watch() chỉ đọc
+
+    private PeerHeartbeat() {
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            wheel.add(ConcurrentHashMap.newKeySet());
+        }
+        long tickMs = Math.max(1, AppConfig.P2P_HEARTBEAT_INTERVAL_MS / WHEEL_SLOTS);
+        timer.scheduleAtFixedRate(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    public static PeerHeartbeat getInstance() {
+        return instance;
+    }
+
+    /**
+     * Theo dõi kết nối tới khi nó đóng hoặc bị listener xử lý
+     */
+    public void watch(PeerConnection connection, Listener listener) {
+        // Ô đặt ngay trước cursor → lần xét đầu sau gần đủ 1 interval
+        wheel.get(Math.floorMod(cursor - 1, WHEEL_SLOTS)).add(new Entry(connection, listener));
+    }
+
+    private void tick() {
+        Set<Entry> slot = wheel.get(cursor);
+        cursor = (cursor + 1) % WHEEL_SLOTS;
+
+        for (Entry entry : slot) {
+            try {
+                if (!check(entry)) {
+                    slot.remove(entry);
+                }
+            } catch (RuntimeException e) {
+                System.err.println("❌ Heartbeat error for peer " + entry.peerId() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return false nếu thôi theo dõi kết nối này
+     */
+    private boolean check(Entry entry) {
+        PeerConnection conn = entry.connection();
+        PeerChannel channel = conn.getChannel();
+        if (!conn.isTcpConnected() || channel == null) {
+            return false;
+        }
+
+        PeerLinkStats stats = channel.getLinkStats();
+        if (channel.supportsHeartbeat() && stats.millisSinceHeard() >= AppConfig.P2P_DEAD_TIMEOUT_MS) {
+            System.err.println("⚠️ Peer " + entry.peerId() + " not responding for "
+                    + stats.millisSinceHeard() + "ms, closing connection");
+            PeerDispatcher.getInstance().dispatch(entry.peerId(), () -> entry.listener().onPeerDead(conn));
+            return false;
+        }
+        if (AppConfig.P2P_IDLE_TIMEOUT_MS > 0 && stats.millisSinceActive() >= AppConfig.P2P_IDLE_TIMEOUT_MS) {
+            System.out.println("👋 Closing idle connection to peer " + entry.peerId());
+            PeerDispatcher.getInstance().dispatch(entry.peerId(), () -> entry.listener().onPeerIdle(conn));
+            return false;
+        }
+
+        if (channel.supportsHeartbeat()) {
+            try {
+                channel.ping();
+            } catch (IOException e) {
+                // Lỗi ghi → reader / server sẽ báo mất kết nối
+            }
+        }
+        return true;
+    }
+
+    private record Entry(PeerConnection connection, Listener listener) {
+        Integer peerId() {
+            return connection.getRemotePeer().getUserId();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package network.p2p;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PeerLinkStats - Độ trễ và độ sống của 1 kết nối P2P (đo bằng PING/PONG của PeerHeartbeat)
+ * - SRTT/RTTVAR làm mượt như TCP (RFC 6298): alpha = 1/8, beta = 1/4
+ * - rtoMillis(): thời gian chờ phản hồi hợp lý với peer này (retry, cửa sổ gửi file, ...)
+ * - millisSinceHeard(): lâu chưa nhận được gì (kể cả PING/PONG) → peer chết
+ * - millisSinceActive(): lâu chưa có message của app (không tính PING/PONG) → kết nối rảnh
+ * Mẫu RTT ghi trên thread đọc của kết nối, đọc ở thread bất kỳ.
+ */
+public class PeerLinkStats {
+    private static final long INITIAL_RTO_MS = 1000; // Chưa có mẫu RTT
+    private static final long MIN_RTO_MS = 200;
+    private static final long MAX_RTO_MS = 60_000;
+
+    private volatile long srttNanos = -1; // -1 = chưa có mẫu
+    private volatile long rttVarNanos;
+    private volatile long lastHeardNanos = System.nanoTime();
+    private volatile long lastActiveNanos = System.nanoTime();
+
+    void onHeard() {
+        lastHeardNanos = System.nanoTime();
+    }
+
+    void onActive() {
+        lastActiveNanos = System.nanoTime();
+    }
+
+    /**
+     * Mẫu RTT mới (chỉ thread đọc gọi)
+     */
+    void onRttSample(long rttNanos) {
+        long srtt = srttNanos;
+        if (srtt < 0) {
+            rttVarNanos = rttNanos / 2;
+            srttNanos = rttNanos;
+            return;
+        }
+        rttVarNanos = rttVarNanos - rttVarNanos / 4 + Math.abs(srtt - rttNanos) / 4;
+        srttNanos = srtt - srtt / 8 + rttNanos / 8;
+    }
+
+    public boolean hasRtt() {
+        return srttNanos >= 0;
+    }
+
+    /**
+     * RTT làm mượt (ms), -1 nếu chưa có mẫu
+     */
+    public long srttMillis() {
+        long srtt = srttNanos;
+        return srtt < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(srtt);
+    }
+
+    /**
+     * Độ dao động RTT (ms), -1 nếu chưa có mẫu
+     */
+    public long rttVarMillis() {
+        return hasRtt() ? TimeUnit.NANOSECONDS.toMillis(rttVarNanos) : -1;
+    }
+
+    /**
+     * Timeout chờ phản hồi: SRTT + 4 * RTTVAR, trong khoảng [200ms, 60s]
+     */
+    public long rtoMillis() {
+        long srtt = srttNanos;
+        if (srtt < 0) return INITIAL_RTO_MS;
+        long rto = TimeUnit.NANOSECONDS.toMillis(srtt + 4 * rttVarNanos);
+        return Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, rto));
+    }
+
+    public long millisSinceHeard() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastHeardNanos);
+    }
+
+    public long millisSinceActive() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActiveNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "srtt=" + srttMillis() + "ms rttvar=" + rttVarMillis() + "ms rto=" + rtoMillis() + "ms";
+    }
+}
@@ -2,6 +2,7 @@ package network.signaling;
 
 import com.google.gson.Gson;
 import network.p2p.PeerDiscoveryService;
+import util.AppThreads;
 
 import java.io.*;
 import java.net.Socket;
@@ -93,7 +94,7 @@ public class SignalingClient {
      * Khởi động thread đọc messages từ server
      */
     private void startReader() {
-        readerThread = new Thread(() -> {
+        readerThread = AppThreads.newThread("signaling-reader", () -> {
             try {
                 String line;
                 while (connected && (line = reader.readLine()) != null) {
@@ -106,9 +107,7 @@ public class SignalingClient {
             } finally {
                 connected = false;
             }
-        }, "signaling-reader");
-        
-        readerThread.setDaemon(true);
+        });
         readerThread.start();
     }
     
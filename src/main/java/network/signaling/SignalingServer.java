@@ -3,6 +3,7 @@ package network.signaling;
 import com.google.gson.Gson;
 import dao.UserDao;
 import model.Users;
+import util.AppThreads;
 import network.p2p.PeerInfo;
 
 import java.io.*;
@@ -21,6 +22,7 @@ public class SignalingServer {
     private final Map<Integer, PeerInfo> activePeers = new ConcurrentHashMap<>();
     private final Set<ClientHandler> clients = new CopyOnWriteArraySet<>();
     private volatile boolean running = false;
+    private Thread acceptorThread;
     private final Gson gson = new Gson();
     private final UserDao userDao = new UserDao();
 
@@ -31,7 +33,7 @@ public class SignalingServer {
     public void start() throws IOException {
         if (running) return;
         running = true;
-        new Thread(() -> {
+        acceptorThread = AppThreads.start("signaling-acceptor", false, () -> {
             try (ServerSocket serverSocket = new ServerSocket(port)) {
                 System.out.println("✅ Signaling Server started on port " + port);
 
@@ -39,12 +41,20 @@ public class SignalingServer {
                     Socket clientSocket = serverSocket.accept();
                     ClientHandler handler = new ClientHandler(clientSocket);
                     clients.add(handler);
-                    new Thread(handler).start();
+                    AppThreads.start("signaling-client-" + clientSocket.getInetAddress(), false, handler);
                 }
             } catch (IOException e) {
                 System.err.println("❌ Signaling Server error: " + e.getMessage());
             }
-        }, "signaling-acceptor").start();
+        });
+    }
+
+    /**
+     * Chờ acceptor kết thúc — virtual thread luôn là daemon nên main phải join để JVM không thoát
+     */
+    public void awaitTermination() throws InterruptedException {
+        Thread t = acceptorThread;
+        if (t != null) t.join();
     }
 
     public void stop() {
@@ -218,6 +228,7 @@ public class SignalingServer {
         try {
             server.start();
             System.out.println("SignalingServer is running...");
+            server.awaitTermination();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -6,6 +6,9 @@ import java.net.Socket;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import util.AppThreads;
 
 public class TcpConnection {
     private Socket socket;
@@ -15,6 +18,8 @@ public class TcpConnection {
     private Thread readerThread;
     private Thread writerThread;
     private final AtomicBoolean running = new AtomicBoolean(false);
+    // Khóa ghi: ReentrantLock thay cho synchronized(out) để virtual thread không bị ghim khi ghi socket
+    private final ReentrantLock writeLock = new ReentrantLock();
 
     public interface LineListener { 
         void onLine(String line); 
@@ -54,7 +59,7 @@ public class TcpConnection {
 
     private void startReaderAndWriter() {
         // reader
-        readerThread = new Thread(() -> {
+        readerThread = AppThreads.start("tcp-reader", () -> {
             try {
                 String line;
                 while (running.get() && (line = in.readLine()) != null) {
@@ -62,30 +67,23 @@ public class TcpConnection {
                 }
             } catch (Exception ignored) {}
             finally { running.set(false); }
-        }, "tcp-reader");
-        readerThread.setDaemon(true);
-        readerThread.start();
+        });
 
         // writer
         startWriterThread();
     }
 
     private void startWriterThread() {
-        writerThread = new Thread(() -> {
+        writerThread = AppThreads.start("tcp-writer", () -> {
            try {
                while (running.get()) {
                    String msg = outbound.take();
                    if (out != null) {
-                       synchronized (out) {
-                           out.println(msg);
-                           out.flush();
-                       }
+                       writeLine(msg);
                    }
                }
            } catch (InterruptedException ignored) {}
-        }, "tcp-writer");
-        writerThread.setDaemon(true);
-        writerThread.start();
+        });
     }
 
     public boolean send(String line) {
@@ -96,10 +94,7 @@ public class TcpConnection {
         } else {
             // writer thread is not active (server with direct writer)
             try {
-                synchronized (out) {
-                    out.println(line);
-                    out.flush();
-                }
+                writeLine(line);
                 return true;
             } catch (Exception e) { return false; }
         }
@@ -108,14 +103,21 @@ public class TcpConnection {
     public boolean sendSync(String line) {
         if (out == null) return false;
         try {
-            synchronized (out) {
-                out.println(line);
-                out.flush();
-            }
+            writeLine(line);
             return true;
         } catch (Exception e) { return false; }
     }
 
+    private void writeLine(String line) {
+        writeLock.lock();
+        try {
+            out.println(line);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
     public boolean isConnected() {
         return socket != null && socket.isConnected() && !socket.isClosed();
     }
@@ -0,0 +1,296 @@
+package protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import util.MessageId;
+
+/**
+ * BinaryFrameCodec - Codec nhị phân gọn cho P2PMessageProtocol.Message
+ *
+ * Frame layout (big-endian):
+ *   int32   length      - số byte phía sau (không tính 4 byte này)
+ *   byte    type        - MessageType.ordinal()
+ *   byte    flags       - bit nào bật thì field tương ứng khác null
+ *   int32   from
+ *   int32   to
+ *   int32   conversationId
+ *   int64   timestamp
+ *   uint16  số entry trong data
+ *   entry:  key (UTF-8, uint16 length) + tag (1 byte) + value
+ *           (chuỗi dạng UUID chữ thường - clientMessageId, fileId, ... - gửi 16 byte thay vì 36)
+ *   [int32 payloadLength + raw bytes]  - chỉ khi có F_PAYLOAD (vd: FILE_CHUNK)
+ *
+ * Không dùng reflection, không scan dòng → rẻ hơn nhiều so với Gson cho mọi message.
+ * Payload thô nằm cuối frame, không Base64 → receiver đọc thẳng vào 1 mảng duy nhất.
+ */
+public final class BinaryFrameCodec {
+
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024; // 16MB
+
+    private static final P2PMessageProtocol.MessageType[] TYPES = P2PMessageProtocol.MessageType.values();
+
+    // Header flags
+    private static final int F_FROM = 1;
+    private static final int F_TO = 1 << 1;
+    private static final int F_CONVERSATION = 1 << 2;
+    private static final int F_TIMESTAMP = 1 << 3;
+    private static final int F_PAYLOAD = 1 << 4;
+
+    // Header cố định: type + flags + from + to + conversationId + timestamp
+    private static final int FIXED_HEADER_SIZE = 1 + 1 + 4 + 4 + 4 + 8;
+
+    // Value tags
+    private static final byte T_NULL = 0;
+    private static final byte T_STRING = 1;
+    private static final byte T_INT = 2;
+    private static final byte T_LONG = 3;
+    private static final byte T_DOUBLE = 4;
+    private static final byte T_BOOLEAN = 5;
+    private static final byte T_ID = 6; // Chuỗi dạng UUID chữ thường → 16 byte (MessageId)
+
+    private BinaryFrameCodec() {}
+
+    // ===== ENCODE =====
+
+    /**
+     * Ghi message thành 1 frame hoàn chỉnh (gồm 4 byte length) vào stream
+     * Payload thô được ghi thẳng từ mảng gốc, không copy qua buffer trung gian
+     */
+    public static void write(DataOutputStream out, P2PMessageProtocol.Message msg) throws IOException {
+        P2PMessageProtocol.MessageType type = P2PMessageProtocol.MessageType.valueOf(msg.type);
+        byte[] payload = msg.payload;
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(128);
+        DataOutputStream hdr = new DataOutputStream(header);
+
+        hdr.writeByte(type.ordinal());
+
+        int flags = 0;
+        if (msg.from != null) flags |= F_FROM;
+        if (msg.to != null) flags |= F_TO;
+        if (msg.conversationId != null) flags |= F_CONVERSATION;
+        if (msg.timestamp != null) flags |= F_TIMESTAMP;
+        if (payload != null) flags |= F_PAYLOAD;
+        hdr.writeByte(flags);
+
+        hdr.writeInt(msg.from != null ? msg.from : 0);
+        hdr.writeInt(msg.to != null ? msg.to : 0);
+        hdr.writeInt(msg.conversationId != null ? msg.conversationId : 0);
+        hdr.writeLong(msg.timestamp != null ? msg.timestamp : 0L);
+
+        Map<String, Object> data = msg.data;
+        int count = data != null ? data.size() : 0;
+        if (count > 0xFFFF) {
+            throw new IOException("Too many data entries: " + count);
+        }
+        hdr.writeShort(count);
+
+        if (data != null) {
+            for (Map.Entry<String, Object> entry : data.entrySet()) {
+                hdr.writeUTF(entry.getKey());
+                writeValue(hdr, entry.getValue());
+            }
+        }
+        hdr.flush();
+
+        long length = header.size() + (payload != null ? 4L + payload.length : 0L);
+        if (length > MAX_FRAME_SIZE) {
+            throw new IOException("Binary frame too large: " + length);
+        }
+
+        out.writeInt((int) length);
+        header.writeTo(out);
+        if (payload != null) {
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+    }
+
+    /**
+     * Encode message thành mảng byte (gồm 4 byte length)
+     */
+    public static byte[] encode(P2PMessageProtocol.Message msg) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(buf);
+        write(out, msg);
+        out.flush();
+        return buf.toByteArray();
+    }
+
+    /**
+     * Encode nhiều message thành các frame nối tiếp (payload của BATCH)
+     */
+    public static byte[] encodeAll(List<P2PMessageProtocol.Message> messages) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(messages.size() * 128);
+        DataOutputStream out = new DataOutputStream(buf);
+        for (P2PMessageProtocol.Message msg : messages) {
+            write(out, msg);
+        }
+        out.flush();
+        return buf.toByteArray();
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(T_NULL);
+        } else if (value instanceof String s && MessageId.isCanonical(s)) {
+            out.writeByte(T_ID);
+            MessageId.parse(s).writeTo(out);
+        } else if (value instanceof String s) {
+            out.writeByte(T_STRING);
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (value instanceof Integer i) {
+            out.writeByte(T_INT);
+            out.writeInt(i);
+        } else if (value instanceof Long l) {
+            out.writeByte(T_LONG);
+            out.writeLong(l);
+        } else if (value instanceof Number n) {
+            // Gson parse ra Double cho mọi số
+            out.writeByte(T_DOUBLE);
+            out.writeDouble(n.doubleValue());
+        } else if (value instanceof Boolean b) {
+            out.writeByte(T_BOOLEAN);
+            out.writeBoolean(b);
+        } else {
+            throw new IOException("Unsupported data value type: " + value.getClass().getName());
+        }
+    }
+
+    // ===== DECODE =====
+
+    /**
+     * Đọc 1 frame từ stream (blocking)
+     * Header đọc trực tiếp từ stream, payload thô đọc thẳng vào mảng của message
+     */
+    public static P2PMessageProtocol.Message read(DataInputStream in) throws IOException {
+        return read(in, in.readInt());
+    }
+
+    /**
+     * Đọc phần thân frame khi 4 byte length đã được đọc (vd: PeerChannel cần xem bit nén trước)
+     */
+    public static P2PMessageProtocol.Message read(DataInputStream in, int length) throws IOException {
+        return read(in, length, null);
+    }
+
+    /**
+     * Đọc frame, bỏ qua ngay (không decode header/data) nếu type không nằm trong accepted
+     * @param accepted null = nhận mọi type
+     * @return message; type == null nếu frame bị bỏ qua (type lạ hoặc không cần)
+     */
+    public static P2PMessageProtocol.Message read(DataInputStream in, int length,
+                                                  Set<P2PMessageProtocol.MessageType> accepted) throws IOException {
+        if (length < FIXED_HEADER_SIZE + 2 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid binary frame length: " + length);
+        }
+
+        int typeCode = in.readUnsignedByte();
+        P2PMessageProtocol.Message msg = P2PMessageProtocol.Message.blank();
+
+        if (typeCode >= TYPES.length || !accepts(accepted, TYPES[typeCode])) {
+            // Type mới hơn phiên bản local hoặc local không xử lý → bỏ qua phần còn lại
+            in.skipNBytes(length - 1);
+            msg.type = null;
+            return msg;
+        }
+
+        int flags = in.readUnsignedByte();
+        int from = in.readInt();
+        int to = in.readInt();
+        int conversationId = in.readInt();
+        long timestamp = in.readLong();
+
+        msg.type = TYPES[typeCode].name();
+        msg.from = (flags & F_FROM) != 0 ? from : null;
+        msg.to = (flags & F_TO) != 0 ? to : null;
+        msg.conversationId = (flags & F_CONVERSATION) != 0 ? conversationId : null;
+        msg.timestamp = (flags & F_TIMESTAMP) != 0 ? timestamp : null;
+
+        int count = in.readUnsignedShort();
+        if (count > 0) {
+            Map<String, Object> data = new HashMap<>(Math.max(4, count * 2));
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                data.put(key, readValue(in));
+            }
+            msg.data = data;
+        }
+
+        if ((flags & F_PAYLOAD) != 0) {
+            int payloadLength = in.readInt();
+            if (payloadLength < 0 || payloadLength > length) {
+                throw new IOException("Invalid payload length: " + payloadLength);
+            }
+            byte[] payload = new byte[payloadLength];
+            in.readFully(payload);
+            msg.payload = payload;
+        }
+
+        return msg;
+    }
+
+    /**
+     * Đọc tất cả frame nối tiếp trong payload của BATCH
+     */
+    public static List<P2PMessageProtocol.Message> readAll(byte[] frames) throws IOException {
+        return readAll(frames, null);
+    }
+
+    /**
+     * Như readAll(byte[]), bỏ qua frame có type không nằm trong accepted
+     */
+    public static List<P2PMessageProtocol.Message> readAll(byte[] frames,
+                                                           Set<P2PMessageProtocol.MessageType> accepted) throws IOException {
+        List<P2PMessageProtocol.Message> messages = new ArrayList<>();
+        if (frames == null) return messages;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frames));
+        while (in.available() > 0) {
+            P2PMessageProtocol.Message msg = read(in, in.readInt(), accepted);
+            if (msg.type != null) {
+                messages.add(msg);
+            }
+        }
+        return messages;
+    }
+
+    private static boolean accepts(Set<P2PMessageProtocol.MessageType> accepted, P2PMessageProtocol.MessageType type) {
+        // BATCH là khung chứa, luôn phải tách ra
+        return accepted == null || type == P2PMessageProtocol.MessageType.BATCH || accepted.contains(type);
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        return switch (tag) {
+            case T_NULL -> null;
+            case T_STRING -> {
+                int len = in.readInt();
+                if (len < 0 || len > MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid string length: " + len);
+                }
+                byte[] bytes = new byte[len];
+                in.readFully(bytes);
+                yield new String(bytes, StandardCharsets.UTF_8);
+            }
+            case T_INT -> in.readInt();
+            case T_LONG -> in.readLong();
+            case T_DOUBLE -> in.readDouble();
+            case T_BOOLEAN -> in.readBoolean();
+            case T_ID -> MessageId.readFrom(in).toString();
+            default -> throw new IOException("Unknown data value tag: " + tag);
+        };
+    }
+}
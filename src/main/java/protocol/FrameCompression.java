@@ -0,0 +1,214 @@
+package protocol;
+
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * FrameCompression - Nén binary frame theo từng kết nối (raw DEFLATE + preset dictionary)
+ *
+ * - Mỗi chiều của kết nối có 1 Deflater/Inflater sống suốt kết nối → frame sau tận dụng
+ *   context của frame trước (tên field, UUID, nội dung chat lặp lại)
+ * - SYNC_FLUSH sau mỗi frame → receiver giải nén được ngay, không phải chờ frame kế
+ * - Frame nén được đánh dấu bằng bit cao nhất của length (COMPRESSED_FLAG);
+ *   frame không nén (vd: chunk ảnh/zip) đi thẳng, không đụng vào stream DEFLATE
+ *
+ * Dictionary phải giống hệt 2 bên → đổi nội dung thì tăng DICTIONARY_VERSION.
+ */
+public final class FrameCompression {
+
+    public static final int DICTIONARY_VERSION = 2;
+    public static final String TOKEN = "deflate/" + DICTIONARY_VERSION;
+
+    public static final int COMPRESSED_FLAG = 0x80000000;
+
+    private static final int SAMPLE_SIZE = 8 * 1024;
+
+    // Định dạng đã nén sẵn → nén lại chỉ tốn CPU
+    private static final Set<String> PRECOMPRESSED_TYPES = Set.of(
+            "application/zip", "application/gzip", "application/x-gzip",
+            "application/x-7z-compressed", "application/x-rar-compressed",
+            "application/vnd.rar", "application/pdf"
+    );
+    private static final Set<String> PRECOMPRESSED_EXTENSIONS = Set.of(
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "zip", "gz", "7z", "rar", "bz2", "xz",
+            "mp3", "aac", "ogg", "m4a", "mp4", "mkv", "mov", "webm",
+            "docx", "xlsx", "pptx", "jar", "apk"
+    );
+
+    private FrameCompression() {}
+
+    /**
+     * Dictionary cố định (KHÔNG sinh từ MessageType / code khác → thêm type mới không làm lệch 2 bên)
+     * Là các dãy byte thật sự có trong binary frame: entry của data = uint16 độ dài key + key + tag value
+     * (type đi bằng ordinal 1 byte nên tên type không bao giờ khớp). Chuỗi hay gặp nhất đặt cuối
+     * (DEFLATE tham chiếu khoảng cách gần rẻ hơn). Đổi chuỗi này → tăng DICTIONARY_VERSION.
+     */
+    private static final String DICTIONARY_BYTES =
+            // Gọi thoại / video
+            "\0\u0003sdp\u0001"
+            + "\0\u0007udpPort\u0002"
+            + "\0\u0006callId"
+            + "\0\u0006reason\u0001"
+            // Bắt tay / heartbeat / batch
+            + "\0\u0005nonce"
+            + "\0\u0005count\u0002"
+            + "\0\u0007missing\u0001"
+            + "\0\tmessageId"
+            // File: metadata ở chunk đầu, ACK / NACK
+            + "\0\u0008fileName\u0001"
+            + "\0\u0008fileSize\u0003"
+            + "\0\u0008checksum\u0001"
+            + "\0\u000EconversationId\u0002"
+            + "\0\tnextChunk\u0002"
+            + "\0\u000BtotalChunks\u0002"
+            + "\0\u0003crc\u0003"
+            + "\0\nchunkIndex\u0002"
+            + "\0\u0006fileId\u0006"
+            // Chat
+            + "\0\u0007content\u0001"
+            + "\0\u000FclientMessageId\u0006";
+
+    private static final byte[] DICTIONARY = DICTIONARY_BYTES.getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * File có nội dung đã nén sẵn (ảnh, zip, video, ...) - đoán theo MIME từ tên file
+     */
+    public static boolean isPrecompressed(String fileName) {
+        if (fileName == null) return false;
+
+        String mimeType = URLConnection.guessContentTypeFromName(fileName);
+        if (mimeType != null) {
+            if (mimeType.startsWith("image/") && !mimeType.equals("image/svg+xml") && !mimeType.equals("image/bmp")) {
+                return true;
+            }
+            if (mimeType.startsWith("video/") || mimeType.startsWith("audio/mpeg")
+                    || PRECOMPRESSED_TYPES.contains(mimeType)) {
+                return true;
+            }
+        }
+
+        int dot = fileName.lastIndexOf('.');
+        return dot >= 0 && PRECOMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Thử nén nhanh 1 mẫu (tối đa SAMPLE_SIZE byte đầu): giảm chưa tới 10% → nén cả file chỉ tốn CPU
+     * (file có đuôi lạ / không đuôi nhưng nội dung đã nén hoặc mã hóa)
+     */
+    public static boolean looksIncompressible(byte[] data) {
+        int length = Math.min(data.length, SAMPLE_SIZE);
+        if (length < 256) return false;
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            byte[] out = new byte[length];
+            int compressed = 0;
+            while (!deflater.finished() && compressed < out.length) {
+                compressed += deflater.deflate(out, compressed, out.length - compressed);
+            }
+            return compressed >= length * 9 / 10;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // ===== COMPRESSOR =====
+
+    /**
+     * Chiều ghi - không thread-safe (gọi dưới write lock của kết nối)
+     */
+    public static final class Compressor {
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private byte[] buffer = new byte[8 * 1024];
+
+        public Compressor() {
+            deflater.setDictionary(DICTIONARY);
+        }
+
+        /**
+         * Nén 1 frame, flush đồng bộ
+         * @return số byte hợp lệ trong buffer()
+         */
+        public int compress(byte[] frame) {
+            deflater.setInput(frame);
+            int length = 0;
+            while (true) {
+                int n = deflater.deflate(buffer, length, buffer.length - length, Deflater.SYNC_FLUSH);
+                length += n;
+                if (length < buffer.length) {
+                    return length; // Còn chỗ trống → đã flush hết
+                }
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+
+        public byte[] buffer() {
+            return buffer;
+        }
+
+        public void close() {
+            deflater.end();
+        }
+    }
+
+    // ===== DECOMPRESSOR =====
+
+    /**
+     * Chiều đọc - chỉ reader thread dùng
+     */
+    public static final class Decompressor {
+        private final Inflater inflater = new Inflater(true);
+        private byte[] buffer = new byte[16 * 1024];
+
+        public Decompressor() {
+            inflater.setDictionary(DICTIONARY);
+        }
+
+        /**
+         * Giải nén 1 frame (đầu ra là frame binary hoàn chỉnh, gồm 4 byte length)
+         * @return số byte hợp lệ trong buffer()
+         */
+        public int decompress(byte[] input, int length) throws IOException {
+            inflater.setInput(input, 0, length);
+            int total = 0;
+            try {
+                while (true) {
+                    if (total == buffer.length) {
+                        if (buffer.length >= BinaryFrameCodec.MAX_FRAME_SIZE + 4) {
+                            throw new IOException("Decompressed frame too large");
+                        }
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    }
+                    int n = inflater.inflate(buffer, total, buffer.length - total);
+                    total += n;
+                    if (n == 0 && (inflater.needsInput() || inflater.finished())) {
+                        return total;
+                    }
+                    if (n == 0 && inflater.needsDictionary()) {
+                        throw new IOException("Unexpected dictionary request");
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed frame: " + e.getMessage(), e);
+            }
+        }
+
+        public byte[] buffer() {
+            return buffer;
+        }
+
+        public void close() {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package protocol;
+
+import java.util.Map;
+
+/**
+ * HotMessageWriter - Serializer JSON viết tay cho các message nhỏ, gửi thường xuyên
+ * (CHAT_MESSAGE, MESSAGE_ACK, MESSAGE_SEEN, TYPING_*, PING/PONG, FILE_CHUNK_ACK)
+ *
+ * Output giống hệt từng byte với Gson mặc định:
+ * - Thứ tự field theo khai báo trong Message (type, from, to, conversationId, data, timestamp)
+ * - Bỏ qua field/entry null
+ * - Escape chuỗi kiểu HTML-safe (<, >, &, =, ' → \\u003c, ...)
+ * Không reflection, ghi vào StringBuilder tái sử dụng theo thread.
+ * Chiều đọc đã streaming sẵn (P2PMessageProtocol.parse + P2PPayloads).
+ */
+final class HotMessageWriter {
+
+    private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<StringBuilder> BUFFER =
+            ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    private HotMessageWriter() {}
+
+    static boolean isHot(P2PMessageProtocol.MessageType type) {
+        if (type == null) return false;
+        return switch (type) {
+            case CHAT_MESSAGE, MESSAGE_ACK, MESSAGE_SEEN, MESSAGE_SEEN_ACK,
+                 TYPING_START, TYPING_STOP, PING, PONG, FILE_CHUNK_ACK -> true;
+            default -> false;
+        };
+    }
+
+    // ===== FROM MESSAGE =====
+
+    /**
+     * Serialize message thuộc nhóm hot
+     * @return JSON, hoặc null nếu message không thuộc nhóm hot / có giá trị phải để Gson xử lý
+     */
+    static String write(P2PMessageProtocol.Message msg) {
+        if (msg.payload != null || !isHot(P2PMessageProtocol.typeOf(msg))) {
+            return null;
+        }
+        if (msg.data != null) {
+            for (Object value : msg.data.values()) {
+                if (!isSimple(value)) return null;
+            }
+        }
+
+        StringBuilder sb = begin(msg.type, msg.from, msg.to, msg.conversationId);
+        if (msg.data != null) {
+            sb.append(",\"data\":{");
+            boolean first = true;
+            // Duyệt đúng Map của message → cùng thứ tự key với Gson
+            for (Map.Entry<String, Object> entry : msg.data.entrySet()) {
+                if (entry.getValue() == null) continue;
+                if (!first) sb.append(',');
+                name(sb, entry.getKey());
+                value(sb, entry.getValue());
+                first = false;
+            }
+            sb.append('}');
+        }
+        return end(sb, msg.timestamp);
+    }
+
+    // ===== DIRECT (KHÔNG TẠO MESSAGE) =====
+    // Thứ tự key trong data khớp với HashMap mà createX() tạo ra
+
+    static String chatMessage(Integer from, Integer conversationId, String content, String clientMessageId) {
+        StringBuilder sb = begin(P2PMessageProtocol.MessageType.CHAT_MESSAGE.name(), from, null, conversationId);
+        sb.append(",\"data\":{");
+        boolean first = true;
+        if (content != null) {
+            name(sb, "content");
+            string(sb, content);
+            first = false;
+        }
+        if (clientMessageId != null) {
+            if (!first) sb.append(',');
+            name(sb, "clientMessageId");
+            string(sb, clientMessageId);
+        }
+        sb.append('}');
+        return end(sb, System.currentTimeMillis());
+    }
+
+    static String messageAck(Integer from, Integer to, String clientMessageId) {
+        StringBuilder sb = begin(P2PMessageProtocol.MessageType.MESSAGE_ACK.name(), from, to, null);
+        sb.append(",\"data\":{");
+        if (clientMessageId != null) {
+            name(sb, "clientMessageId");
+            string(sb, clientMessageId);
+        }
+        sb.append('}');
+        return end(sb, System.currentTimeMillis());
+    }
+
+    static String messageSeen(Integer from, Integer conversationId, Integer messageId) {
+        StringBuilder sb = begin(P2PMessageProtocol.MessageType.MESSAGE_SEEN.name(), from, null, conversationId);
+        sb.append(",\"data\":{");
+        if (messageId != null) {
+            name(sb, "messageId");
+            sb.append(messageId.intValue());
+        }
+        sb.append('}');
+        return end(sb, System.currentTimeMillis());
+    }
+
+    static String typing(P2PMessageProtocol.MessageType type, Integer from, Integer conversationId) {
+        StringBuilder sb = begin(type.name(), from, null, conversationId);
+        sb.append(",\"data\":{}");
+        return end(sb, System.currentTimeMillis());
+    }
+
+    // ===== HELPERS =====
+
+    private static StringBuilder begin(String type, Integer from, Integer to, Integer conversationId) {
+        StringBuilder sb = BUFFER.get();
+        sb.setLength(0);
+        sb.append('{');
+        boolean first = true;
+        if (type != null) {
+            name(sb, "type");
+            string(sb, type);
+            first = false;
+        }
+        first = intField(sb, "from", from, first);
+        first = intField(sb, "to", to, first);
+        intField(sb, "conversationId", conversationId, first);
+        return sb;
+    }
+
+    private static String end(StringBuilder sb, Long timestamp) {
+        if (timestamp != null) {
+            sb.append(",\"timestamp\":").append(timestamp.longValue());
+        }
+        sb.append('}');
+        String json = sb.toString();
+        if (sb.capacity() > MAX_RETAINED_CAPACITY) {
+            // Tin nhắn dài bất thường → không giữ buffer lớn theo thread
+            BUFFER.remove();
+        }
+        return json;
+    }
+
+    private static boolean intField(StringBuilder sb, String name, Integer value, boolean first) {
+        if (value == null) return first;
+        if (!first) sb.append(',');
+        name(sb, name);
+        sb.append(value.intValue());
+        return false;
+    }
+
+    private static boolean isSimple(Object value) {
+        return value == null || value instanceof String || value instanceof Integer
+                || value instanceof Long || value instanceof Boolean;
+    }
+
+    private static void name(StringBuilder sb, String name) {
+        string(sb, name);
+        sb.append(':');
+    }
+
+    private static void value(StringBuilder sb, Object value) {
+        if (value instanceof String s) {
+            string(sb, s);
+        } else {
+            sb.append(value); // Integer, Long, Boolean
+        }
+    }
+
+    /**
+     * Escape giống JsonWriter của Gson với htmlSafe = true
+     */
+    private static void string(StringBuilder sb, String s) {
+        sb.append('"');
+        int last = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            String replacement;
+            if (c < 0x20) {
+                replacement = switch (c) {
+                    case '\t' -> "\\t";
+                    case '\b' -> "\\b";
+                    case '\n' -> "\\n";
+                    case '\r' -> "\\r";
+                    case '\f' -> "\\f";
+                    default -> null;
+                };
+                if (replacement == null) {
+                    sb.append(s, last, i);
+                    unicode(sb, c);
+                    last = i + 1;
+                    continue;
+                }
+            } else {
+                switch (c) {
+                    case '"' -> replacement = "\\\"";
+                    case '\\' -> replacement = "\\\\";
+                    case '<', '>', '&', '=', '\'', '\u2028', '\u2029' -> {
+                        sb.append(s, last, i);
+                        unicode(sb, c);
+                        last = i + 1;
+                        continue;
+                    }
+                    default -> {
+                        continue;
+                    }
+                }
+            }
+            sb.append(s, last, i).append(replacement);
+            last = i + 1;
+        }
+        sb.append(s, last, length);
+        sb.append('"');
+    }
+
+    private static void unicode(StringBuilder sb, char c) {
+        sb.append("\\u")
+          .append(HEX[(c >> 12) & 0xF])
+          .append(HEX[(c >> 8) & 0xF])
+          .append(HEX[(c >> 4) & 0xF])
+          .append(HEX[c & 0xF]);
+    }
+}
@@ -1,11 +1,24 @@
 package protocol;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Type;
 import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+import util.MessageId;
 
 /**
  * P2P Message Protocol with Idempotent support (clientMessageId)
@@ -13,7 +26,25 @@ import java.util.Map;
 public class P2PMessageProtocol {
     private static final Gson gson = new Gson();
 
+    // ===== HANDSHAKE (HELLO / HELLO_ACK) =====
+    // Gửi dạng dòng điều khiển "#hello {json}": Gson (lenient) coi '#' là comment,
+    // nên peer cũ bỏ qua mà không lỗi và kết nối giữ JSON.
+    public static final int PROTOCOL_VERSION = 8;  // v4: HELLO, v5: PING/PONG heartbeat, v6: FILE_CHUNK_ACK, v7: FILE_RESUME, v8: FILE_CHUNK_NACK
+    public static final int HEARTBEAT_VERSION = 5; // Peer có HELLO.version >= mức này mới trả lời PING
+    public static final int FILE_WINDOW_VERSION = 6; // Peer có HELLO.version >= mức này mới ACK từng chunk file
+    public static final int FILE_RESUME_VERSION = 7; // Peer có HELLO.version >= mức này mới trả lời FILE_RESUME
+    public static final int FILE_CHUNK_NACK_VERSION = 8; // Peer có HELLO.version >= mức này mới gửi lại chunk bị FILE_CHUNK_NACK
+    public static final int BINARY_VERSION = 4;    // v2: payload thô cuối frame (FILE_CHUNK), v3: BATCH, v4: ID 16 byte
+    public static final String CODEC_JSON = "json";
+    public static final String CODEC_BINARY = "binary/" + BINARY_VERSION;
+    public static final String HELLO_PREFIX = "#hello ";
+    public static final String HELLO_ACK_PREFIX = "#hello-ack ";
+
+    private static final String CHUNK_DATA = "chunkData";
+    private static final Type DATA_TYPE = new TypeToken<Map<String, Object>>() {}.getType();
+
     // Message types
+    // ⚠️ BinaryFrameCodec dùng ordinal làm type code 1 byte → chỉ thêm type mới vào CUỐI enum
     public enum MessageType {
         CHAT_MESSAGE,      // Tin nhắn chat thông thường
         TYPING_START,      // Bắt đầu typing
@@ -44,7 +75,23 @@ public class P2PMessageProtocol {
         
         MESSAGE_SEEN,      // Đánh dấu đã đọc
         PING,              // Kiểm tra kết nối
-        PONG               // Phản hồi ping
+        PONG,              // Phản hồi ping
+
+        BATCH,             // Gói nhiều message trong 1 frame (chỉ dùng với binary frame)
+        HELLO,             // Bắt tay: khả năng của peer (dòng "#hello ...")
+        HELLO_ACK,         // Bắt tay: codec đã chọn cho chiều ghi (dòng "#hello-ack ...")
+        FILE_CHUNK_ACK,    // ACK tích lũy chunk file đã ghi (cửa sổ gửi file)
+        FILE_RESUME,       // Sender hỏi receiver còn thiếu chunk nào của file (gửi lại sau khi đứt)
+        FILE_RESUME_ACK,   // Receiver trả lời: các đoạn chunk còn thiếu
+        FILE_CHUNK_NACK    // Receiver: chunk sai CRC / sai kích thước, gửi lại riêng chunk đó
+    }
+
+    private static final Map<String, MessageType> TYPES_BY_NAME = new HashMap<>();
+
+    static {
+        for (MessageType type : MessageType.values()) {
+            TYPES_BY_NAME.put(type.name(), type);
+        }
     }
 
     // ===== MAIN PROTOCOL CLASS =====
@@ -53,13 +100,37 @@ public class P2PMessageProtocol {
         public Integer from;             
         public Integer to;               
         public Integer conversationId;   
+        // Message parse từ JSON: type có codec → payload nằm ở body (xem P2PPayloads.bodyOf()),
+        // data là Map rỗng chỉ đọc; chỉ message tự tạo (createX) / parseGeneric mới có data đầy đủ
         public Map<String, Object> data; 
         public Long timestamp;           
 
+        // Dữ liệu thô (FILE_CHUNK): binary frame gửi nguyên byte, JSON gửi Base64 trong data.chunkData
+        public transient byte[] payload;
+
+        // Payload đã nén sẵn (ảnh, zip, ...) → PeerChannel gửi frame không nén
+        public transient boolean incompressible;
+
+        // Payload có kiểu (P2PPayloads), decode trực tiếp từ JSON - xem P2PPayloads.bodyOf()
+        public transient Object body;
+
         public Message() {
             this.timestamp = System.currentTimeMillis();
             this.data = new HashMap<>();
         }
+
+        /**
+         * Message rỗng cho decoder: không gọi currentTimeMillis, không cấp phát HashMap
+         * (timestamp/data được decoder điền; data rỗng dùng chung emptyMap, chỉ đọc)
+         */
+        static Message blank() {
+            return new Message(Collections.emptyMap(), null);
+        }
+
+        private Message(Map<String, Object> data, Long timestamp) {
+            this.data = data;
+            this.timestamp = timestamp;
+        }
     }
 
     // ===== CHAT MESSAGES - WITH IDEMPOTENT =====
@@ -67,46 +138,62 @@ public class P2PMessageProtocol {
     /**
      * Build chat message với clientMessageId (Idempotent)
      */
-    public static String buildChatMessage(Integer from, Integer conversationId, String content, String clientMessageId) {
+    public static Message createChatMessage(Integer from, Integer conversationId, String content, String clientMessageId) {
         Message msg = new Message();
         msg.type = MessageType.CHAT_MESSAGE.name();
         msg.from = from;
         msg.conversationId = conversationId;
         msg.data.put("content", content);
         msg.data.put("clientMessageId", clientMessageId);
-        return gson.toJson(msg);
+        return msg;
+    }
+
+    public static String buildChatMessage(Integer from, Integer conversationId, String content, String clientMessageId) {
+        return HotMessageWriter.chatMessage(from, conversationId, content, clientMessageId);
     }
     
-    public static String buildMessageAck(Integer from, Integer to, String clientMessageId) {
+    public static Message createMessageAck(Integer from, Integer to, String clientMessageId) {
         Message msg = new Message();
         msg.type = MessageType.MESSAGE_ACK.name();
         msg.from = from;
         msg.to = to;
         msg.data.put("clientMessageId", clientMessageId);
-        return gson.toJson(msg);
+        return msg;
+    }
+
+    public static String buildMessageAck(Integer from, Integer to, String clientMessageId) {
+        return HotMessageWriter.messageAck(from, to, clientMessageId);
     }
     
     /**
      * Legacy wrapper (không có clientMessageId)
      */
     public static String buildChatMessage(Integer from, Integer conversationId, String content) {
-        return buildChatMessage(from, conversationId, content, java.util.UUID.randomUUID().toString());
+        return buildChatMessage(from, conversationId, content, MessageId.nextString());
     }
 
-    public static String buildTypingStart(Integer from, Integer conversationId) {
+    public static Message createTypingStart(Integer from, Integer conversationId) {
         Message msg = new Message();
         msg.type = MessageType.TYPING_START.name();
         msg.from = from;
         msg.conversationId = conversationId;
-        return gson.toJson(msg);
+        return msg;
     }
 
-    public static String buildTypingStop(Integer from, Integer conversationId) {
+    public static String buildTypingStart(Integer from, Integer conversationId) {
+        return HotMessageWriter.typing(MessageType.TYPING_START, from, conversationId);
+    }
+
+    public static Message createTypingStop(Integer from, Integer conversationId) {
         Message msg = new Message();
         msg.type = MessageType.TYPING_STOP.name();
         msg.from = from;
         msg.conversationId = conversationId;
-        return gson.toJson(msg);
+        return msg;
+    }
+
+    public static String buildTypingStop(Integer from, Integer conversationId) {
+        return HotMessageWriter.typing(MessageType.TYPING_STOP, from, conversationId);
     }
 
     // ===== FILE TRANSFER MESSAGES - SIMPLIFIED WITH IDEMPOTENT =====
@@ -114,7 +201,7 @@ public class P2PMessageProtocol {
     /**
      * Gửi chunk của file với metadata trong chunk đầu tiên
      */
-    public static String buildFileChunk(
+    public static Message createFileChunk(
             Integer from,
             Integer to,
             String fileId,
@@ -135,8 +222,11 @@ public class P2PMessageProtocol {
         msg.data.put("fileId", fileId);
         msg.data.put("chunkIndex", chunkIndex);
         msg.data.put("totalChunks", totalChunks);
-        msg.data.put("chunkData",
-                Base64.getEncoder().encodeToString(chunkData));
+        msg.payload = chunkData; // Base64 chỉ khi serialize JSON (toJson)
+        if (chunkData != null) {
+            msg.data.put("crc", chunkCrc(chunkData)); // Receiver kiểm tra từng chunk khi nhận (peer cũ bỏ qua)
+        }
+        msg.incompressible = FrameCompression.isPrecompressed(fileName);
 
         // ✅ Metadata chỉ gửi ở chunk đầu
         if (chunkIndex == 0) {
@@ -147,57 +237,176 @@ public class P2PMessageProtocol {
             msg.data.put("checksum", checksum);
         }
 
-        return gson.toJson(msg);
+        return msg;
+    }
+
+    /**
+     * CRC32C của dữ liệu 1 chunk (JDK tính bằng lệnh CPU, rẻ so với ghi chunk ra đĩa)
+     * Chỉ để phát hiện chunk hỏng sớm; cả file vẫn kiểm tra bằng SHA-256 lúc FILE_COMPLETE
+     */
+    public static long chunkCrc(byte[] chunkData) {
+        CRC32C crc = new CRC32C();
+        crc.update(chunkData);
+        return crc.getValue();
+    }
+
+    public static String buildFileChunk(
+            Integer from,
+            Integer to,
+            String fileId,
+            int chunkIndex,
+            byte[] chunkData,
+            int totalChunks,
+            String fileName,
+            long fileSize,
+            Integer conversationId,
+            String clientMessageId,
+            String checksum
+    ) {
+        return toJson(createFileChunk(from, to, fileId, chunkIndex, chunkData, totalChunks, fileName, fileSize, conversationId, clientMessageId, checksum));
     }
 
 
     /**
      * File đã gửi xong
      */
-    public static String buildFileComplete(Integer from, Integer to, String fileId) {
+    public static Message createFileComplete(Integer from, Integer to, String fileId) {
+        return createFileComplete(from, to, fileId, null);
+    }
+
+    /**
+     * File đã gửi xong, kèm checksum SHA-256 của cả file (receiver so với checksum tính dần lúc ghi)
+     */
+    public static Message createFileComplete(Integer from, Integer to, String fileId, String checksum) {
         Message msg = new Message();
         msg.type = MessageType.FILE_COMPLETE.name();
         msg.from = from;
         msg.to = to;
         msg.data.put("fileId", fileId);
-        return gson.toJson(msg);
+        msg.data.put("checksum", checksum);
+        return msg;
+    }
+
+    public static String buildFileComplete(Integer from, Integer to, String fileId) {
+        return toJson(createFileComplete(from, to, fileId));
     }
 
     /**
      * Hủy việc gửi file
      */
-    public static String buildFileCancel(Integer from, Integer to, String fileId) {
+    public static Message createFileCancel(Integer from, Integer to, String fileId) {
         Message msg = new Message();
         msg.type = MessageType.FILE_CANCEL.name();
         msg.from = from;
         msg.to = to;
         msg.data.put("fileId", fileId);
-        return gson.toJson(msg);
+        return msg;
+    }
+
+    public static String buildFileCancel(Integer from, Integer to, String fileId) {
+        return toJson(createFileCancel(from, to, fileId));
     }
     
     /**
      * ✅ Build FILE_ACK - xác nhận đã nhận file thành công
      */
-    public static String buildFileAck(Integer from, Integer to, String fileId) {
+    public static Message createFileAck(Integer from, Integer to, String fileId) {
         Message msg = new Message();
         msg.type = MessageType.FILE_ACK.name();
         msg.from = from;
         msg.to = to;
         msg.data.put("fileId", fileId);
-        return gson.toJson(msg);
+        return msg;
+    }
+
+    public static String buildFileAck(Integer from, Integer to, String fileId) {
+        return toJson(createFileAck(from, to, fileId));
     }
 
     /**
      * ✅ Build FILE_NACK - báo lỗi khi nhận file
      */
-    public static String buildFileNack(Integer from, Integer to, String fileId, String reason) {
+    public static Message createFileNack(Integer from, Integer to, String fileId, String reason) {
         Message msg = new Message();
         msg.type = MessageType.FILE_NACK.name();
         msg.from = from;
         msg.to = to;
         msg.data.put("fileId", fileId);
         msg.data.put("reason", reason);
-        return gson.toJson(msg);
+        return msg;
+    }
+
+    public static String buildFileNack(Integer from, Integer to, String fileId, String reason) {
+        return toJson(createFileNack(from, to, fileId, reason));
+    }
+
+    /**
+     * FILE_CHUNK_ACK - receiver đã ghi xong mọi chunk < nextChunk (ACK tích lũy)
+     */
+    public static Message createFileChunkAck(Integer from, Integer to, String fileId, int nextChunk) {
+        Message msg = new Message();
+        msg.type = MessageType.FILE_CHUNK_ACK.name();
+        msg.from = from;
+        msg.to = to;
+        msg.data.put("fileId", fileId);
+        msg.data.put("nextChunk", nextChunk);
+        return msg;
+    }
+
+    /**
+     * FILE_CHUNK_NACK - chunk nhận được bị hỏng (không ghi), sender gửi lại riêng chunk này
+     */
+    public static Message createFileChunkNack(Integer from, Integer to, String fileId, int chunkIndex) {
+        Message msg = new Message();
+        msg.type = MessageType.FILE_CHUNK_NACK.name();
+        msg.from = from;
+        msg.to = to;
+        msg.data.put("fileId", fileId);
+        msg.data.put("chunkIndex", chunkIndex);
+        return msg;
+    }
+
+    /**
+     * FILE_RESUME - trước khi gửi chunk: receiver đã có phần nào của file này chưa
+     * (tìm theo clientMessageId - không đổi giữa các lần gửi lại, fileId thì đổi)
+     * Kèm metadata của chunk đầu vì chunk 0 có thể không phải gửi lại
+     */
+    public static Message createFileResume(Integer from, Integer to, String fileId, String clientMessageId,
+                                           String fileName, long fileSize, int totalChunks,
+                                           Integer conversationId, String checksum) {
+        Message msg = new Message();
+        msg.type = MessageType.FILE_RESUME.name();
+        msg.from = from;
+        msg.to = to;
+        msg.data.put("fileId", fileId);
+        msg.data.put("clientMessageId", clientMessageId);
+        msg.data.put("fileName", fileName);
+        msg.data.put("fileSize", fileSize);
+        msg.data.put("totalChunks", totalChunks);
+        msg.data.put("conversationId", conversationId);
+        msg.data.put("checksum", checksum);
+        return msg;
+    }
+
+    /**
+     * FILE_RESUME_ACK - các đoạn chunk còn thiếu, dạng "0-9,20-31" (2 đầu đều tính, "" = đủ cả)
+     */
+    public static Message createFileResumeAck(Integer from, Integer to, String fileId, BitSet missing) {
+        StringBuilder ranges = new StringBuilder();
+        for (int start = missing.nextSetBit(0); start >= 0; ) {
+            int end = missing.nextClearBit(start);
+            if (ranges.length() > 0) ranges.append(',');
+            ranges.append(start).append('-').append(end - 1);
+            start = missing.nextSetBit(end);
+        }
+
+        Message msg = new Message();
+        msg.type = MessageType.FILE_RESUME_ACK.name();
+        msg.from = from;
+        msg.to = to;
+        msg.data.put("fileId", fileId);
+        msg.data.put("missing", ranges.toString());
+        return msg;
     }
 
     // ===== AUDIO/VOICE CALL MESSAGES =====
@@ -205,103 +414,330 @@ public class P2PMessageProtocol {
     /**
      * Yêu cầu bắt đầu voice call
      */
-    public static String buildAudioRequest(Integer from, Integer to, String callId) {
+    public static Message createAudioRequest(Integer from, Integer to, String callId) {
         Message msg = new Message();
         msg.type = MessageType.AUDIO_REQUEST.name();
         msg.from = from;
         msg.to = to;
         msg.data.put("callId", callId);
-        return gson.toJson(msg);
+        return msg;
+    }
+
+    public static String buildAudioRequest(Integer from, Integer to, String callId) {
+        return toJson(createAudioRequest(from, to, callId));
     }
 
     /**
      * Chấp nhận voice call
      */
-    public static String buildAudioAccept(Integer from, Integer to, String callId, int udpPort) {
+    public static Message createAudioAccept(Integer from, Integer to, String callId, int udpPort) {
         Message msg = new Message();
         msg.type = MessageType.AUDIO_ACCEPT.name();
         msg.from = from;
         msg.to = to;
         msg.data.put("callId", callId);
         msg.data.put("udpPort", udpPort);
-        return gson.toJson(msg);
+        return msg;
+    }
+
+    public static String buildAudioAccept(Integer from, Integer to, String callId, int udpPort) {
+        return toJson(createAudioAccept(from, to, callId, udpPort));
     }
 
     /**
      * Từ chối voice call
      */
-    public static String buildAudioReject(Integer from, Integer to, String callId, String reason) {
+    public static Message createAudioReject(Integer from, Integer to, String callId, String reason) {
         Message msg = new Message();
         msg.type = MessageType.AUDIO_REJECT.name();
         msg.from = from;
         msg.to = to;
         msg.data.put("callId", callId);
         msg.data.put("reason", reason);
-        return gson.toJson(msg);
+        return msg;
+    }
+
+    public static String buildAudioReject(Integer from, Integer to, String callId, String reason) {
+        return toJson(createAudioReject(from, to, callId, reason));
     }
 
     /**
      * Kết thúc voice call
      */
-    public static String buildAudioEnd(Integer from, Integer to, String callId) {
+    public static Message createAudioEnd(Integer from, Integer to, String callId) {
         Message msg = new Message();
         msg.type = MessageType.AUDIO_END.name();
         msg.from = from;
         msg.to = to;
         msg.data.put("callId", callId);
-        return gson.toJson(msg);
+        return msg;
+    }
+
+    public static String buildAudioEnd(Integer from, Integer to, String callId) {
+        return toJson(createAudioEnd(from, to, callId));
     }
 
     // ===== WEBRTC SIGNALING =====
     
-    public static String buildCallOffer(Integer from, Integer to, String sdp) {
+    public static Message createCallOffer(Integer from, Integer to, String sdp) {
         Message msg = new Message();
         msg.type = MessageType.CALL_OFFER.name();
         msg.from = from;
         msg.to = to;
         msg.data.put("sdp", sdp);
-        return gson.toJson(msg);
+        return msg;
     }
 
-    public static String buildCallAnswer(Integer from, Integer to, String sdp) {
+    public static String buildCallOffer(Integer from, Integer to, String sdp) {
+        return toJson(createCallOffer(from, to, sdp));
+    }
+
+    public static Message createCallAnswer(Integer from, Integer to, String sdp) {
         Message msg = new Message();
         msg.type = MessageType.CALL_ANSWER.name();
         msg.from = from;
         msg.to = to;
         msg.data.put("sdp", sdp);
-        return gson.toJson(msg);
+        return msg;
     }
 
-    public static String buildCallHangup(Integer from, Integer to) {
+    public static String buildCallAnswer(Integer from, Integer to, String sdp) {
+        return toJson(createCallAnswer(from, to, sdp));
+    }
+
+    public static Message createCallHangup(Integer from, Integer to) {
         Message msg = new Message();
         msg.type = MessageType.CALL_HANGUP.name();
         msg.from = from;
         msg.to = to;
-        return gson.toJson(msg);
+        return msg;
+    }
+
+    public static String buildCallHangup(Integer from, Integer to) {
+        return toJson(createCallHangup(from, to));
     }
 
     // ===== MESSAGE SEEN =====
     
-    public static String buildMessageSeen(Integer from, Integer conversationId, Integer messageId) {
+    public static Message createMessageSeen(Integer from, Integer conversationId, Integer messageId) {
         Message msg = new Message();
         msg.type = MessageType.MESSAGE_SEEN.name();
         msg.from = from;
         msg.conversationId = conversationId;
         msg.data.put("messageId", messageId);
+        return msg;
+    }
+
+    public static String buildMessageSeen(Integer from, Integer conversationId, Integer messageId) {
+        return HotMessageWriter.messageSeen(from, conversationId, messageId);
+    }
+
+    // ===== HANDSHAKE =====
+
+    /**
+     * HELLO: khả năng của local peer (+ codec đang dùng nếu gửi lạc quan từ cache)
+     */
+    public static Message createHello(Integer from, List<String> codecs, List<String> compression,
+                                      int maxFrame, int fileWindow, String useCodec, String useCompression) {
+        Message msg = new Message();
+        msg.type = MessageType.HELLO.name();
+        msg.from = from;
+        msg.data.put("userId", from);
+        msg.data.put("version", PROTOCOL_VERSION);
+        msg.data.put("codecs", codecs);
+        msg.data.put("compression", compression);
+        msg.data.put("maxFrame", maxFrame);
+        msg.data.put("fileWindow", fileWindow);
+        msg.data.put("useCodec", useCodec);
+        msg.data.put("useCompression", useCompression);
+        return msg;
+    }
+
+    public static Message createHelloAck(Integer from, String useCodec, String useCompression) {
+        Message msg = new Message();
+        msg.type = MessageType.HELLO_ACK.name();
+        msg.from = from;
+        msg.data.put("useCodec", useCodec);
+        msg.data.put("useCompression", useCompression);
+        return msg;
+    }
+
+    // ===== HEARTBEAT =====
+
+    /**
+     * PING: nonce do bên gửi tự chọn (System.nanoTime() lúc gửi), peer trả nguyên trong PONG
+     */
+    public static Message createPing(Integer from, long nonce) {
+        Message msg = new Message();
+        msg.type = MessageType.PING.name();
+        msg.from = from;
+        msg.data.put("nonce", nonce);
+        return msg;
+    }
+
+    public static Message createPong(Integer from, long nonce) {
+        Message msg = new Message();
+        msg.type = MessageType.PONG.name();
+        msg.from = from;
+        msg.data.put("nonce", nonce);
+        return msg;
+    }
+
+    // ===== BATCH =====
+
+    /**
+     * Gói nhiều message thành 1 BATCH (payload = các binary frame nối tiếp, giữ nguyên thứ tự)
+     */
+    public static Message createBatch(Integer from, List<Message> messages) throws IOException {
+        Message msg = new Message();
+        msg.type = MessageType.BATCH.name();
+        msg.from = from;
+        msg.data.put("count", messages.size());
+        msg.payload = BinaryFrameCodec.encodeAll(messages);
+        return msg;
+    }
+
+    /**
+     * Tách BATCH thành các message theo đúng thứ tự gửi
+     */
+    public static List<Message> unpackBatch(Message batch) throws IOException {
+        return BinaryFrameCodec.readAll(batch.payload);
+    }
+
+    /**
+     * Tách BATCH, bỏ luôn các message có type không nằm trong accepted (null = nhận hết)
+     */
+    public static List<Message> unpackBatch(Message batch, Set<MessageType> accepted) throws IOException {
+        return BinaryFrameCodec.readAll(batch.payload, accepted);
+    }
+
+    // ===== SERIALIZE, PARSE & VALIDATION =====
+
+    public static String toJson(Message msg) {
+        // Message nhỏ, gửi nhiều (ACK, TYPING, SEEN, ...) → writer viết tay, không reflection
+        String hot = HotMessageWriter.write(msg);
+        if (hot != null) {
+            return hot;
+        }
+        if (msg.payload != null && !msg.data.containsKey(CHUNK_DATA)) {
+            // JSON không mang được byte thô → Base64 vào bản sao, không sửa message gốc
+            Message copy = new Message();
+            copy.type = msg.type;
+            copy.from = msg.from;
+            copy.to = msg.to;
+            copy.conversationId = msg.conversationId;
+            copy.timestamp = msg.timestamp;
+            copy.data = new HashMap<>(msg.data);
+            copy.data.put(CHUNK_DATA, Base64.getEncoder().encodeToString(msg.payload));
+            return gson.toJson(copy);
+        }
         return gson.toJson(msg);
     }
 
-    // ===== PARSE & VALIDATION =====
+    /**
+     * Lấy dữ liệu chunk: byte thô nếu nhận qua binary frame, ngược lại decode Base64 từ JSON
+     */
+    public static byte[] getChunkData(Message msg) {
+        if (msg.payload != null) {
+            return msg.payload;
+        }
+        Object b64 = msg.data != null ? msg.data.get(CHUNK_DATA) : null;
+        return b64 instanceof String s ? Base64.getDecoder().decode(s) : null;
+    }
     
+    /**
+     * Resolve MessageType từ tên, không ném exception
+     * @return null nếu type không hợp lệ hoặc không biết
+     */
+    public static MessageType typeOf(Message msg) {
+        return msg != null ? typeOf(msg.type) : null;
+    }
+
+    public static MessageType typeOf(String name) {
+        return name != null ? TYPES_BY_NAME.get(name) : null;
+    }
+
+    private static final String TYPE_PREFIX = "{\"type\":\"";
+
+    /**
+     * Đọc nhanh tên type mà không parse cả JSON
+     * Chỉ nhận dạng chuẩn do Gson/HotMessageWriter sinh ra: type là field đầu tiên
+     * @return tên type, hoặc null nếu không đọc nhanh được (→ parse đầy đủ)
+     */
+    public static String peekTypeName(String json) {
+        if (!json.startsWith(TYPE_PREFIX)) return null;
+        int start = TYPE_PREFIX.length();
+        int end = json.indexOf('"', start);
+        if (end < 0) return null;
+        for (int i = start; i < end; i++) {
+            if (json.charAt(i) == '\\') return null; // Có escape → để parser xử lý
+        }
+        return json.substring(start, end);
+    }
+
+    /**
+     * Parse JSON bằng JsonReader: envelope đọc tay, "data" decode thẳng vào payload có kiểu
+     * Nếu "data" đứng trước "type" (peer khác serialize) → đọc Map rồi chuyển lazy qua bodyOf()
+     */
     public static Message parse(String json) {
+        try {
+            JsonReader in = new JsonReader(new StringReader(json));
+            in.setLenient(true);
+            if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new IllegalStateException("Expected object but was " + in.peek());
+            }
+
+            Message msg = Message.blank();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "type" -> msg.type = P2PPayloads.nextString(in);
+                    case "from" -> msg.from = P2PPayloads.nextInteger(in);
+                    case "to" -> msg.to = P2PPayloads.nextInteger(in);
+                    case "conversationId" -> msg.conversationId = P2PPayloads.nextInteger(in);
+                    case "timestamp" -> msg.timestamp = P2PPayloads.nextLong(in);
+                    case "data" -> readData(in, msg);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            if (msg.timestamp == null) {
+                msg.timestamp = System.currentTimeMillis(); // Như Gson: giữ giá trị mặc định của constructor
+            }
+            return msg;
+        } catch (IOException | IllegalStateException | NumberFormatException | JsonParseException e) {
+            System.err.println("❌ Invalid P2P message format: " + json);
+            return null;
+        }
+    }
+
+    /**
+     * Parse JSON giữ nguyên data dạng Map (không decode payload có kiểu)
+     * Dùng khi cần encode lại message sang codec khác (vd: JSON → binary frame)
+     */
+    public static Message parseGeneric(String json) {
         try {
             return gson.fromJson(json, Message.class);
-        } catch (JsonSyntaxException e) {
+        } catch (JsonParseException e) {
             System.err.println("❌ Invalid P2P message format: " + json);
             return null;
         }
     }
 
+    private static void readData(JsonReader in, Message msg) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            msg.data = null;
+            return;
+        }
+        P2PPayloads.Codec<?> codec = msg.body == null ? P2PPayloads.codecFor(typeOf(msg)) : null;
+        if (codec != null) {
+            msg.body = codec.readJson(in, msg);
+        } else {
+            msg.data = gson.fromJson(in, DATA_TYPE);
+        }
+    }
+
     public static boolean isValid(Message msg) {
         return msg != null 
             && msg.type != null 
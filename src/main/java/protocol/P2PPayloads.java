@@ -0,0 +1,734 @@
+package protocol;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * P2PPayloads - Payload có kiểu cho từng MessageType
+ *
+ * Mỗi payload có codec viết tay:
+ * - readJson: đọc thẳng object "data" bằng JsonReader (không Map, không boxing, số không thành Double)
+ * - fromData: chuyển từ Message.data (binary frame / Gson fallback)
+ * Handler trong P2PManager nhận payload đã có kiểu thay vì cast từ Map<String,Object>.
+ */
+public final class P2PPayloads {
+
+    private P2PPayloads() {}
+
+    // ===== PAYLOAD RECORDS =====
+
+    /** CHAT_MESSAGE */
+    public record Chat(String content, String clientMessageId) {}
+
+    /** MESSAGE_ACK */
+    public record ClientMessageRef(String clientMessageId) {}
+
+    /** MESSAGE_SEEN, MESSAGE_SEEN_ACK */
+    public record MessageRef(Integer messageId) {}
+
+    /** FILE_CHUNK - metadata (fileName, fileSize, ...) chỉ có ở chunk đầu; crc: CRC32C của chunkData (peer cũ: null) */
+    public record FileChunk(
+            String fileId,
+            int chunkIndex,
+            int totalChunks,
+            byte[] chunkData,
+            String fileName,
+            Long fileSize,
+            Integer conversationId,
+            String clientMessageId,
+            String checksum,
+            Long crc
+    ) {
+        /**
+         * Dữ liệu khớp CRC sender gửi kèm (không có CRC → coi như đúng)
+         */
+        public boolean crcMatches() {
+            return crc == null || (chunkData != null && P2PMessageProtocol.chunkCrc(chunkData) == crc);
+        }
+    }
+
+    /** FILE_CANCEL, FILE_ACK */
+    public record FileRef(String fileId) {}
+
+    /** FILE_COMPLETE - checksum SHA-256 của cả file (sender tính dần khi gửi; peer cũ không gửi → null) */
+    public record FileComplete(String fileId, String checksum) {}
+
+    /** FILE_NACK */
+    public record FileNack(String fileId, String reason) {}
+
+    /** FILE_CHUNK_ACK - mọi chunk < nextChunk đã ghi xong */
+    public record FileChunkAck(String fileId, int nextChunk) {}
+
+    /** FILE_CHUNK_NACK - chunk bị hỏng, cần gửi lại */
+    public record FileChunkNack(String fileId, int chunkIndex) {}
+
+    /** FILE_RESUME - metadata của file sắp gửi (lần gửi lại có fileId mới, clientMessageId giữ nguyên) */
+    public record FileResume(
+            String fileId,
+            String clientMessageId,
+            String fileName,
+            Long fileSize,
+            int totalChunks,
+            Integer conversationId,
+            String checksum
+    ) {}
+
+    /** FILE_RESUME_ACK - missing: đoạn chunk còn thiếu "0-9,20-31" */
+    public record FileResumeAck(String fileId, String missing) {
+        /**
+         * @return chunk còn thiếu, null nếu missing sai định dạng
+         */
+        public BitSet missingChunks() {
+            BitSet chunks = new BitSet();
+            if (missing == null || missing.isEmpty()) return chunks;
+            try {
+                for (String range : missing.split(",")) {
+                    int dash = range.indexOf('-');
+                    int start = Integer.parseInt(range.substring(0, dash));
+                    int end = Integer.parseInt(range.substring(dash + 1));
+                    if (start < 0 || end < start) return null;
+                    chunks.set(start, end + 1);
+                }
+            } catch (RuntimeException e) {
+                return null;
+            }
+            return chunks;
+        }
+    }
+
+    /** AUDIO_REQUEST, AUDIO_END */
+    public record CallRef(String callId) {}
+
+    /** AUDIO_ACCEPT */
+    public record AudioAccept(String callId, int udpPort) {}
+
+    /** AUDIO_REJECT */
+    public record AudioReject(String callId, String reason) {}
+
+    /** CALL_OFFER, CALL_ANSWER */
+    public record Sdp(String sdp) {}
+
+    /**
+     * HELLO - khả năng của peer, gửi 1 lần khi mở kết nối
+     * useCodec/useCompression != null: sender đã dùng codec này ngay sau dòng HELLO (nhớ từ lần trước)
+     */
+    public record Hello(
+            Integer userId,
+            int version,
+            List<String> codecs,
+            List<String> compression,
+            int maxFrame,
+            int fileWindow,
+            String useCodec,
+            String useCompression
+    ) {}
+
+    /** HELLO_ACK - codec/compression sender dùng cho chiều ghi, bắt đầu ngay sau dòng này */
+    public record HelloAck(String useCodec, String useCompression) {}
+
+    /** PING, PONG - PONG trả lại nguyên nonce của PING */
+    public record Ping(long nonce) {}
+
+    // ===== CODEC REGISTRY =====
+
+    interface Codec<P> {
+        P readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException;
+        P fromData(P2PMessageProtocol.Message msg);
+    }
+
+    private static final Map<P2PMessageProtocol.MessageType, Codec<?>> CODECS =
+            new EnumMap<>(P2PMessageProtocol.MessageType.class);
+
+    static {
+        CODECS.put(P2PMessageProtocol.MessageType.CHAT_MESSAGE, new ChatCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.MESSAGE_ACK, new ClientMessageRefCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.MESSAGE_SEEN, new MessageRefCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.MESSAGE_SEEN_ACK, new MessageRefCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.FILE_CHUNK, new FileChunkCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.FILE_COMPLETE, new FileCompleteCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.FILE_CANCEL, new FileRefCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.FILE_ACK, new FileRefCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.FILE_NACK, new FileNackCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.FILE_CHUNK_ACK, new FileChunkAckCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.FILE_CHUNK_NACK, new FileChunkNackCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.FILE_RESUME, new FileResumeCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.FILE_RESUME_ACK, new FileResumeAckCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.AUDIO_REQUEST, new CallRefCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.AUDIO_END, new CallRefCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.AUDIO_ACCEPT, new AudioAcceptCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.AUDIO_REJECT, new AudioRejectCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.CALL_OFFER, new SdpCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.CALL_ANSWER, new SdpCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.HELLO, new HelloCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.HELLO_ACK, new HelloAckCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.PING, new PingCodec());
+        CODECS.put(P2PMessageProtocol.MessageType.PONG, new PingCodec());
+    }
+
+    static Codec<?> codecFor(P2PMessageProtocol.MessageType type) {
+        return type != null ? CODECS.get(type) : null;
+    }
+
+    /**
+     * Payload có kiểu của message (tạo lazy từ data nếu message không đi qua streaming decoder)
+     * @return null nếu type không có payload (TYPING_*, ...)
+     */
+    public static Object bodyOf(P2PMessageProtocol.Message msg) {
+        if (msg.body == null) {
+            Codec<?> codec = codecFor(P2PMessageProtocol.typeOf(msg));
+            if (codec != null && msg.data != null) {
+                msg.body = codec.fromData(msg);
+            }
+        }
+        return msg.body;
+    }
+
+    // ===== CODECS =====
+
+    private static class ChatCodec implements Codec<Chat> {
+        @Override
+        public Chat readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException {
+            String content = null, clientMessageId = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "content" -> content = nextString(in);
+                    case "clientMessageId" -> clientMessageId = nextString(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Chat(content, clientMessageId);
+        }
+
+        @Override
+        public Chat fromData(P2PMessageProtocol.Message msg) {
+            return new Chat(string(msg.data, "content"), string(msg.data, "clientMessageId"));
+        }
+    }
+
+    private static class ClientMessageRefCodec implements Codec<ClientMessageRef> {
+        @Override
+        public ClientMessageRef readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException {
+            String clientMessageId = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                if (in.nextName().equals("clientMessageId")) {
+                    clientMessageId = nextString(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new ClientMessageRef(clientMessageId);
+        }
+
+        @Override
+        public ClientMessageRef fromData(P2PMessageProtocol.Message msg) {
+            return new ClientMessageRef(string(msg.data, "clientMessageId"));
+        }
+    }
+
+    private static class MessageRefCodec implements Codec<MessageRef> {
+        @Override
+        public MessageRef readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException {
+            Integer messageId = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                if (in.nextName().equals("messageId")) {
+                    messageId = nextInteger(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new MessageRef(messageId);
+        }
+
+        @Override
+        public MessageRef fromData(P2PMessageProtocol.Message msg) {
+            return new MessageRef(integer(msg.data, "messageId"));
+        }
+    }
+
+    private static class FileChunkCodec implements Codec<FileChunk> {
+        @Override
+        public FileChunk readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException {
+            String fileId = null, fileName = null, clientMessageId = null, checksum = null;
+            int chunkIndex = 0, totalChunks = 0;
+            Long fileSize = null, crc = null;
+            Integer conversationId = null;
+            byte[] chunkData = msg.payload;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "fileId" -> fileId = nextString(in);
+                    case "chunkIndex" -> chunkIndex = in.nextInt();
+                    case "totalChunks" -> totalChunks = in.nextInt();
+                    case "chunkData" -> {
+                        String b64 = nextString(in);
+                        if (b64 != null) {
+                            chunkData = Base64.getDecoder().decode(b64);
+                            msg.payload = chunkData; // để getChunkData() dùng được cho cả 2 đường
+                        }
+                    }
+                    case "fileName" -> fileName = nextString(in);
+                    case "fileSize" -> fileSize = nextLong(in);
+                    case "conversationId" -> conversationId = nextInteger(in);
+                    case "clientMessageId" -> clientMessageId = nextString(in);
+                    case "checksum" -> checksum = nextString(in);
+                    case "crc" -> crc = nextLong(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+
+            return new FileChunk(fileId, chunkIndex, totalChunks, chunkData,
+                    fileName, fileSize, conversationId, clientMessageId, checksum, crc);
+        }
+
+        @Override
+        public FileChunk fromData(P2PMessageProtocol.Message msg) {
+            Map<String, Object> d = msg.data;
+            Integer chunkIndex = integer(d, "chunkIndex");
+            Integer totalChunks = integer(d, "totalChunks");
+            Number fileSize = (Number) d.get("fileSize");
+            Number crc = (Number) d.get("crc");
+            return new FileChunk(
+                    string(d, "fileId"),
+                    chunkIndex != null ? chunkIndex : 0,
+                    totalChunks != null ? totalChunks : 0,
+                    P2PMessageProtocol.getChunkData(msg),
+                    string(d, "fileName"),
+                    fileSize != null ? fileSize.longValue() : null,
+                    integer(d, "conversationId"),
+                    string(d, "clientMessageId"),
+                    string(d, "checksum"),
+                    crc != null ? crc.longValue() : null);
+        }
+    }
+
+    private static class FileRefCodec implements Codec<FileRef> {
+        @Override
+        public FileRef readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException {
+            String fileId = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                if (in.nextName().equals("fileId")) {
+                    fileId = nextString(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new FileRef(fileId);
+        }
+
+        @Override
+        public FileRef fromData(P2PMessageProtocol.Message msg) {
+            return new FileRef(string(msg.data, "fileId"));
+        }
+    }
+
+    private static class FileCompleteCodec implements Codec<FileComplete> {
+        @Override
+        public FileComplete readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException {
+            String fileId = null, checksum = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "fileId" -> fileId = nextString(in);
+                    case "checksum" -> checksum = nextString(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return new FileComplete(fileId, checksum);
+        }
+
+        @Override
+        public FileComplete fromData(P2PMessageProtocol.Message msg) {
+            return new FileComplete(string(msg.data, "fileId"), string(msg.data, "checksum"));
+        }
+    }
+
+    private static class FileNackCodec implements Codec<FileNack> {
+        @Override
+        public FileNack readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException {
+            String fileId = null, reason = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "fileId" -> fileId = nextString(in);
+                    case "reason" -> reason = nextString(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return new FileNack(fileId, reason);
+        }
+
+        @Override
+        public FileNack fromData(P2PMessageProtocol.Message msg) {
+            return new FileNack(string(msg.data, "fileId"), string(msg.data, "reason"));
+        }
+    }
+
+    private static class FileChunkAckCodec implements Codec<FileChunkAck> {
+        @Override
+        public FileChunkAck readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException {
+            String fileId = null;
+            int nextChunk = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "fileId" -> fileId = nextString(in);
+                    case "nextChunk" -> nextChunk = in.nextInt();
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return new FileChunkAck(fileId, nextChunk);
+        }
+
+        @Override
+        public FileChunkAck fromData(P2PMessageProtocol.Message msg) {
+            Integer nextChunk = integer(msg.data, "nextChunk");
+            return new FileChunkAck(string(msg.data, "fileId"), nextChunk != null ? nextChunk : 0);
+        }
+    }
+
+    private static class FileChunkNackCodec implements Codec<FileChunkNack> {
+        @Override
+        public FileChunkNack readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException {
+            String fileId = null;
+            int chunkIndex = -1;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "fileId" -> fileId = nextString(in);
+                    case "chunkIndex" -> chunkIndex = in.nextInt();
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return new FileChunkNack(fileId, chunkIndex);
+        }
+
+        @Override
+        public FileChunkNack fromData(P2PMessageProtocol.Message msg) {
+            Integer chunkIndex = integer(msg.data, "chunkIndex");
+            return new FileChunkNack(string(msg.data, "fileId"), chunkIndex != null ? chunkIndex : -1);
+        }
+    }
+
+    private static class FileResumeCodec implements Codec<FileResume> {
+        @Override
+        public FileResume readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException {
+            String fileId = null, clientMessageId = null, fileName = null, checksum = null;
+            Long fileSize = null;
+            int totalChunks = 0;
+            Integer conversationId = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "fileId" -> fileId = nextString(in);
+                    case "clientMessageId" -> clientMessageId = nextString(in);
+                    case "fileName" -> fileName = nextString(in);
+                    case "fileSize" -> fileSize = nextLong(in);
+                    case "totalChunks" -> totalChunks = in.nextInt();
+                    case "conversationId" -> conversationId = nextInteger(in);
+                    case "checksum" -> checksum = nextString(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return new FileResume(fileId, clientMessageId, fileName, fileSize, totalChunks, conversationId, checksum);
+        }
+
+        @Override
+        public FileResume fromData(P2PMessageProtocol.Message msg) {
+            Map<String, Object> d = msg.data;
+            Integer totalChunks = integer(d, "totalChunks");
+            Number fileSize = (Number) d.get("fileSize");
+            return new FileResume(
+                    string(d, "fileId"),
+                    string(d, "clientMessageId"),
+                    string(d, "fileName"),
+                    fileSize != null ? fileSize.longValue() : null,
+                    totalChunks != null ? totalChunks : 0,
+                    integer(d, "conversationId"),
+                    string(d, "checksum"));
+        }
+    }
+
+    private static class FileResumeAckCodec implements Codec<FileResumeAck> {
+        @Override
+        public FileResumeAck readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException {
+            String fileId = null, missing = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "fileId" -> fileId = nextString(in);
+                    case "missing" -> missing = nextString(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return new FileResumeAck(fileId, missing);
+        }
+
+        @Override
+        public FileResumeAck fromData(P2PMessageProtocol.Message msg) {
+            return new FileResumeAck(string(msg.data, "fileId"), string(msg.data, "missing"));
+        }
+    }
+
+    private static class CallRefCodec implements Codec<CallRef> {
+        @Override
+        public CallRef readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException {
+            String callId = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                if (in.nextName().equals("callId")) {
+                    callId = nextString(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new CallRef(callId);
+        }
+
+        @Override
+        public CallRef fromData(P2PMessageProtocol.Message msg) {
+            return new CallRef(string(msg.data, "callId"));
+        }
+    }
+
+    private static class AudioAcceptCodec implements Codec<AudioAccept> {
+        @Override
+        public AudioAccept readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException {
+            String callId = null;
+            int udpPort = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "callId" -> callId = nextString(in);
+                    case "udpPort" -> udpPort = in.nextInt();
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return new AudioAccept(callId, udpPort);
+        }
+
+        @Override
+        public AudioAccept fromData(P2PMessageProtocol.Message msg) {
+            Integer udpPort = integer(msg.data, "udpPort");
+            return new AudioAccept(string(msg.data, "callId"), udpPort != null ? udpPort : 0);
+        }
+    }
+
+    private static class AudioRejectCodec implements Codec<AudioReject> {
+        @Override
+        public AudioReject readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException {
+            String callId = null, reason = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "callId" -> callId = nextString(in);
+                    case "reason" -> reason = nextString(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return new AudioReject(callId, reason);
+        }
+
+        @Override
+        public AudioReject fromData(P2PMessageProtocol.Message msg) {
+            return new AudioReject(string(msg.data, "callId"), string(msg.data, "reason"));
+        }
+    }
+
+    private static class SdpCodec implements Codec<Sdp> {
+        @Override
+        public Sdp readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException {
+            String sdp = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                if (in.nextName().equals("sdp")) {
+                    sdp = nextString(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Sdp(sdp);
+        }
+
+        @Override
+        public Sdp fromData(P2PMessageProtocol.Message msg) {
+            return new Sdp(string(msg.data, "sdp"));
+        }
+    }
+
+    private static class HelloCodec implements Codec<Hello> {
+        @Override
+        public Hello readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException {
+            Integer userId = null;
+            int version = 0, maxFrame = 0, fileWindow = 0;
+            List<String> codecs = List.of(), compression = List.of();
+            String useCodec = null, useCompression = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "userId" -> userId = nextInteger(in);
+                    case "version" -> version = in.nextInt();
+                    case "codecs" -> codecs = nextStringList(in);
+                    case "compression" -> compression = nextStringList(in);
+                    case "maxFrame" -> maxFrame = in.nextInt();
+                    case "fileWindow" -> fileWindow = in.nextInt();
+                    case "useCodec" -> useCodec = nextString(in);
+                    case "useCompression" -> useCompression = nextString(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Hello(userId, version, codecs, compression, maxFrame, fileWindow, useCodec, useCompression);
+        }
+
+        @Override
+        public Hello fromData(P2PMessageProtocol.Message msg) {
+            Map<String, Object> d = msg.data;
+            Integer version = integer(d, "version");
+            Integer maxFrame = integer(d, "maxFrame");
+            Integer fileWindow = integer(d, "fileWindow");
+            return new Hello(
+                    integer(d, "userId"),
+                    version != null ? version : 0,
+                    stringList(d, "codecs"),
+                    stringList(d, "compression"),
+                    maxFrame != null ? maxFrame : 0,
+                    fileWindow != null ? fileWindow : 0,
+                    string(d, "useCodec"),
+                    string(d, "useCompression"));
+        }
+    }
+
+    private static class HelloAckCodec implements Codec<HelloAck> {
+        @Override
+        public HelloAck readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException {
+            String useCodec = null, useCompression = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "useCodec" -> useCodec = nextString(in);
+                    case "useCompression" -> useCompression = nextString(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return new HelloAck(useCodec, useCompression);
+        }
+
+        @Override
+        public HelloAck fromData(P2PMessageProtocol.Message msg) {
+            return new HelloAck(string(msg.data, "useCodec"), string(msg.data, "useCompression"));
+        }
+    }
+
+    private static class PingCodec implements Codec<Ping> {
+        @Override
+        public Ping readJson(JsonReader in, P2PMessageProtocol.Message msg) throws IOException {
+            long nonce = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "nonce" -> nonce = in.nextLong();
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Ping(nonce);
+        }
+
+        @Override
+        public Ping fromData(P2PMessageProtocol.Message msg) {
+            Object nonce = msg.data.get("nonce");
+            return new Ping(nonce instanceof Number n ? n.longValue() : 0L);
+        }
+    }
+
+    // ===== HELPERS =====
+
+    static String nextString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    static Integer nextInteger(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextInt();
+    }
+
+    static Long nextLong(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextLong();
+    }
+
+    private static List<String> nextStringList(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return List.of();
+        }
+        List<String> values = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            String value = nextString(in);
+            if (value != null) values.add(value);
+        }
+        in.endArray();
+        return values;
+    }
+
+    private static List<String> stringList(Map<String, Object> data, String key) {
+        List<String> values = new ArrayList<>();
+        if (data.get(key) instanceof List<?> list) {
+            for (Object value : list) {
+                if (value instanceof String s) values.add(s);
+            }
+        }
+        return values;
+    }
+
+    private static String string(Map<String, Object> data, String key) {
+        Object value = data.get(key);
+        return value instanceof String s ? s : null;
+    }
+
+    private static Integer integer(Map<String, Object> data, String key) {
+        Object value = data.get(key);
+        return value instanceof Number n ? n.intValue() : null;
+    }
+}
@@ -7,7 +7,6 @@ import model.Conversation;
 import model.FriendRequest;
 import model.Message;
 import model.Users;
-import protocol.P2PMessageProtocol;
 
 /**
  * ChatService - Facade pattern
@@ -201,10 +200,6 @@ public class ChatService {
     	messageService.markMessageSentByClientId(clientMessageId);
     }
     
-    public void handleMessageNack(P2PMessageProtocol.Message msg) {
-    	messageService.handleMessageNack(msg);
-    }
-    
     public void markMessageFailedByClientId(String clientMessageId) {
     	messageService.markMessageFailedByClientId(clientMessageId);
     }
@@ -140,12 +140,13 @@ public class FileRetryService {
             
             System.out.println("🔄 Retrying file upload: " + fileAttachment.getFileName());
             
-            // Retry send via P2P
+            // Retry send via P2P (checksum đã lưu lúc gửi lần đầu → không đọc lại cả file, receiver gửi tiếp được)
             String p2pFileId = p2pManager.sendFile(
                 recipientId,
                 sourceFile,
                 message.getConversation().getId(),
-                message.getClientMessageId()
+                message.getClientMessageId(),
+                fileAttachment.getChecksum()
             );
             
             System.out.println("✅ File upload retry initiated: " + fileAttachment.getFileName());
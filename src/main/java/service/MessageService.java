@@ -2,7 +2,6 @@ package service;
 
 import java.time.LocalDateTime;
 import java.util.List;
-import java.util.UUID;
 
 import dao.ConversationDao;
 import dao.MessageDao;
@@ -11,7 +10,7 @@ import model.Conversation;
 import model.Message;
 import model.Users;
 import model.Message.MessageStatus;
-import protocol.P2PMessageProtocol;
+import util.MessageId;
 
 public class MessageService {
 
@@ -96,7 +95,7 @@ public class MessageService {
      * Gửi tin nhắn TEXT (legacy - tự động generate clientMessageId)
      */
     public Message sendMessage(Integer conversationId, Integer senderId, String content, String imageUrl) {
-        String clientMessageId = UUID.randomUUID().toString();
+        String clientMessageId = MessageId.nextString();
         return sendMessageIdempotent(conversationId, senderId, content, imageUrl, 
                                      Message.MessageType.TEXT, clientMessageId);
     }
@@ -106,7 +105,7 @@ public class MessageService {
      */
     public Message sendMessageWithType(Integer conversationId, Integer senderId, 
                                       String content, String imageUrl, Message.MessageType type) {
-        String clientMessageId = UUID.randomUUID().toString();
+        String clientMessageId = MessageId.nextString();
         return sendMessageIdempotent(conversationId, senderId, content, imageUrl, 
                                      type, clientMessageId);
     }
@@ -124,14 +123,6 @@ public class MessageService {
     }
     
     
-    public void handleMessageNack(P2PMessageProtocol.Message msg) {
-		String clientMessageId = (String) msg.data.get("clientMessageId");
-        messageDao.updateMessageStatusByClientId(
-            clientMessageId,
-            MessageStatus.FAILED
-        );
-	}
-    
     public void markMessageFailedByClientId(String clientMessageId) {
         messageDao.updateMessageStatusByClientId(
             clientMessageId,
@@ -160,7 +151,7 @@ public class MessageService {
      * Gửi file message (legacy - tự động generate clientMessageId)
      */
     public Message sendFileMessage(Integer conversationId, Integer senderId, String fileName) {
-        String clientMessageId = UUID.randomUUID().toString();
+        String clientMessageId = MessageId.nextString();
         return sendFileMessageIdempotent(conversationId, senderId, fileName, null, clientMessageId);
     }
 
@@ -184,7 +175,7 @@ public class MessageService {
      */
     public Message sendImageMessage(Integer conversationId, Integer senderId, 
                                    String caption, String imageUrl) {
-        String clientMessageId = UUID.randomUUID().toString();
+        String clientMessageId = MessageId.nextString();
         return sendImageMessageIdempotent(conversationId, senderId, caption, imageUrl, clientMessageId);
     }
 
@@ -208,7 +199,7 @@ public class MessageService {
      */
     public Message sendAudioMessage(Integer conversationId, Integer senderId, 
                                    String duration, String audioUrl) {
-        String clientMessageId = UUID.randomUUID().toString();
+        String clientMessageId = MessageId.nextString();
         return sendAudioMessageIdempotent(conversationId, senderId, duration, audioUrl, clientMessageId);
     }
 
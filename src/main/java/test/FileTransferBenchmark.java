@@ -0,0 +1,102 @@
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import model.Message;
+import network.p2p.P2PManager;
+import network.p2p.P2PServer;
+import network.p2p.PeerDiscoveryService;
+import network.p2p.PeerInfo;
+
+/**
+ * Đo tốc độ gửi file P2P qua loopback (2 P2PManager trong cùng process, không cần DB / UI)
+ * Thời gian tính từ lúc gửi tới khi nhận FILE_ACK của receiver (receiver không ghi file khi không có controller).
+ *
+ * Chạy: java test.FileTransferBenchmark [sizeMB] [port]
+ */
+public class FileTransferBenchmark {
+    private static final int SENDER_ID = 1;
+    private static final int RECEIVER_ID = 2;
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7013;
+
+        // Receiver: P2PServer + P2PManager như ClientManager
+        PeerDiscoveryService.getInstance().addPeer(new PeerInfo(RECEIVER_ID, "127.0.0.1", port));
+        P2PManager receiver = new P2PManager(RECEIVER_ID, null, null);
+        P2PServer server = new P2PServer(port);
+        server.setLocalUserId(RECEIVER_ID);
+        server.setMessageHandler((fromUserId, message) -> receiver.onMessageReceived(message));
+        server.setAcceptedTypes(receiver.getHandledTypes());
+        server.setConnectionListener(receiver::adoptConnection);
+        server.start();
+        Thread.sleep(200);
+
+        // Sender
+        CountDownLatch done = new CountDownLatch(1);
+        String[] error = new String[1];
+        P2PManager sender = new P2PManager(SENDER_ID, null, null);
+        sender.setEventListener(new P2PManager.P2PEventListener() {
+            @Override public void onChatMessageReceived(Integer conversationId, Message message) {}
+            @Override public void onTypingReceived(Integer conversationId, Integer userId) {}
+            @Override public void onFileProgress(String fileId, int progress, boolean isUpload) {}
+            @Override public void onFileComplete(String fileId, File file, boolean isUpload) {
+                if (isUpload) done.countDown();
+            }
+            @Override public void onFileCanceled(String fileId, boolean isUpload) {}
+            @Override public void onFileError(String fileId, String err) {
+                error[0] = err;
+                done.countDown();
+            }
+            @Override public void onConnectionLost(Integer userId) {}
+        });
+        if (!sender.connectToPeer(RECEIVER_ID)) {
+            throw new IOException("Cannot connect to receiver on port " + port);
+        }
+
+        File file = createRandomFile(sizeMb);
+        try {
+            long start = System.nanoTime();
+            sender.sendFile(RECEIVER_ID, file, 1, "benchmark");
+            if (!done.await(5, TimeUnit.MINUTES)) {
+                throw new IOException("Transfer timed out");
+            }
+            if (error[0] != null) {
+                throw new IOException("Transfer failed: " + error[0]);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            long chunks = (file.length() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            System.out.printf("📊 %d MB in %.2f s → %.1f MB/s%n", sizeMb, seconds, sizeMb / seconds);
+            System.out.printf("   (sleep 10ms / chunk would need ≥ %.1f s, ≤ %.1f MB/s)%n",
+                    chunks * 0.01, sizeMb / (chunks * 0.01));
+        } finally {
+            Files.deleteIfExists(file.toPath());
+            sender.shutdown();
+            receiver.shutdown();
+            server.stop();
+        }
+        System.exit(0);
+    }
+
+    private static File createRandomFile(int sizeMb) throws IOException {
+        File file = File.createTempFile("p2p-bench-", ".bin");
+        byte[] block = new byte[1024 * 1024];
+        Random random = new Random(42);
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            for (int i = 0; i < sizeMb; i++) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,133 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.gson.Gson;
+import protocol.P2PMessageProtocol;
+import protocol.P2PMessageProtocol.Message;
+import protocol.P2PMessageProtocol.MessageType;
+
+/**
+ * Kiểm tra HotMessageWriter ghi JSON giống hệt từng byte với Gson mặc định
+ * (thứ tự key của HashMap, tập ký tự escape HTML-safe, bỏ field null)
+ * cho mọi type hot, cả 2 đường: buildX(...) và toJson(createX(...)).
+ *
+ * Chạy: java test.HotMessageWriterCheck (exit code 1 nếu có chỗ lệch)
+ */
+public class HotMessageWriterCheck {
+    private static final Gson gson = new Gson();
+    private static final Pattern TIMESTAMP = Pattern.compile("\"timestamp\":(-?\\d+)");
+
+    private static final String[] STRINGS = {
+            null,
+            "",
+            "hello",
+            "Tiếng Việt có dấu 😀",
+            "<script>alert('x') & a=b</script>",
+            "\"quoted\" \\ back\\slash / slash",
+            "\n\r\t\b\f",
+            "\u0000\u0001\u001f\u007f",
+            "  ",
+            "\ud800 lone surrogate",
+            "{\"type\":\"PING\"}",
+    };
+    private static final Integer[] INTS = { null, 0, -1, 42, Integer.MAX_VALUE, Integer.MIN_VALUE };
+    private static final long[] LONGS = { 0L, -1L, Long.MAX_VALUE, Long.MIN_VALUE, System.nanoTime() };
+
+    private static int checked = 0;
+    private static final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) {
+        for (Integer from : INTS) {
+            for (Integer id : INTS) {
+                for (String s : STRINGS) {
+                    for (String s2 : STRINGS) {
+                        checkBuilt("buildChatMessage",
+                                P2PMessageProtocol.buildChatMessage(from, id, s, s2),
+                                P2PMessageProtocol.createChatMessage(from, id, s, s2));
+                        checkMessage(P2PMessageProtocol.createChatMessage(from, id, s, s2));
+                    }
+                    checkBuilt("buildMessageAck",
+                            P2PMessageProtocol.buildMessageAck(from, id, s),
+                            P2PMessageProtocol.createMessageAck(from, id, s));
+                    checkMessage(P2PMessageProtocol.createMessageAck(from, id, s));
+                    checkMessage(P2PMessageProtocol.createFileChunkAck(from, id, s, id != null ? id : 0));
+                }
+                for (Integer messageId : INTS) {
+                    checkBuilt("buildMessageSeen",
+                            P2PMessageProtocol.buildMessageSeen(from, id, messageId),
+                            P2PMessageProtocol.createMessageSeen(from, id, messageId));
+                    checkMessage(P2PMessageProtocol.createMessageSeen(from, id, messageId));
+                    checkMessage(messageSeenAck(from, id, messageId));
+                }
+                checkBuilt("buildTypingStart",
+                        P2PMessageProtocol.buildTypingStart(from, id),
+                        P2PMessageProtocol.createTypingStart(from, id));
+                checkMessage(P2PMessageProtocol.createTypingStart(from, id));
+                checkBuilt("buildTypingStop",
+                        P2PMessageProtocol.buildTypingStop(from, id),
+                        P2PMessageProtocol.createTypingStop(from, id));
+                checkMessage(P2PMessageProtocol.createTypingStop(from, id));
+            }
+            for (long nonce : LONGS) {
+                checkMessage(P2PMessageProtocol.createPing(from, nonce));
+                checkMessage(P2PMessageProtocol.createPong(from, nonce));
+            }
+        }
+
+        // Field null ở cấp message (timestamp, data) cũng phải bị bỏ như Gson
+        Message noTimestamp = P2PMessageProtocol.createChatMessage(1, 2, "<b>", null);
+        noTimestamp.timestamp = null;
+        checkMessage(noTimestamp);
+        Message noData = P2PMessageProtocol.createTypingStart(1, 2);
+        noData.data = null;
+        checkMessage(noData);
+
+        System.out.println("Checked " + checked + " messages against Gson");
+        if (!failures.isEmpty()) {
+            failures.stream().limit(20).forEach(System.err::println);
+            System.err.println("❌ " + failures.size() + " mismatch(es)");
+            System.exit(1);
+        }
+        System.out.println("✅ HotMessageWriter output is identical to Gson");
+    }
+
+    private static Message messageSeenAck(Integer from, Integer to, Integer messageId) {
+        Message msg = new Message();
+        msg.type = MessageType.MESSAGE_SEEN_ACK.name();
+        msg.from = from;
+        msg.to = to;
+        msg.data.put("messageId", messageId);
+        return msg;
+    }
+
+    /**
+     * toJson(createX(...)) phải bằng Gson của chính message đó
+     */
+    private static void checkMessage(Message msg) {
+        compare("toJson(" + msg.type + ")", P2PMessageProtocol.toJson(msg), gson.toJson(msg));
+    }
+
+    /**
+     * buildX(...) tự lấy timestamp → gán cùng timestamp vào message tương ứng rồi so với Gson
+     */
+    private static void checkBuilt(String name, String built, Message expected) {
+        Matcher m = TIMESTAMP.matcher(built);
+        if (!m.find()) {
+            failures.add(name + ": missing timestamp in " + built);
+            return;
+        }
+        expected.timestamp = Long.parseLong(m.group(1));
+        compare(name, built, gson.toJson(expected));
+    }
+
+    private static void compare(String name, String actual, String expected) {
+        checked++;
+        if (!actual.equals(expected)) {
+            failures.add(name + "\n  hot:  " + actual + "\n  gson: " + expected);
+        }
+    }
+}
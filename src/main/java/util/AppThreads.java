@@ -0,0 +1,116 @@
+package util;
+
+import config.AppConfig;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * AppThreads - Tạo thread cho các vòng lặp theo kết nối
+ * (TCP reader/writer, handler của server, gửi file, audio, kết nối P2P, ...)
+ *
+ * Chọn 1 lần lúc khởi động bằng AppConfig.THREAD_MODE (-Dappchat.threads=platform|virtual):
+ * - PLATFORM: thread thường; daemon hay không do nơi gọi chọn (mặc định daemon)
+ * - VIRTUAL: virtual thread; code blocking I/O giữ nguyên, nhưng hàng nghìn kết nối không tốn
+ *   hàng nghìn OS thread. Kèm PinningMonitor báo các chỗ virtual thread bị ghim (synchronized + I/O)
+ *
+ * Lưu ý: virtual thread luôn là daemon, cờ daemon=false chỉ có tác dụng ở PLATFORM.
+ * Nơi nào cần giữ JVM sống (vd: SignalingServer.main) phải tự join thread đó.
+ *
+ * Không dùng cho event loop / scheduler dùng chung (selector, batch flusher, retry) — những thread đó
+ * ít và sống suốt vòng đời app.
+ */
+public final class AppThreads {
+
+    public enum Mode {
+        PLATFORM {
+            @Override
+            Thread.Builder builder(boolean daemon) {
+                return Thread.ofPlatform().daemon(daemon);
+            }
+        },
+        VIRTUAL {
+            @Override
+            Thread.Builder builder(boolean daemon) {
+                return Thread.ofVirtual();
+            }
+        };
+
+        abstract Thread.Builder builder(boolean daemon);
+    }
+
+    private static final Mode MODE = resolveMode();
+
+    static {
+        if (MODE == Mode.VIRTUAL && AppConfig.VIRTUAL_PINNED_THRESHOLD_MS > 0) {
+            PinningMonitor.start(Duration.ofMillis(AppConfig.VIRTUAL_PINNED_THRESHOLD_MS));
+        }
+    }
+
+    private AppThreads() {}
+
+    public static Mode mode() {
+        return MODE;
+    }
+
+    /**
+     * Tạo daemon thread (chưa start)
+     */
+    public static Thread newThread(String name, Runnable task) {
+        return newThread(name, true, task);
+    }
+
+    /**
+     * Tạo thread (chưa start); daemon=false giữ JVM sống ở PLATFORM mode
+     */
+    public static Thread newThread(String name, boolean daemon, Runnable task) {
+        return MODE.builder(daemon).name(name).unstarted(task);
+    }
+
+    /**
+     * Tạo và start daemon thread
+     */
+    public static Thread start(String name, Runnable task) {
+        return start(name, true, task);
+    }
+
+    /**
+     * Tạo và start thread; daemon=false giữ JVM sống ở PLATFORM mode
+     */
+    public static Thread start(String name, boolean daemon, Runnable task) {
+        return MODE.builder(daemon).name(name).start(task);
+    }
+
+    /**
+     * ThreadFactory đặt tên prefix + số thứ tự (vd: "p2p-worker-" → p2p-worker-0, p2p-worker-1, ...)
+     */
+    public static ThreadFactory factory(String prefix) {
+        return MODE.builder(true).name(prefix, 0).factory();
+    }
+
+    /**
+     * Executor chạy mỗi task trên 1 thread riêng
+     * PLATFORM: cached pool (tái dùng thread rảnh), VIRTUAL: 1 virtual thread / task
+     */
+    public static ExecutorService newPerTaskExecutor(String prefix) {
+        return MODE == Mode.VIRTUAL
+                ? Executors.newThreadPerTaskExecutor(factory(prefix))
+                : Executors.newCachedThreadPool(factory(prefix));
+    }
+
+    private static Mode resolveMode() {
+        String mode = AppConfig.THREAD_MODE.trim().toUpperCase();
+        try {
+            Mode resolved = Mode.valueOf(mode);
+            if (resolved == Mode.VIRTUAL) {
+                System.out.println("✅ Using virtual threads for connection loops");
+            }
+            return resolved;
+        } catch (IllegalArgumentException e) {
+            System.err.println("⚠️ Unknown thread mode '" + AppConfig.THREAD_MODE + "', using platform threads");
+            return Mode.PLATFORM;
+        }
+    }
+}
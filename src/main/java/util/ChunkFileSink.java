@@ -0,0 +1,63 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * ChunkFileSink - File đang nhận theo chunk, giữ 1 FileChannel mở suốt lần nhận
+ * - Mở 1 lần, đặt sẵn kích thước file (setLength = fileSize) → không mở / đóng file mỗi chunk,
+ *   file không phải nới dần theo từng lần ghi
+ * - Ghi theo vị trí (chunkIndex * chunkSize) → chunk đến không theo thứ tự / từ nhiều thread vẫn đúng chỗ
+ * - Đóng khi nhận xong / hủy / lỗi (close gọi nhiều lần không sao)
+ */
+public final class ChunkFileSink implements Closeable {
+    private final Path path;
+    private final int chunkSize;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    private ChunkFileSink(Path path, int chunkSize, RandomAccessFile file) {
+        this.path = path;
+        this.chunkSize = chunkSize;
+        this.file = file;
+        this.channel = file.getChannel();
+    }
+
+    /**
+     * Mở (tạo nếu chưa có) file nhận, giữ nguyên dữ liệu đã có (nhận tiếp sau FILE_RESUME)
+     * @param fileSize kích thước cuối cùng của file (null / không biết → không đặt trước)
+     */
+    public static ChunkFileSink open(Path path, Long fileSize, int chunkSize) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        try {
+            if (fileSize != null && file.length() != fileSize) {
+                file.setLength(fileSize);
+            }
+            return new ChunkFileSink(path, chunkSize, file);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public void write(int chunkIndex, byte[] data) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        long position = (long) chunkIndex * chunkSize;
+        while (buf.hasRemaining()) {
+            channel.write(buf, position + buf.position());
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,86 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * DirectBufferPool - Buffer đọc socket (direct ByteBuffer, BUFFER_SIZE) dùng chung cho mọi kết nối
+ * - Direct buffer: SocketChannel.read ghi thẳng vào, JDK không copy qua buffer tạm
+ * - Cấp theo slab: 1 lần allocateDirect cho SLAB_BUFFERS buffer rồi cắt (slice)
+ *   → ít lần xin direct memory, buffer trả về được dùng lại thay vì chờ GC
+ * - Cache theo thread (enableThreadCache) cho event loop sống suốt app (selector):
+ *   acquire/release không đụng hàng đợi chung. Thread ngắn hạn (reader theo kết nối) dùng hàng đợi chung.
+ * - Cần buffer lớn hơn BUFFER_SIZE (frame lớn hiếm gặp) → heap buffer đúng cỡ, không vào pool
+ */
+public final class DirectBufferPool {
+    private static final DirectBufferPool instance = new DirectBufferPool();
+
+    // Đủ chứa 1 FILE_CHUNK 32KB (kể cả dạng JSON Base64) cùng vài message nhỏ
+    public static final int BUFFER_SIZE = 64 * 1024;
+    private static final int SLAB_BUFFERS = 16; // 1MB / slab
+    private static final int THREAD_CACHE_SIZE = 8;
+
+    private final Queue<ByteBuffer> shared = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<ArrayDeque<ByteBuffer>> threadCache = new ThreadLocal<>();
+
+    private DirectBufferPool() {}
+
+    public static DirectBufferPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * Bật cache riêng cho thread hiện tại (gọi 1 lần trên thread sống lâu, vd: selector)
+     */
+    public void enableThreadCache() {
+        if (threadCache.get() == null) {
+            threadCache.set(new ArrayDeque<>(THREAD_CACHE_SIZE));
+        }
+    }
+
+    /**
+     * Buffer BUFFER_SIZE (đã clear, chế độ ghi)
+     */
+    public ByteBuffer acquire() {
+        ArrayDeque<ByteBuffer> cache = threadCache.get();
+        ByteBuffer buf = cache != null ? cache.poll() : null;
+        if (buf == null) buf = shared.poll();
+        if (buf == null) buf = allocateSlab();
+        return buf.clear();
+    }
+
+    /**
+     * Buffer chứa được ít nhất minCapacity byte (lớn hơn BUFFER_SIZE → heap, không lấy từ pool)
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        return minCapacity <= BUFFER_SIZE ? acquire() : ByteBuffer.allocate(minCapacity);
+    }
+
+    /**
+     * Trả buffer (không dùng buffer sau khi trả); buffer không phải của pool → bỏ
+     */
+    public void release(ByteBuffer buf) {
+        if (!isPooled(buf)) return;
+
+        ArrayDeque<ByteBuffer> cache = threadCache.get();
+        if (cache != null && cache.size() < THREAD_CACHE_SIZE) {
+            cache.push(buf);
+        } else {
+            shared.offer(buf);
+        }
+    }
+
+    public boolean isPooled(ByteBuffer buf) {
+        return buf != null && buf.isDirect() && buf.capacity() == BUFFER_SIZE;
+    }
+
+    private ByteBuffer allocateSlab() {
+        ByteBuffer slab = ByteBuffer.allocateDirect(BUFFER_SIZE * SLAB_BUFFERS);
+        for (int i = 1; i < SLAB_BUFFERS; i++) {
+            shared.offer(slab.slice(i * BUFFER_SIZE, BUFFER_SIZE));
+        }
+        return slab.slice(0, BUFFER_SIZE);
+    }
+}
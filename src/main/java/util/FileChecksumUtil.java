@@ -2,7 +2,14 @@ package util;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class FileChecksumUtil {
 
@@ -17,8 +24,32 @@ public class FileChecksumUtil {
             }
         }
 
-        byte[] hash = digest.digest();
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Copy file và tính SHA-256 trong cùng 1 lần đọc
+     */
+    public static String copyAndSha256(Path source, Path target) throws IOException {
+        MessageDigest digest = newSha256();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(source), digest)) {
+            Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Digest để tính dần (vd: theo từng chunk file)
+     */
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e); // JDK nào cũng có
+        }
+    }
 
+    public static String toHex(byte[] hash) {
         // convert to hex string
         StringBuilder hex = new StringBuilder();
         for (byte b : hash) {
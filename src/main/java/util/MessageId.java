@@ -0,0 +1,169 @@
+package util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.UUID;
+
+/**
+ * MessageId - ID 128 bit sắp theo thời gian (bố cục giống UUIDv7)
+ *
+ *   msb: 48 bit unix ms | 4 bit version (7) | 12 bit counter (cao)
+ *   lsb: 2 bit variant (10) | 30 bit node ID | 32 bit counter (thấp)
+ *
+ * - Node ID random 1 lần khi load class, counter tăng dần trong process
+ *   → không gọi SecureRandom khi sinh ID
+ * - Dạng text: 36 ký tự kiểu UUID (vừa cột client_message_id / file_id hiện tại)
+ * - Dạng binary: 16 byte (BinaryFrameCodec gửi ID dạng này thay vì chuỗi 36 ký tự)
+ * - Sinh sau → lớn hơn (cùng process), index B-tree chèn gần cuối thay vì ngẫu nhiên
+ */
+public final class MessageId implements Comparable<MessageId> {
+
+    public static final int BINARY_LENGTH = 16;
+    public static final int TEXT_LENGTH = 36;
+
+    private static final long COUNTER_MASK = (1L << 44) - 1;
+    private static final long NODE_ID = new SecureRandom().nextInt() & 0x3FFFFFFFL;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static long lastMillis = -1;
+    private static long counter = 0;
+
+    private final long msb;
+    private final long lsb;
+
+    public MessageId(long msb, long lsb) {
+        this.msb = msb;
+        this.lsb = lsb;
+    }
+
+    // ===== GENERATE =====
+
+    public static MessageId next() {
+        long millis;
+        long seq;
+        synchronized (MessageId.class) {
+            long now = System.currentTimeMillis();
+            if (now > lastMillis) {
+                lastMillis = now;
+                counter = 0;
+            } else {
+                // Cùng ms hoặc đồng hồ lùi → giữ ms cũ, tăng counter để vẫn tăng dần
+                counter = (counter + 1) & COUNTER_MASK;
+                if (counter == 0) lastMillis++;
+            }
+            millis = lastMillis;
+            seq = counter;
+        }
+
+        long msb = (millis << 16) | 0x7000L | (seq >>> 32);
+        long lsb = 0x8000000000000000L | (NODE_ID << 32) | (seq & 0xFFFFFFFFL);
+        return new MessageId(msb, lsb);
+    }
+
+    /**
+     * Sinh ID mới dạng text (thay cho UUID.randomUUID().toString())
+     */
+    public static String nextString() {
+        return next().toString();
+    }
+
+    // ===== TEXT =====
+
+    @Override
+    public String toString() {
+        char[] out = new char[TEXT_LENGTH];
+        hex(out, 0, msb >>> 32, 8);
+        out[8] = '-';
+        hex(out, 9, msb >>> 16, 4);
+        out[13] = '-';
+        hex(out, 14, msb, 4);
+        out[18] = '-';
+        hex(out, 19, lsb >>> 48, 4);
+        out[23] = '-';
+        hex(out, 24, lsb, 12);
+        return new String(out);
+    }
+
+    private static void hex(char[] out, int offset, long value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            out[i] = HEX[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * Parse dạng text chuẩn (8-4-4-4-12, chữ thường)
+     * @return null nếu không đúng dạng chuẩn (vd: chữ hoa → không đổi được sang binary mà giữ nguyên text)
+     */
+    public static MessageId parse(String text) {
+        if (!isCanonical(text)) return null;
+        long msb = 0, lsb = 0;
+        for (int i = 0; i < 18; i++) {
+            if (i == 8 || i == 13) continue;
+            msb = (msb << 4) | Character.digit(text.charAt(i), 16);
+        }
+        for (int i = 19; i < TEXT_LENGTH; i++) {
+            if (i == 23) continue;
+            lsb = (lsb << 4) | Character.digit(text.charAt(i), 16);
+        }
+        return new MessageId(msb, lsb);
+    }
+
+    /**
+     * Chuỗi có đúng dạng UUID chữ thường (toString() của MessageId/UUID)
+     */
+    public static boolean isCanonical(String text) {
+        if (text == null || text.length() != TEXT_LENGTH) return false;
+        for (int i = 0; i < TEXT_LENGTH; i++) {
+            char c = text.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') return false;
+            } else if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ===== BINARY =====
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeLong(msb);
+        out.writeLong(lsb);
+    }
+
+    public static MessageId readFrom(DataInput in) throws IOException {
+        return new MessageId(in.readLong(), in.readLong());
+    }
+
+    // ===== ACCESSORS =====
+
+    public long getTimestampMillis() {
+        return msb >>> 16;
+    }
+
+    public UUID toUuid() {
+        return new UUID(msb, lsb);
+    }
+
+    @Override
+    public int compareTo(MessageId other) {
+        int c = Long.compareUnsigned(msb, other.msb);
+        return c != 0 ? c : Long.compareUnsigned(lsb, other.lsb);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof MessageId other)) return false;
+        return msb == other.msb && lsb == other.lsb;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = msb ^ lsb;
+        return (int) (h ^ (h >>> 32));
+    }
+}
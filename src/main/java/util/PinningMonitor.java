@@ -0,0 +1,87 @@
+package util;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PinningMonitor - Báo khi virtual thread bị ghim vào carrier thread (event JFR jdk.VirtualThreadPinned)
+ * Thường do blocking I/O bên trong synchronized → carrier bị chiếm, các virtual thread khác phải chờ.
+ * Log vài frame đầu của stack để tìm ra khối synchronized gây ra.
+ */
+final class PinningMonitor {
+    private static final String EVENT = "jdk.VirtualThreadPinned";
+    private static final int MAX_FRAMES = 8;
+
+    private PinningMonitor() {}
+
+    static void start(Duration threshold) {
+        try {
+            RecordingStream stream = new RecordingStream();
+            stream.enable(EVENT).withThreshold(threshold).withStackTrace();
+            stream.setMaxAge(Duration.ofSeconds(10));
+            stream.onEvent(EVENT, event -> System.err.println(
+                    "⚠️ Virtual thread pinned " + event.getDuration().toMillis() + "ms on "
+                            + (event.getThread() != null ? event.getThread().getJavaName() : "?")
+                            + format(event.getStackTrace())));
+            // start() chặn thread gọi → chạy trên daemon thread riêng (thread của startAsync() giữ JVM không thoát)
+            Thread thread = new Thread(stream::start, "vthread-pinning-monitor");
+            thread.setDaemon(true);
+            thread.start();
+            awaitRecording();
+            System.out.println("✅ Virtual thread pinning monitor enabled (threshold " + threshold.toMillis() + "ms)");
+        } catch (RuntimeException | LinkageError e) {
+            // JFR không có trong runtime (jlink tối giản, ...) → chạy tiếp, chỉ mất chẩn đoán
+            System.err.println("⚠️ Pinning monitor unavailable: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Chờ recording chạy (tối đa 1s) để bắt được cả pinning của các virtual thread tạo ngay sau đó
+     */
+    private static void awaitRecording() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (System.nanoTime() < deadline) {
+            for (Recording recording : FlightRecorder.getFlightRecorder().getRecordings()) {
+                if (recording.getState() == RecordingState.RUNNING) return;
+            }
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static String format(RecordedStackTrace stackTrace) {
+        if (stackTrace == null) return "";
+        StringBuilder sb = new StringBuilder();
+        int printed = 0;
+        for (RecordedFrame frame : stackTrace.getFrames()) {
+            String type = frame.getMethod().getType().getName();
+            if (isRuntimeFrame(type)) continue; // Bỏ frame park/sleep/continuation của JDK
+            if (++printed > MAX_FRAMES) break;
+            sb.append("\n    at ")
+              .append(type)
+              .append('.')
+              .append(frame.getMethod().getName())
+              .append(':')
+              .append(frame.getLineNumber());
+        }
+        return sb.toString();
+    }
+
+    private static boolean isRuntimeFrame(String type) {
+        return type.startsWith("java.lang.VirtualThread")
+                || type.equals("java.lang.Thread")
+                || type.startsWith("jdk.internal.")
+                || type.startsWith("java.util.concurrent.locks.");
+    }
+}
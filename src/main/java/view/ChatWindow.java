@@ -24,6 +24,7 @@ import model.Users;
 import network.p2p.P2PManager;
 import network.p2p.PeerInfo;
 import service.ChatService;
+import util.MessageId;
 
 import java.io.File;
 import java.time.format.DateTimeFormatter;
@@ -1131,7 +1132,7 @@ public class ChatWindow {
 
 	    try {
 	        // Generate client message ID for idempotent sending
-	        String clientMessageId = UUID.randomUUID().toString();
+	        String clientMessageId = MessageId.nextString();
 	        
 	        
 	        String fileUrl = "file://" + file.getName() + "|" + formatFileSize(file.length());